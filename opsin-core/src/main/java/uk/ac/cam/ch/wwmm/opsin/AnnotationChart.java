@@ -0,0 +1,277 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import java.util.Arrays;
+
+/**
+ * Reusable working memory for parsing a chemical word as a chart of annotator states.
+ * Each node is a unique pair of chemical grammar DFA state and position in the word, however many paths lead to it.
+ * Edges correspond to a token, as found by a {@link TokenLattice}, and its annotation and are stored in the order they were found;
+ * the edges leaving a node are contiguous as a node's edges are all added when it is processed.
+ * As nodes are added in the order they are to be processed, the node arrays also serve as the breadth first queue.
+ * <p>
+ * The number of nodes is at most the number of DFA states multiplied by the word length, hence the chart grows polynomially
+ * even when the number of ways of annotating the word grows exponentially. Parses are then enumerated from the chart, in the order
+ * a breadth first search over every annotator state would have found them, via partial paths that refer to their previous path by index.
+ * <p>
+ * ParseRules holds one chart per thread, which {@link #release()} empties after each word. The node lookup table is cleared in place,
+ * whilst the node, edge and path arrays are simply overwritten by the next word, so a typical word allocates nothing here.
+ * Arrays that have grown beyond {@link ParseRules#MAX_RETAINED_WORKING_ARRAY_LENGTH}, e.g. whilst counting the parses of a highly
+ * ambiguous word, are replaced by arrays of their initial size
+ * @author dl387
+ *
+ */
+final class AnnotationChart {
+	private static final int INITIAL_SIZE = 64;
+
+	private static final int UNCOUNTED = -1;
+	private static final int COUNTING = -2;
+
+	private int numberOfStates;
+
+	/** The state of the DFA */
+	int[] nodeStates = new int[INITIAL_SIZE];
+	/** The index of the first char in the chemical name that has yet to be tokenised */
+	int[] nodePositions = new int[INITIAL_SIZE];
+	/** Index of the first edge leaving the node */
+	int[] nodeFirstEdge = new int[INITIAL_SIZE];
+	/** Index after the last edge leaving the node */
+	int[] nodeEndEdge = new int[INITIAL_SIZE];
+	/** Whether the DFA state is an accept state */
+	boolean[] nodeAccepts = new boolean[INITIAL_SIZE];
+	/** Number of paths from the node to an accepting node, capped at one more than the caller's limit */
+	int[] nodeParseCounts = new int[INITIAL_SIZE];
+	private int[] nodePartialCounts = new int[INITIAL_SIZE];
+	private int[] nodeEdgeCursor = new int[INITIAL_SIZE];
+	int nodeCount = 0;
+
+	/** Maps posInName * numberOfStates + state to a node index, using open addressing */
+	private int[] tableKeys = newTable(256);
+	private int[] tableNodes = new int[256];
+
+	/** The node reached by following the edge */
+	int[] edgeTargets = new int[INITIAL_SIZE];
+	/** The annotation that was consumed to traverse the edge */
+	char[] edgeAnnotations = new char[INITIAL_SIZE];
+	/** Whether the corresponding token is case sensitive */
+	boolean[] edgeCaseSensitive = new boolean[INITIAL_SIZE];
+	int edgeCount = 0;
+
+	/** The node at the end of the partial path */
+	int[] pathNodes = new int[INITIAL_SIZE];
+	/** The index of the partial path this path extends, or -1 */
+	int[] pathPrevious = new int[INITIAL_SIZE];
+	/** The edge this path ends with, or -1 */
+	int[] pathEdges = new int[INITIAL_SIZE];
+	int pathCount = 0;
+
+	private int[] stack = new int[INITIAL_SIZE];
+
+	/** The furthest position any node reached, used to report where tokenisation failed */
+	int longestPosition;
+	/** The furthest position an accepting node reached, or -1 */
+	int acceptedPosition;
+
+	void prepare(int numberOfStates) {
+		this.numberOfStates = numberOfStates;
+		longestPosition = 0;
+		acceptedPosition = -1;
+	}
+
+	/**
+	 * Returns the index of the node for the given state and position, adding it if it is not already in the chart
+	 * @param state
+	 * @param posInName
+	 * @param accepts Whether state is an accept state of the DFA
+	 * @return
+	 */
+	int findOrAddNode(int state, int posInName, boolean accepts) {
+		int key = posInName * numberOfStates + state;
+		int mask = tableKeys.length - 1;
+		int slot = hash(key) & mask;
+		int existingKey;
+		while ((existingKey = tableKeys[slot]) != -1) {
+			if (existingKey == key) {
+				return tableNodes[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		int node = nodeCount;
+		if (node == nodeStates.length) {
+			int newSize = node * 2;
+			nodeStates = Arrays.copyOf(nodeStates, newSize);
+			nodePositions = Arrays.copyOf(nodePositions, newSize);
+			nodeFirstEdge = Arrays.copyOf(nodeFirstEdge, newSize);
+			nodeEndEdge = Arrays.copyOf(nodeEndEdge, newSize);
+			nodeAccepts = Arrays.copyOf(nodeAccepts, newSize);
+			nodeParseCounts = Arrays.copyOf(nodeParseCounts, newSize);
+			nodePartialCounts = Arrays.copyOf(nodePartialCounts, newSize);
+			nodeEdgeCursor = Arrays.copyOf(nodeEdgeCursor, newSize);
+		}
+		nodeStates[node] = state;
+		nodePositions[node] = posInName;
+		nodeFirstEdge[node] = 0;
+		nodeEndEdge[node] = 0;
+		nodeAccepts[node] = accepts;
+		nodeParseCounts[node] = UNCOUNTED;
+		nodeCount++;
+		tableKeys[slot] = key;
+		tableNodes[slot] = node;
+		if (nodeCount * 2 > tableKeys.length) {
+			growTable();
+		}
+		return node;
+	}
+
+	/**
+	 * Adds an edge from the node currently being processed to the node for the given state and position
+	 * @param state
+	 * @param accepts Whether state is an accept state of the DFA
+	 * @param posInName
+	 * @param annotation
+	 * @param caseSensitive
+	 */
+	void addEdge(int state, boolean accepts, int posInName, char annotation, boolean caseSensitive) {
+		int target = findOrAddNode(state, posInName, accepts);
+		if (edgeCount == edgeTargets.length) {
+			int newSize = edgeCount * 2;
+			edgeTargets = Arrays.copyOf(edgeTargets, newSize);
+			edgeAnnotations = Arrays.copyOf(edgeAnnotations, newSize);
+			edgeCaseSensitive = Arrays.copyOf(edgeCaseSensitive, newSize);
+		}
+		edgeTargets[edgeCount] = target;
+		edgeAnnotations[edgeCount] = annotation;
+		edgeCaseSensitive[edgeCount++] = caseSensitive;
+	}
+
+	/**
+	 * Whether a parse may end at this node i.e. the node's state is an accept state and no accept state has been found further into the word
+	 * @param node
+	 * @return
+	 */
+	boolean isAcceptingNode(int node) {
+		return nodeAccepts[node] && nodePositions[node] == acceptedPosition;
+	}
+
+	/**
+	 * Counts the paths from each node to an accepting node, storing them in nodeParseCounts.
+	 * Counts saturate at limit + 1. Paths that would revisit a node are not counted;
+	 * the chemical grammar cannot produce these as every cycle would have to consist solely of zero length tokens
+	 * @param limit
+	 * @return The number of paths from the initial node
+	 */
+	int countPaths(int limit) {
+		int cap = limit + 1;
+		int stackSize = 0;
+		stack[stackSize++] = 0;
+		startCounting(0);
+		while (stackSize > 0) {
+			int node = stack[stackSize - 1];
+			int edge = nodeEdgeCursor[node];
+			if (edge < nodeEndEdge[node]) {
+				int target = edgeTargets[edge];
+				int targetCount = nodeParseCounts[target];
+				if (targetCount == UNCOUNTED) {
+					if (stackSize == stack.length) {
+						stack = Arrays.copyOf(stack, stackSize * 2);
+					}
+					stack[stackSize++] = target;
+					startCounting(target);
+					continue;
+				}
+				if (targetCount > 0) {
+					nodePartialCounts[node] = Math.min(cap, nodePartialCounts[node] + targetCount);
+				}
+				nodeEdgeCursor[node]++;
+			}
+			else {
+				nodeParseCounts[node] = nodePartialCounts[node];
+				stackSize--;
+			}
+		}
+		return nodeParseCounts[0];
+	}
+
+	private void startCounting(int node) {
+		nodeParseCounts[node] = COUNTING;
+		nodeEdgeCursor[node] = nodeFirstEdge[node];
+		nodePartialCounts[node] = isAcceptingNode(node) ? 1 : 0;
+	}
+
+	/**
+	 * Appends a partial path that extends the given path by the given edge
+	 * @param node
+	 * @param previousPath
+	 * @param edge
+	 */
+	void addPath(int node, int previousPath, int edge) {
+		if (pathCount == pathNodes.length) {
+			int newSize = pathCount * 2;
+			pathNodes = Arrays.copyOf(pathNodes, newSize);
+			pathPrevious = Arrays.copyOf(pathPrevious, newSize);
+			pathEdges = Arrays.copyOf(pathEdges, newSize);
+		}
+		pathNodes[pathCount] = node;
+		pathPrevious[pathCount] = previousPath;
+		pathEdges[pathCount++] = edge;
+	}
+
+	void release() {
+		if (nodeStates.length > ParseRules.MAX_RETAINED_WORKING_ARRAY_LENGTH) {
+			nodeStates = new int[INITIAL_SIZE];
+			nodePositions = new int[INITIAL_SIZE];
+			nodeFirstEdge = new int[INITIAL_SIZE];
+			nodeEndEdge = new int[INITIAL_SIZE];
+			nodeAccepts = new boolean[INITIAL_SIZE];
+			nodeParseCounts = new int[INITIAL_SIZE];
+			nodePartialCounts = new int[INITIAL_SIZE];
+			nodeEdgeCursor = new int[INITIAL_SIZE];
+		}
+		if (tableKeys.length > ParseRules.MAX_RETAINED_WORKING_ARRAY_LENGTH) {
+			tableKeys = newTable(256);
+			tableNodes = new int[256];
+		}
+		else {
+			Arrays.fill(tableKeys, -1);
+		}
+		if (edgeTargets.length > ParseRules.MAX_RETAINED_WORKING_ARRAY_LENGTH) {
+			edgeTargets = new int[INITIAL_SIZE];
+			edgeAnnotations = new char[INITIAL_SIZE];
+			edgeCaseSensitive = new boolean[INITIAL_SIZE];
+		}
+		if (pathNodes.length > ParseRules.MAX_RETAINED_WORKING_ARRAY_LENGTH) {
+			pathNodes = new int[INITIAL_SIZE];
+			pathPrevious = new int[INITIAL_SIZE];
+			pathEdges = new int[INITIAL_SIZE];
+		}
+		nodeCount = 0;
+		edgeCount = 0;
+		pathCount = 0;
+	}
+
+	private void growTable() {
+		int newSize = tableKeys.length * 2;
+		tableKeys = newTable(newSize);
+		tableNodes = new int[newSize];
+		int mask = newSize - 1;
+		for (int node = 0; node < nodeCount; node++) {
+			int key = nodePositions[node] * numberOfStates + nodeStates[node];
+			int slot = hash(key) & mask;
+			while (tableKeys[slot] != -1) {
+				slot = (slot + 1) & mask;
+			}
+			tableKeys[slot] = key;
+			tableNodes[slot] = node;
+		}
+	}
+
+	private static int[] newTable(int size) {
+		int[] table = new int[size];
+		Arrays.fill(table, -1);
+		return table;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
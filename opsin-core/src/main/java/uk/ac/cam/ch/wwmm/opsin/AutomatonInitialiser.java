@@ -1,10 +1,15 @@
 package uk.ac.cam.ch.wwmm.opsin;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
@@ -17,101 +22,244 @@ import dk.brics.automaton.SpecialOperations;
 /**
  * Handles storing and retrieving automata to/from files
  * This is highly useful to do as building these deterministic automata from scratch can take minutes
+ * <p>
+ * The cache is content-addressed: an automaton is stored in a file named after a SHA-256 hash of the regex it was built from,
+ * whether it is reversed, the version of dk.brics.automaton and the version of the serialised form.
+ * Hence a cached automaton is never stale and a cache directory may be shared by any number of concurrently running processes;
+ * automata are written to a temporary file that is then atomically renamed, so a partially written automaton is never read.
+ * <p>
+ * Automata are cached in the directory given by the {@value #CACHE_DIRECTORY_PROPERTY} system property if set, otherwise the resource folder in your working directory.
+ * If an automaton is not cached, the automata distributed with OPSIN are checked before building it from scratch.
  * @author dl387
  *
  */
 class AutomatonInitialiser {
 	
 	private static final Logger LOG = Logger.getLogger(AutomatonInitialiser.class);
+
+	/**The system property that may be used to specify the directory in which automata are cached*/
+	static final String CACHE_DIRECTORY_PROPERTY = "opsin.automatonCacheDirectory";
+	/**Should be incremented whenever the serialised form of {@link CompactAutomaton}, or how automata are built from regexes, changes*/
+	static final int FORMAT_VERSION = 1;
+	private static final int MAGIC_NUMBER = 0x4F505341;//OPSA
+	private static final String AUTOMATON_LIBRARY_VERSION = getAutomatonLibraryVersion();
+
 	private final ResourceGetter resourceGetter;
+	private final boolean useDefaultCacheDirectory;
+	private final File cacheDirectory;
 	
+	/**
+	 * The cache directory is determined whenever an automaton is loaded, hence reflects the system property and working directory at that time
+	 * e.g. when OPSIN is used in a native image initialised whilst it was built
+	 * @param resourcePath The resource path of the automata distributed with OPSIN
+	 */
 	AutomatonInitialiser(String resourcePath) {
-		resourceGetter = new ResourceGetter(resourcePath);
+		this.resourceGetter = new ResourceGetter(resourcePath);
+		this.useDefaultCacheDirectory = true;
+		this.cacheDirectory = null;
 	}
 
 	/**
-	 * In preference serialised automata and their hashes will be looked for in the resource folder in your working directory
-	 * If it cannot be found there then these files will be looked for in the standard resource folder
-	 * (this is actually the standard behaviour of the resourceGetter but I'm reiterating it here as if the stored hash doesn't match
-	 * the current hash then the creation of an updated serialised automaton and hash will occur in the working directory resource folder as the standard
-	 * resource folder will not typically be writable)
-	 * @param automatonName : A name for the automaton so that it can it can be saved/loaded from disk
-	 * @param regex : the regex from which to build the RunAutomaton
-	 * @param reverseAutomaton : should the automaton be reversed
-	 * @param tableize: if true, a transition table is created which makes the run method faster in return of a higher memory usage (adds ~256kb)
-	 * @return A RunAutomaton, may have been built from scratch or loaded from a file
+	 * @param resourcePath The resource path of the automata distributed with OPSIN
+	 * @param cacheDirectory The directory in which automata are cached, or null if automata should not be cached
 	 */
-	RunAutomaton loadAutomaton(String automatonName, String regex, boolean tableize, boolean reverseAutomaton) {
-		if (reverseAutomaton){
-			automatonName+="_reversed_";
+	AutomatonInitialiser(String resourcePath, File cacheDirectory) {
+		this.resourceGetter = new ResourceGetter(resourcePath);
+		this.useDefaultCacheDirectory = false;
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * @return The directory in which automata are cached, or null if automata should not be cached
+	 */
+	File getCacheDirectory() {
+		return useDefaultCacheDirectory ? getDefaultCacheDirectory(resourceGetter.getResourcePath()) : cacheDirectory;
+	}
+
+	private static File getDefaultCacheDirectory(String resourcePath) {
+		String cacheDirectory = System.getProperty(CACHE_DIRECTORY_PROPERTY);
+		if (cacheDirectory != null) {
+			return new File(cacheDirectory);
+		}
+		try {
+			return new File(new File(new File(".").getCanonicalFile(), "resources"), resourcePath);
+		} catch (IOException e) {
+			//Automata will not be cached
+			return null;
 		}
-		try{
-			if (isAutomatonCached(automatonName, regex)) {
-				return loadCachedAutomaton(automatonName);
+	}
+
+	private static String getAutomatonLibraryVersion() {
+		InputStream is = AutomatonInitialiser.class.getResourceAsStream("opsinbuild.props");
+		try {
+			Properties props = new Properties();
+			props.load(is);
+			String version = props.getProperty("automatonVersion");
+			if (version != null) {
+				return version;
 			}
 		}
-		catch (IOException e) {
-			LOG.warn("Error loading cached automaton: "+automatonName, e);
+		catch (Exception e) {
+			LOG.debug("dk.brics.automaton version could not be determined", e);
 		}
-		RunAutomaton automaton = createAutomaton(regex, tableize, reverseAutomaton);
-		cacheAutomaton(automatonName, automaton, regex);
-		return automaton;
-	}
-	
-	private boolean isAutomatonCached(String automatonName, String regex) {
-		String currentRegexHash = getRegexHash(regex);
-		String cachedRegexHash = getCachedRegexHash(automatonName);
-		return currentRegexHash.equals(cachedRegexHash);
+		finally {
+			IOUtils.closeQuietly(is);
+		}
+		return "unknown";
 	}
-	
-	private String getRegexHash(String regex) {
-		return Integer.toString(regex.hashCode());
+
+	/**
+	 * Returns the automaton for the given regex. In preference this is retrieved from the cache,
+	 * then from the automata distributed with OPSIN, otherwise it is built from scratch and cached.
+	 * @param automatonName : A name for the automaton, used when logging
+	 * @param regex : the regex from which to build the automaton
+	 * @param reverseAutomaton : should the automaton be reversed
+	 * @return A CompactAutomaton, may have been built from scratch or loaded from a file
+	 */
+	CompactAutomaton loadAutomaton(String automatonName, String regex, boolean reverseAutomaton) {
+		String fileName = getCacheKey(regex, reverseAutomaton) + ".aut";
+		File cacheDirectory = getCacheDirectory();
+		CompactAutomaton automaton = loadCachedAutomaton(automatonName, cacheDirectory, fileName);
+		if (automaton != null) {
+			return automaton;
+		}
+		LOG.debug("Building automaton: " + automatonName);
+		automaton = new CompactAutomaton(createAutomaton(regex, reverseAutomaton));
+		cacheAutomaton(automatonName, cacheDirectory, fileName, automaton);
+		return automaton;
 	}
 
-	private String getCachedRegexHash(String automatonName) {
-		/*This file contains the hashcode of the regex which was used to generate the automaton on the disk */
-		return resourceGetter.getFileContentsAsString(automatonName + "RegexHash.txt");
+	/**
+	 * A hex encoded SHA-256 hash of everything that determines the serialised automaton
+	 * @param regex
+	 * @param reverseAutomaton
+	 * @return
+	 */
+	static String getCacheKey(String regex, boolean reverseAutomaton) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Java VM is broken; SHA-256 should be supported", e);
+		}
+		String key = FORMAT_VERSION + "\n" + AUTOMATON_LIBRARY_VERSION + "\n" + (reverseAutomaton ? "reversed" : "forward") + "\n" + regex;
+		byte[] hash;
+		try {
+			hash = digest.digest(key.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("Java VM is broken; UTF-8 should be supported", e);
+		}
+		StringBuilder sb = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
 	}
-	
-	private RunAutomaton loadCachedAutomaton(String automatonName) throws IOException{
-		InputStream automatonInput = resourceGetter.getInputstreamFromFileName(automatonName +"SerialisedAutomaton.aut");
+
+	private CompactAutomaton loadCachedAutomaton(String automatonName, File cacheDirectory, String fileName) {
 		try {
-			return RunAutomaton.load(new BufferedInputStream(automatonInput));
-		} catch (Exception e) {
-			IOException ioe = new IOException("Error loading automaton");
-			ioe.initCause(e);
-			throw ioe;
-		} finally {
-			IOUtils.closeQuietly(automatonInput);
+			ByteBuffer buffer = null;
+			if (cacheDirectory != null) {
+				File f = new File(cacheDirectory, fileName);
+				if (f.isFile()) {
+					buffer = ResourceGetter.mapFile(f);
+				}
+			}
+			if (buffer == null) {
+				try {
+					buffer = resourceGetter.getByteBuffer(fileName);
+				}
+				catch (IOException e) {
+					//not distributed with OPSIN
+					return null;
+				}
+			}
+			if (buffer.getInt() != MAGIC_NUMBER) {
+				throw new IOException("File is not a serialised automaton");
+			}
+			return CompactAutomaton.read(buffer);
+		}
+		catch (Exception e) {
+			LOG.warn("Error loading cached automaton: " + automatonName, e);
+			return null;
 		}
 	}
 	
-	private static RunAutomaton createAutomaton(String regex, boolean tableize, boolean reverseAutomaton) {
+	/**
+	 * Whether the given java.util.regex regular expression describes a regular language using only syntax that
+	 * dk.brics.automaton interprets identically, and hence may be compiled into a DFA.
+	 * This is conservative, rejecting for example lookaround, anchors, lazy/possessive quantifiers, backslash character classes,
+	 * backreferences and characters that dk.brics.automaton treats as operators but java.util.regex treats as literals
+	 * @param regex
+	 * @return
+	 */
+	static boolean isDeterminisable(String regex) {
+		boolean inCharacterClass = false;
+		for (int i = 0, len = regex.length(); i < len; i++) {
+			char c = regex.charAt(i);
+			char next = i + 1 < len ? regex.charAt(i + 1) : 0;
+			if (c == '\\') {
+				if (next == 0 || Character.isLetterOrDigit(next)) {
+					return false;
+				}
+				i++;
+			}
+			else if (inCharacterClass) {
+				if (c == ']') {
+					inCharacterClass = false;
+				}
+				else if (c == '[' || (c == '&' && next == '&')) {//nested classes and intersections
+					return false;
+				}
+			}
+			else if (c == '[') {
+				if (next == '^') {
+					next = i + 2 < len ? regex.charAt(i + 2) : 0;
+				}
+				if (next == ']') {//java.util.regex treats a leading ] as a literal
+					return false;
+				}
+				inCharacterClass = true;
+			}
+			else if (c == '(') {
+				if (next == '?') {//lookaround, flags or non-capturing group
+					return false;
+				}
+			}
+			else if (c == '*' || c == '+' || c == '?' || c == '}') {
+				if (next == '?' || next == '+') {//lazy or possessive quantifier
+					return false;
+				}
+			}
+			else if ("^$&~#@<>\"".indexOf(c) != -1) {
+				return false;
+			}
+		}
+		return !inCharacterClass;
+	}
+
+	private static RunAutomaton createAutomaton(String regex, boolean reverseAutomaton) {
 		Automaton a = new RegExp(regex).toAutomaton();
 		if (reverseAutomaton){
 			SpecialOperations.reverse(a);
 		}
-		return new RunAutomaton(a, tableize);
+		return new RunAutomaton(a, false);
 	}
 
-	private void cacheAutomaton(String automatonName, RunAutomaton automaton, String regex) {
-		OutputStream regexHashOutputStream = null;
-		OutputStream automatonOutputStream = null;
+	private void cacheAutomaton(String automatonName, File cacheDirectory, String fileName, CompactAutomaton automaton) {
+		if (cacheDirectory == null) {
+			return;
+		}
 		try {
-			regexHashOutputStream = resourceGetter.getOutputStream(automatonName + "RegexHash.txt");
-			try {
-				regexHashOutputStream.write(getRegexHash(regex).getBytes("UTF-8"));
-			} catch (UnsupportedEncodingException e) {
-				throw new RuntimeException("Java VM is broken; UTF-8 should be supported", e);
-			}
-			automatonOutputStream = resourceGetter.getOutputStream(automatonName + "SerialisedAutomaton.aut");
-			automaton.store(automatonOutputStream);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC_NUMBER);
+			automaton.write(out);
+			out.flush();
+			ResourceGetter.writeFileAtomically(new File(cacheDirectory, fileName), bytes.toByteArray());
 		} catch (IOException e) {
-			LOG.warn("Error serialising automaton: "+automatonName, e);
-		}
-		finally{
-			IOUtils.closeQuietly(regexHashOutputStream);
-			IOUtils.closeQuietly(automatonOutputStream);
+			LOG.warn("Error serialising automaton: " + automatonName, e);
 		}
 	}
 	
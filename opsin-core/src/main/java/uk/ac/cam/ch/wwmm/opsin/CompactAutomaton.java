@@ -0,0 +1,142 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import dk.brics.automaton.RunAutomaton;
+
+/**
+ * A deterministic finite automaton, equivalent to a non-tableized {@link RunAutomaton}, held as flat arrays.
+ * Characters are mapped to the interval of the automaton's character intervals that contains them, and
+ * the transition table has a row per state and a column per interval.
+ * Unlike RunAutomaton the automaton is written and read as the arrays themselves, rather than using Java serialisation,
+ * hence may be read directly from a memory mapped file.
+ * @author dl387
+ *
+ */
+final class CompactAutomaton {
+
+	/** The first character of each character interval, in order, the first interval always starts at \u0000 */
+	private final char[] points;
+	private final int initialState;
+	/** Bit set of the accepting states */
+	private final long[] acceptStates;
+	/** The state reached from state s on a character in interval i is at s * points.length + i, -1 if there is no transition */
+	private final int[] transitions;
+
+	CompactAutomaton(RunAutomaton automaton) {
+		points = automaton.getCharIntervals();
+		initialState = automaton.getInitialState();
+		int numberOfStates = automaton.getSize();
+		acceptStates = new long[(numberOfStates + 63) / 64];
+		transitions = new int[numberOfStates * points.length];
+		for (int state = 0; state < numberOfStates; state++) {
+			if (automaton.isAccept(state)) {
+				acceptStates[state >> 6] |= 1L << state;
+			}
+			for (int i = 0; i < points.length; i++) {
+				transitions[state * points.length + i] = automaton.step(state, points[i]);
+			}
+		}
+	}
+
+	private CompactAutomaton(char[] points, int initialState, long[] acceptStates, int[] transitions) {
+		this.points = points;
+		this.initialState = initialState;
+		this.acceptStates = acceptStates;
+		this.transitions = transitions;
+	}
+
+	/**
+	 * The first character of each of the automaton's character intervals, in order.
+	 * The returned array should not be modified
+	 * @return
+	 */
+	char[] getCharIntervals() {
+		return points;
+	}
+
+	int getSize() {
+		return points.length == 0 ? 0 : transitions.length / points.length;
+	}
+
+	int getInitialState() {
+		return initialState;
+	}
+
+	boolean isAccept(int state) {
+		return (acceptStates[state >> 6] & (1L << state)) != 0;
+	}
+
+	/**
+	 * The state reached from the given state on reading c, -1 if there is no such state
+	 * @param state
+	 * @param c
+	 * @return
+	 */
+	int step(int state, char c) {
+		int low = 0;
+		int high = points.length - 1;
+		while (low < high) {//find the last interval starting at or before c
+			int mid = (low + high + 1) >>> 1;
+			if (points[mid] <= c) {
+				low = mid;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		return transitions[state * points.length + low];
+	}
+
+	/**
+	 * The length of the longest prefix of s, starting at offset, that is accepted by the automaton.
+	 * As {@link RunAutomaton#run(String, int)}
+	 * @param s
+	 * @param offset
+	 * @return length of the longest accepted prefix, -1 if no prefix is accepted
+	 */
+	int run(String s, int offset) {
+		int state = initialState;
+		int max = -1;
+		for (int pos = offset, len = s.length(); ; pos++) {
+			if (isAccept(state)) {
+				max = pos - offset;
+			}
+			if (pos == len) {
+				break;
+			}
+			state = step(state, s.charAt(pos));
+			if (state == -1) {
+				break;
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Writes the automaton in the form read by {@link #read(ByteBuffer)}
+	 * @param out
+	 * @throws IOException
+	 */
+	void write(DataOutputStream out) throws IOException {
+		ResourceImage.writeCharArray(out, points);
+		out.writeInt(initialState);
+		ResourceImage.writeLongArray(out, acceptStates);
+		ResourceImage.writeIntArray(out, transitions);
+	}
+
+	/**
+	 * Reads an automaton written by {@link #write(DataOutputStream)}
+	 * @param buffer
+	 * @return
+	 */
+	static CompactAutomaton read(ByteBuffer buffer) {
+		char[] points = ResourceImage.readCharArray(buffer);
+		int initialState = buffer.getInt();
+		long[] acceptStates = ResourceImage.readLongArray(buffer);
+		int[] transitions = ResourceImage.readIntArray(buffer);
+		return new CompactAutomaton(points, initialState, acceptStates, transitions);
+	}
+}
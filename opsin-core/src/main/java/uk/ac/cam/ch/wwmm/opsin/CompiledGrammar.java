@@ -0,0 +1,253 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Tables derived from the chemical grammar automaton for use whilst tokenising.
+ * For each DFA state, the transitions that exist are listed in symbol order as (symbol index, next state) pairs,
+ * so that the symbols that cannot follow a state are never considered.
+ * Additionally, for each state, a mask of the ASCII characters that could be the first character read of a token of
+ * any of the state's symbols allows positions at which no token could possibly be read to be skipped.
+ * The tables fully describe the automaton, hence once derived the automaton itself is not retained.
+ * @author dl387
+ *
+ */
+class CompiledGrammar {
+
+	/** The annotation symbols of the grammar, in order */
+	private final char[] symbols;
+	private final int initialState;
+	/** Bit set of the accepting states */
+	private final long[] acceptStates;
+
+	/** The transitions of state s are from transitionStarts[s] up to but not including transitionStarts[s + 1] */
+	private final int[] transitionStarts;
+	private final int[] transitionSymbols;
+	private final int[] transitionTargets;
+
+	/** Two longs per state, a bit set of the ASCII characters a token of any of the state's symbols could start with */
+	private final long[] firstCharacterMasks;
+	/** States for which the first character read does not restrict which tokens are possible e.g. due to zero length tokens */
+	private final boolean[] unrestricted;
+
+	/**
+	 * @param automaton The chemical grammar
+	 * @param symbolFirstCharacterMasks For each symbol, two longs forming a bit set of the ASCII characters tokens of that symbol could start with
+	 * @param symbolUnrestricted For each symbol, whether its tokens may be zero length or start with a character not described by the mask
+	 */
+	CompiledGrammar(CompactAutomaton automaton, long[] symbolFirstCharacterMasks, boolean[] symbolUnrestricted) {
+		symbols = automaton.getCharIntervals();
+		initialState = automaton.getInitialState();
+		int numberOfStates = automaton.getSize();
+		acceptStates = new long[(numberOfStates + 63) / 64];
+		transitionStarts = new int[numberOfStates + 1];
+		firstCharacterMasks = new long[numberOfStates * 2];
+		unrestricted = new boolean[numberOfStates];
+		int transitionCount = 0;
+		for (int state = 0; state < numberOfStates; state++) {
+			for (int i = 0; i < symbols.length; i++) {
+				if (automaton.step(state, symbols[i]) != -1) {
+					transitionCount++;
+				}
+			}
+		}
+		transitionSymbols = new int[transitionCount];
+		transitionTargets = new int[transitionCount];
+		int transition = 0;
+		for (int state = 0; state < numberOfStates; state++) {
+			if (automaton.isAccept(state)) {
+				acceptStates[state >> 6] |= 1L << state;
+			}
+			transitionStarts[state] = transition;
+			for (int i = 0; i < symbols.length; i++) {
+				int nextState = automaton.step(state, symbols[i]);
+				if (nextState != -1) {
+					transitionSymbols[transition] = i;
+					transitionTargets[transition++] = nextState;
+					firstCharacterMasks[state * 2] |= symbolFirstCharacterMasks[i * 2];
+					firstCharacterMasks[state * 2 + 1] |= symbolFirstCharacterMasks[i * 2 + 1];
+					if (symbolUnrestricted[i]) {
+						unrestricted[state] = true;
+					}
+				}
+			}
+		}
+		transitionStarts[numberOfStates] = transition;
+	}
+
+	private CompiledGrammar(char[] symbols, int initialState, long[] acceptStates, int[] transitionStarts, int[] transitionSymbols,
+			int[] transitionTargets, long[] firstCharacterMasks, boolean[] unrestricted) {
+		this.symbols = symbols;
+		this.initialState = initialState;
+		this.acceptStates = acceptStates;
+		this.transitionStarts = transitionStarts;
+		this.transitionSymbols = transitionSymbols;
+		this.transitionTargets = transitionTargets;
+		this.firstCharacterMasks = firstCharacterMasks;
+		this.unrestricted = unrestricted;
+	}
+
+	/**
+	 * Returns tables for the same grammar where tokens of each symbol may additionally start with the characters of the given masks.
+	 * The transition tables are shared with this CompiledGrammar, and the first character masks are only copied if they change,
+	 * hence this is returned if every state's tokens could already start with the given characters
+	 * @param symbolFirstCharacterMasks For each symbol, two longs forming a bit set of the ASCII characters tokens of that symbol could start with
+	 * @param symbolUnrestricted For each symbol, whether its tokens may be zero length or start with a character not described by the mask
+	 * @return
+	 */
+	CompiledGrammar withAdditionalFirstCharacters(long[] symbolFirstCharacterMasks, boolean[] symbolUnrestricted) {
+		long[] masks = firstCharacterMasks;
+		boolean[] unrestrictedStates = unrestricted;
+		for (int state = 0, numberOfStates = getNumberOfStates(); state < numberOfStates; state++) {
+			for (int transition = transitionStarts[state]; transition < transitionStarts[state + 1]; transition++) {
+				int i = transitionSymbols[transition];
+				long mask0 = masks[state * 2] | symbolFirstCharacterMasks[i * 2];
+				long mask1 = masks[state * 2 + 1] | symbolFirstCharacterMasks[i * 2 + 1];
+				if (mask0 != masks[state * 2] || mask1 != masks[state * 2 + 1]) {
+					if (masks == firstCharacterMasks) {
+						masks = masks.clone();
+					}
+					masks[state * 2] = mask0;
+					masks[state * 2 + 1] = mask1;
+				}
+				if (symbolUnrestricted[i] && !unrestrictedStates[state]) {
+					if (unrestrictedStates == unrestricted) {
+						unrestrictedStates = unrestrictedStates.clone();
+					}
+					unrestrictedStates[state] = true;
+				}
+			}
+		}
+		if (masks == firstCharacterMasks && unrestrictedStates == unrestricted) {
+			return this;
+		}
+		return new CompiledGrammar(symbols, initialState, acceptStates, transitionStarts, transitionSymbols, transitionTargets, masks, unrestrictedStates);
+	}
+
+	/**
+	 * The annotation symbols of the grammar, in the order used by {@link #getTransitionSymbol(int)}.
+	 * The returned array should not be modified
+	 * @return
+	 */
+	char[] getSymbols() {
+		return symbols;
+	}
+
+	int getNumberOfStates() {
+		return transitionStarts.length - 1;
+	}
+
+	int getInitialState() {
+		return initialState;
+	}
+
+	boolean isAccept(int state) {
+		return (acceptStates[state >> 6] & (1L << state)) != 0;
+	}
+
+	int getFirstTransition(int state) {
+		return transitionStarts[state];
+	}
+
+	int getEndOfTransitions(int state) {
+		return transitionStarts[state + 1];
+	}
+
+	/**
+	 * The index, in the automaton's char intervals, of the symbol consumed by the transition
+	 * @param transition
+	 * @return
+	 */
+	int getTransitionSymbol(int transition) {
+		return transitionSymbols[transition];
+	}
+
+	int getTransitionTarget(int transition) {
+		return transitionTargets[transition];
+	}
+
+	/**
+	 * Whether a token of a symbol that can follow the given state could be read when the first character read is c.
+	 * c should be -1 if there are no characters left to read
+	 * @param state
+	 * @param c
+	 * @return
+	 */
+	boolean mayReadToken(int state, int c) {
+		if (unrestricted[state]) {
+			return true;
+		}
+		if (c < 0) {
+			return false;
+		}
+		if (c >= 128) {//conservatively assume a non ASCII character could match e.g. case insensitively
+			return true;
+		}
+		return (firstCharacterMasks[state * 2 + (c >> 6)] & (1L << c)) != 0;
+	}
+
+	/**
+	 * Adds c to a pair of longs forming a bit set of ASCII characters.
+	 * @param masks
+	 * @param maskIndex The index of the pair
+	 * @param c
+	 * @return false if c is not ASCII and hence could not be added
+	 */
+	static boolean addToMask(long[] masks, int maskIndex, char c) {
+		if (c >= 128) {
+			return false;
+		}
+		masks[maskIndex * 2 + (c >> 6)] |= 1L << c;
+		return true;
+	}
+
+	/**
+	 * An estimate, in bytes, of the heap retained by the tables
+	 * @return
+	 */
+	long getMemoryFootprint() {
+		return 16 + 8 * 4 + arrayFootprint(symbols.length * 2L) + arrayFootprint(acceptStates.length * 8L) +
+				arrayFootprint(transitionStarts.length * 4L) + arrayFootprint(transitionSymbols.length * 4L) +
+				arrayFootprint(transitionTargets.length * 4L) + arrayFootprint(firstCharacterMasks.length * 8L) + arrayFootprint(unrestricted.length);
+	}
+
+	/**
+	 * Writes the tables in the form read by {@link #read(ByteBuffer)}
+	 * @param out
+	 * @throws IOException
+	 */
+	void write(DataOutputStream out) throws IOException {
+		ResourceImage.writeCharArray(out, symbols);
+		out.writeInt(initialState);
+		ResourceImage.writeLongArray(out, acceptStates);
+		ResourceImage.writeIntArray(out, transitionStarts);
+		ResourceImage.writeIntArray(out, transitionSymbols);
+		ResourceImage.writeIntArray(out, transitionTargets);
+		ResourceImage.writeLongArray(out, firstCharacterMasks);
+		ResourceImage.writeBooleanArray(out, unrestricted);
+	}
+
+	/**
+	 * Reads tables written by {@link #write(DataOutputStream)}
+	 * @param buffer
+	 * @return
+	 */
+	static CompiledGrammar read(ByteBuffer buffer) {
+		char[] symbols = ResourceImage.readCharArray(buffer);
+		int initialState = buffer.getInt();
+		long[] acceptStates = ResourceImage.readLongArray(buffer);
+		int[] transitionStarts = ResourceImage.readIntArray(buffer);
+		int[] transitionSymbols = ResourceImage.readIntArray(buffer);
+		int[] transitionTargets = ResourceImage.readIntArray(buffer);
+		long[] firstCharacterMasks = ResourceImage.readLongArray(buffer);
+		boolean[] unrestricted = ResourceImage.readBooleanArray(buffer);
+		return new CompiledGrammar(symbols, initialState, acceptStates, transitionStarts, transitionSymbols, transitionTargets, firstCharacterMasks, unrestricted);
+	}
+
+	private static long arrayFootprint(long bytes) {
+		return (16 + bytes + 7) & ~7L;
+	}
+}
@@ -0,0 +1,26 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads, so that OPSIN's worker threads never prevent the JVM from exiting
+ * @author dl387
+ *
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+	private final String namePrefix;
+	private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+	DaemonThreadFactory(String namePrefix) {
+		this.namePrefix = namePrefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, namePrefix + "-" + threadNumber.getAndIncrement());
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -399,6 +399,7 @@ class FusedRingNumberer {
 	 * @return
 	 */
 	private static List<RingConnectivityTable> buildRingConnectionTables(Ring currentRing, Ring previousRing, int previousDir, Bond previousBond, Atom atom, RingConnectivityTable ct, List<RingConnectivityTable> cts) {
+		ProcessingTimeLimit.check();//the number of connection tables can grow exponentially with the number of rings
 		// order atoms and bonds in the ring
 		currentRing.makeCyclicLists(previousBond, atom);
 		List<RingConnectivityTable> generatedCts = new ArrayList<RingConnectivityTable>();
@@ -1001,6 +1002,7 @@ class FusedRingNumberer {
 			}
 			int ctEntriesSize = ct.ringShapes.size();
 			for (Integer horizonalRowDirection : entry.getValue()) {
+				ProcessingTimeLimit.check();
 				int[] directionFromRingToNeighbouringRing = new int[ctEntriesSize];
 				// turn the ring system such as to be aligned along the horizonalRowDirection
 				for(int i=0; i<ctEntriesSize; i++){
@@ -1058,6 +1060,7 @@ class FusedRingNumberer {
 			List<Integer> allowedUpperRightQuadrants = allowedUpperRightQuadrantsForEachChain.get(c);
 
 			for (Integer upperRightQuadrant : allowedUpperRightQuadrants) {
+				ProcessingTimeLimit.check();
 				Ring[][] qRingMap = transformQuadrantToUpperRightOfRingMap(ringMap, upperRightQuadrant);
 				if (LOG.isTraceEnabled()){
 					debugRingMap(qRingMap);
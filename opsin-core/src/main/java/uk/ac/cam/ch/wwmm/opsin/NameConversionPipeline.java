@@ -0,0 +1,314 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Converts newline delimited names, read from a Reader or an Iterator, into OpsinResults.
+ * Lines may be of the form name&lt;TAB&gt;payload, in which case only the name is parsed.
+ * Results are always returned in the order the lines were read.
+ * Instances are obtained from {@link NameToStructure#convertNames(java.io.Reader, NameToStructureConfig, int)} and its overloads,
+ * and should be closed when no longer required:
+ * <pre>
+ * NameConversionPipeline pipeline = nts.convertNames(reader, n2sConfig, 4);
+ * try {
+ *     ConvertedLine convertedLine;
+ *     while ((convertedLine = pipeline.next()) != null) {
+ *         OpsinResult result = convertedLine.getResult();
+ *         ...
+ *     }
+ * }
+ * finally {
+ *     pipeline.close();
+ * }
+ * </pre>
+ * A pipeline should be consumed by one thread.
+ * <p>
+ * With one thread names are read and converted on demand by the calling thread.
+ * With more threads, a reader thread submits each line to a pool of workers and queues the pending results, in input order,
+ * in a bounded queue. The queue acts as a reorder buffer: the consumer waits for the result at its head, whilst
+ * workers may already have completed later names. When the queue is full reading blocks, hence memory use is bounded.
+ *
+ * @author dl387
+ *
+ */
+public class NameConversionPipeline implements Closeable {
+
+	/**
+	 * A line of input and the result of converting the name it contained
+	 */
+	public static class ConvertedLine {
+		private final String line;
+		private final int splitPoint;
+		private final OpsinResult result;
+
+		ConvertedLine(String line, int splitPoint, OpsinResult result) {
+			this.line = line;
+			this.splitPoint = splitPoint;
+			this.result = result;
+		}
+
+		/**
+		 * The line of input, including any tab delimited payload
+		 * @return
+		 */
+		public String getLine() {
+			return line;
+		}
+
+		/**
+		 * The text after the first tab of the line, or null if the line did not contain a tab
+		 * @return
+		 */
+		public String getPayload() {
+			return splitPoint >= 0 ? line.substring(splitPoint + 1) : null;
+		}
+
+		/**
+		 * The result of converting the name i.e. the text before the first tab of the line
+		 * @return
+		 */
+		public OpsinResult getResult() {
+			return result;
+		}
+	}
+
+	/**
+	 * Source of lines, returns null when there are no more lines
+	 */
+	private interface LineSource {
+		String readLine() throws IOException;
+	}
+
+	/**Number of pending results allowed per worker thread before reading blocks*/
+	private static final int QUEUED_LINES_PER_THREAD = 64;
+
+	/**Placed on the queue after the final line has been read*/
+	private static final Future<ConvertedLine> END_OF_INPUT = new FutureTask<ConvertedLine>(new Callable<ConvertedLine>() {
+		@Override
+		public ConvertedLine call() {
+			return null;
+		}
+	});
+	static {
+		((FutureTask<ConvertedLine>) END_OF_INPUT).run();
+	}
+
+	private final NameToStructure nts;
+	private final LineSource input;
+	private final NameToStructureConfig n2sConfig;
+
+	private final ExecutorService workers;
+	private final BlockingQueue<Future<ConvertedLine>> pendingLines;
+	private final Thread readerThread;
+	private volatile IOException readException;
+	private boolean finished = false;
+
+	/**
+	 * Creates a pipeline that will convert the names read from input
+	 * @param nts
+	 * @param input
+	 * @param n2sConfig
+	 * @param threads Number of threads to use for conversion, if 1 no additional threads are created
+	 */
+	NameConversionPipeline(NameToStructure nts, final BufferedReader input, NameToStructureConfig n2sConfig, int threads) {
+		this(nts, new LineSource() {
+			@Override
+			public String readLine() throws IOException {
+				return input.readLine();
+			}
+		}, n2sConfig, threads);
+	}
+
+	/**
+	 * Creates a pipeline that will convert the names returned by the iterator.
+	 * When multi-threaded the iterator is consumed by the pipeline's reader thread
+	 * @param nts
+	 * @param input
+	 * @param n2sConfig
+	 * @param threads Number of threads to use for conversion, if 1 no additional threads are created
+	 */
+	NameConversionPipeline(NameToStructure nts, final Iterator<String> input, NameToStructureConfig n2sConfig, int threads) {
+		this(nts, new LineSource() {
+			@Override
+			public String readLine() {
+				if (!input.hasNext()) {
+					return null;
+				}
+				String line = input.next();
+				if (line == null) {
+					throw new IllegalArgumentException("String given for name was null");
+				}
+				return line;
+			}
+		}, n2sConfig, threads);
+	}
+
+	private NameConversionPipeline(NameToStructure nts, LineSource input, NameToStructureConfig n2sConfig, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1 but was: " + threads);
+		}
+		this.nts = nts;
+		this.input = input;
+		this.n2sConfig = n2sConfig.clone();
+		if (threads == 1) {
+			workers = null;
+			pendingLines = null;
+			readerThread = null;
+		}
+		else {
+			workers = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("opsin-worker"));
+			pendingLines = new ArrayBlockingQueue<Future<ConvertedLine>>(threads * QUEUED_LINES_PER_THREAD);
+			readerThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					readLines();
+				}
+			}, "opsin-reader");
+			readerThread.setDaemon(true);
+			readerThread.start();
+		}
+	}
+
+	private void readLines() {
+		try {
+			String line;
+			while ((line = input.readLine()) != null) {
+				final String currentLine = line;
+				pendingLines.put(workers.submit(new Callable<ConvertedLine>() {
+					@Override
+					public ConvertedLine call() {
+						return convert(currentLine);
+					}
+				}));
+			}
+		}
+		catch (IOException e) {
+			readException = e;
+		}
+		catch (InterruptedException e) {
+			//pipeline has been closed
+			return;
+		}
+		catch (RejectedExecutionException e) {
+			//pipeline has been closed
+			return;
+		}
+		catch (final Throwable e) {
+			//e.g. from an iterator, rethrown to the consumer when it reaches this point of the input, rather than leaving it waiting indefinitely
+			FutureTask<ConvertedLine> failed = new FutureTask<ConvertedLine>(new Callable<ConvertedLine>() {
+				@Override
+				public ConvertedLine call() throws Exception {
+					if (e instanceof Exception) {
+						throw (Exception) e;
+					}
+					if (e instanceof Error) {
+						throw (Error) e;
+					}
+					throw new RuntimeException(e);
+				}
+			});
+			failed.run();
+			try {
+				pendingLines.put(failed);
+			} catch (InterruptedException e1) {
+				//pipeline has been closed
+			}
+			return;
+		}
+		try {
+			pendingLines.put(END_OF_INPUT);
+		} catch (InterruptedException e) {
+			//pipeline has been closed
+		}
+	}
+
+	private ConvertedLine convert(String line) {
+		int splitPoint = line.indexOf('\t');
+		String name = splitPoint >= 0 ? line.substring(0, splitPoint) : line;
+		return new ConvertedLine(line, splitPoint, nts.parseChemicalName(name, n2sConfig));
+	}
+
+	/**
+	 * Returns the next line and its result, waiting for it to be converted if necessary.
+	 * Returns null when there are no more lines
+	 * @return
+	 * @throws IOException If reading the input failed
+	 */
+	public ConvertedLine next() throws IOException {
+		if (finished) {
+			return null;
+		}
+		if (workers == null) {
+			String line = input.readLine();
+			if (line == null) {
+				finished = true;
+				return null;
+			}
+			return convert(line);
+		}
+		try {
+			ConvertedLine convertedLine = pendingLines.take().get();
+			if (convertedLine == null) {
+				finished = true;
+				if (readException != null) {
+					throw readException;
+				}
+			}
+			return convertedLine;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted whilst waiting for names to be converted", e);
+		}
+		catch (ExecutionException e) {
+			finished = true;
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * True if the result for the next line has already been computed,
+	 * hence {@link #next()} will not need to wait. Always false when the pipeline is single threaded
+	 * @return
+	 */
+	public boolean isNextReady() {
+		if (pendingLines == null) {
+			return false;
+		}
+		Future<ConvertedLine> head = pendingLines.peek();
+		return head != null && head.isDone();
+	}
+
+	/**
+	 * Stops the reader and worker threads. Does not close the underlying reader.
+	 * Any lines that have not yet been returned are discarded
+	 */
+	@Override
+	public void close() {
+		finished = true;
+		if (workers != null) {
+			readerThread.interrupt();
+			workers.shutdownNow();
+			pendingLines.clear();
+		}
+	}
+}
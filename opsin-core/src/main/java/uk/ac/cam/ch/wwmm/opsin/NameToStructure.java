@@ -10,10 +10,25 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
@@ -35,8 +50,16 @@ import com.ctc.wstx.api.WstxOutputProperties;
 import com.ctc.wstx.stax.WstxOutputFactory;
 
 import uk.ac.cam.ch.wwmm.opsin.OpsinResult.OPSIN_RESULT_STATUS;
+import uk.ac.cam.ch.wwmm.opsin.OpsinResult.OutputFormat;
 
 /** The "master" class, to turn a name into a structure.
+ * <p>
+ * NameToStructure is thread-safe: the instance returned by {@link #getInstance()} may be shared between threads
+ * and {@link #parseChemicalName(String, NameToStructureConfig)} may be called concurrently without external synchronisation.
+ * The grammar, token dictionaries, automata, word rules and suffix rules it holds are immutable once constructed;
+ * each call builds its own parse trees and fragments. Without an {@link OpsinResultCache} the returned {@link OpsinResult} is not shared with other calls.
+ * With one, the same OpsinResult is returned to every caller, and thread, that requests the name;
+ * this is safe as each output is generated at most once, whilst holding a lock on the structure, and then memoised.
  *
  * @author ptc24
  * @author dl387
@@ -46,21 +69,53 @@ public class NameToStructure {
 	private static final Logger LOG = Logger.getLogger(NameToStructure.class);
 	
 	/**Applies OPSIN's grammar to tokenise and assign meaning to tokens*/
-	private ParseRules parseRules;
+	private final ParseRules parseRules;
 
 	/**Parses a chemical name into one (or more in the case of ambiguity) parse trees*/
-	private Parser parser;
+	private final Parser parser;
 	
 	/**Which suffixes apply to what and what their effects are*/
-	private SuffixRules suffixRules;
+	private final SuffixRules suffixRules;
 
-	private static NameToStructure NTS_INSTANCE;
+	/**Retained so that overlays may share them*/
+	private final ResourceManager resourceManager;
+	private final WordRules wordRules;
 
-	public static synchronized NameToStructure getInstance() {
-		if (NTS_INSTANCE == null) {
-			NTS_INSTANCE = new NameToStructure();
+	private static volatile NameToStructure NTS_INSTANCE;
+
+	/**
+	 * When building a native image OPSIN's classes are initialised at build time (see META-INF/native-image),
+	 * hence this instance, and the resources it holds, are stored in the image rather than being loaded at startup.
+	 * Otherwise the instance is null.
+	 * The instance is not created by NameToStructure's own static initialiser as the threads that initialise it call NameToStructure's static methods
+	 */
+	private static class NativeImageInstance {
+		/**Set to "buildtime" by GraalVM whilst a native image is being built*/
+		private static final String NATIVE_IMAGE_CODE_PROPERTY = "org.graalvm.nativeimage.imagecode";
+
+		private static final NameToStructure INSTANCE = "buildtime".equals(System.getProperty(NATIVE_IMAGE_CODE_PROPERTY)) ? new NameToStructure() : null;
+	}
+
+	/**
+	 * Returns the shared NameToStructure instance, initialising it if this has not already occurred.
+	 * The instance is thread-safe.
+	 * @return NameToStructure
+	 */
+	public static NameToStructure getInstance() {
+		NameToStructure instance = NTS_INSTANCE;
+		if (instance == null) {
+			synchronized (NameToStructure.class) {
+				instance = NTS_INSTANCE;
+				if (instance == null) {
+					instance = NativeImageInstance.INSTANCE;
+					if (instance == null) {
+						instance = new NameToStructure();
+					}
+					NTS_INSTANCE = instance;
+				}
+			}
 		}
-		return NTS_INSTANCE;
+		return instance;
 	}
 	
 	/**
@@ -90,21 +145,103 @@ public class NameToStructure {
 	 */
 	private NameToStructure() {
 		LOG.debug("Initialising OPSIN... ");
+		long start = System.nanoTime();
 		try {
 			/*Initialise all of OPSIN's classes. Some classes are injected as dependencies into subsequent classes*/
 
 			//Allows retrieving of OPSIN resources
-			ResourceGetter resourceGetter = new ResourceGetter("uk/ac/cam/ch/wwmm/opsin/resources/");
-			ResourceManager resourceManager = new ResourceManager(resourceGetter);
-			WordRules wordRules = new WordRules(resourceGetter);
+			final ResourceGetter resourceGetter = new ResourceGetter("uk/ac/cam/ch/wwmm/opsin/resources/");
+			//An image of the resources is generated whilst building OPSIN, allowing them to be loaded without parsing the XML resources
+			ResourceImage image = ResourceImage.load(resourceGetter);
+			if (image != null) {
+				long resourceManagerStart = System.nanoTime();
+				resourceManager = new ResourceManager(resourceGetter, image, null);
+				logInitialisationTime("ResourceManager", resourceManagerStart);
+				this.wordRules = image.getWordRules();
+				this.suffixRules = image.getSuffixRules();
+			}
+			else {
+				//the word rules, suffix rules and ResourceManager are independent, hence are initialised concurrently.
+				//The ResourceManager also uses the executor to read its XML resources concurrently
+				ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory("opsin-init"));
+				try {
+					Future<WordRules> wordRules = executor.submit(new Callable<WordRules>() {
+						@Override
+						public WordRules call() throws IOException {
+							long start = System.nanoTime();
+							WordRules wordRules = new WordRules(resourceGetter);
+							logInitialisationTime("WordRules", start);
+							return wordRules;
+						}
+					});
+					Future<SuffixRules> suffixRules = executor.submit(new Callable<SuffixRules>() {
+						@Override
+						public SuffixRules call() throws IOException {
+							long start = System.nanoTime();
+							SuffixRules suffixRules = new SuffixRules(resourceGetter);
+							logInitialisationTime("SuffixRules", start);
+							return suffixRules;
+						}
+					});
+					long resourceManagerStart = System.nanoTime();
+					resourceManager = new ResourceManager(resourceGetter, null, executor);
+					logInitialisationTime("ResourceManager", resourceManagerStart);
+					this.wordRules = wordRules.get();
+					this.suffixRules = suffixRules.get();
+				} finally {
+					executor.shutdownNow();
+				}
+			}
+			parseRules = new ParseRules(resourceManager);
+			parser = new Parser(wordRules, new Tokeniser(parseRules), resourceManager);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new NameToStructureException("Interrupted whilst initialising OPSIN", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw new NameToStructureException(cause.getMessage(), cause);
+		} catch (Exception e) {
+			throw new NameToStructureException(e.getMessage(), e);
+		}
+		logInitialisationTime("OPSIN", start);
+	}
+
+	/**Initialises a name-to-structure converter that layers the overlay's resources over those of the base.
+	 * 
+	 * @throws NameToStructureException If the overlay's resources are malformed
+	 */
+	private NameToStructure(NameToStructure base, OpsinResourceOverlay overlay) {
+		try {
+			resourceManager = new ResourceManager(base.resourceManager, overlay);
+			wordRules = overlay.hasFile(OpsinResourceOverlay.WORD_RULES_FILE) ? new WordRules(base.wordRules, overlay) : base.wordRules;
+			suffixRules = overlay.hasFile(OpsinResourceOverlay.SUFFIX_RULES_FILE) || overlay.hasFile(OpsinResourceOverlay.SUFFIX_APPLICABILITY_FILE) ?
+					new SuffixRules(base.suffixRules, overlay) : base.suffixRules;
 			parseRules = new ParseRules(resourceManager);
-			Tokeniser tokeniser = new Tokeniser(parseRules);
-			parser = new Parser(wordRules, tokeniser, resourceManager);
-			suffixRules = new SuffixRules(resourceGetter);
+			parser = new Parser(wordRules, new Tokeniser(parseRules), resourceManager);
 		} catch (Exception e) {
 			throw new NameToStructureException(e.getMessage(), e);
 		}
-		LOG.debug("OPSIN initialised");
+	}
+
+	/**
+	 * Returns a NameToStructure that uses the token lists, word rules and suffix rules of the overlay in addition to those of this NameToStructure.
+	 * OPSIN's grammar, automata and dictionaries of tokens are shared with this NameToStructure, rather than copied,
+	 * hence each overlay only requires the memory of its own resources. This NameToStructure is not modified.
+	 * Overlaying a NameToStructure that was itself returned by this method layers both overlays over the same shared resources.
+	 * <p>
+	 * The returned NameToStructure is thread-safe. An {@link OpsinResultCache} may be shared with this NameToStructure as results are cached per NameToStructure
+	 * @param overlay
+	 * @return NameToStructure
+	 * @throws NameToStructureException If the overlay's resources are malformed
+	 */
+	public NameToStructure withOverlay(OpsinResourceOverlay overlay) {
+		return new NameToStructure(this, overlay);
+	}
+
+	private static void logInitialisationTime(String component, long start) {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug(component + " initialised in " + (System.nanoTime() - start) / 1000000 + " ms");
+		}
 	}
 
 	/**
@@ -162,13 +299,73 @@ public class NameToStructure {
 			throw new IllegalArgumentException("String given for name was null");
 		}
 		n2sConfig = n2sConfig.clone();//avoid n2sconfig being modified mid name processing
+		long timeLimit = n2sConfig.getTimeLimit();
+		if (timeLimit == 0) {
+			return interpretName(name, n2sConfig);
+		}
+		ProcessingTimeLimit.start(timeLimit);
+		try {
+			return interpretName(name, n2sConfig);
+		}
+		catch (TimeLimitExceededException e) {
+			LOG.debug(e.getMessage());
+			return new OpsinResult(null, OPSIN_RESULT_STATUS.FAILURE, e.getMessage(), name);
+		}
+		finally {
+			ProcessingTimeLimit.end();
+		}
+	}
 
-		List<Element> parses;
+	private OpsinResult interpretName(String name, NameToStructureConfig n2sConfig) {
+		String modifiedName;
 		try {
 			LOG.debug(name);
-			String modifiedName = PreProcessor.preProcess(name);
+			modifiedName = PreProcessor.preProcess(name);
+		} catch (Exception e) {
+			if(LOG.isDebugEnabled()) {
+				LOG.debug(e.getMessage(), e);
+			}
+			String message = e.getMessage() != null ? e.getMessage() : "exception with null message";
+			return new OpsinResult(null, OPSIN_RESULT_STATUS.FAILURE, message, name);
+		}
+		OpsinResultCache cache = n2sConfig.getResultCache();
+		if (cache == null) {
+			return interpretPreProcessedName(name, modifiedName, n2sConfig);
+		}
+		OpsinResult result = cache.get(this, modifiedName, n2sConfig);
+		if (result == null) {
+			result = interpretPreProcessedName(name, modifiedName, n2sConfig);
+			cache.put(this, modifiedName, n2sConfig, result);
+		}
+		else if (!result.getChemicalName().equals(name)) {
+			//differed from the cached name only in ways removed by pre-processing
+			if (result.isStructureDiscarded()) {
+				//the name is embedded in the CML, which can no longer be regenerated from the cached result
+				result = interpretPreProcessedName(name, modifiedName, n2sConfig);
+			}
+			else {
+				result = result.withChemicalName(name);
+			}
+		}
+		return result;
+	}
+
+	private OpsinResult interpretPreProcessedName(String name, String modifiedName, NameToStructureConfig n2sConfig) {
+		OpsinResult result = parsePreProcessedName(name, modifiedName, n2sConfig);
+		Set<OutputFormat> precomputedOutputFormats = n2sConfig.getPrecomputedOutputFormats();
+		if (precomputedOutputFormats != null && result.getStatus() != OPSIN_RESULT_STATUS.FAILURE) {
+			result.precomputeOutputsAndDiscardStructure(precomputedOutputFormats);
+		}
+		return result;
+	}
+
+	private OpsinResult parsePreProcessedName(String name, String modifiedName, NameToStructureConfig n2sConfig) {
+		List<Element> parses;
+		try {
 			parses = parser.parse(n2sConfig, modifiedName);
 			Collections.sort(parses, new SortParses());//fewer tokens preferred
+		} catch (TimeLimitExceededException e) {
+			throw e;
 		} catch (Exception e) {
 			if(LOG.isDebugEnabled()) {
 				LOG.debug(e.getMessage(), e);
@@ -180,6 +377,7 @@ public class NameToStructure {
 		Fragment fragGeneratedWithWarning = null;
 		List<OpsinWarning> warnings = Collections.emptyList();
 		for(Element parse : parses) {
+			ProcessingTimeLimit.check();
 			try {
 				if (LOG.isDebugEnabled()) {
 					LOG.debug(parse.toXML());
@@ -208,6 +406,8 @@ public class NameToStructure {
 					fragGeneratedWithWarning = frag;
 					warnings = state.getWarnings();
 				}
+			} catch (TimeLimitExceededException e) {
+				throw e;
 			} catch (Exception e) {
 				if (reasonForFailure.length() == 0) {
 					reasonForFailure = e.getMessage() != null ? e.getMessage() : "exception with null message";
@@ -222,7 +422,170 @@ public class NameToStructure {
 		}
 		return new OpsinResult(null, OPSIN_RESULT_STATUS.FAILURE, reasonForFailure, name);
 	}
-	
+
+	/**Parses a collection of chemical names, using as many threads as there are available processors.
+	 * The returned list contains one OpsinResult per name, in the iteration order of the input collection.
+	 * Each OpsinResult is identical to what would have been obtained by calling {@link #parseChemicalName(String, NameToStructureConfig)} on that name
+	 *
+	 * @param names The chemical names to parse.
+	 * @param n2sConfig Options to control how OPSIN interprets the names.
+	 * @return List of OpsinResult in the same order as the input names
+	 */
+	public List<OpsinResult> parseChemicalNames(Collection<String> names, NameToStructureConfig n2sConfig) {
+		return parseChemicalNames(names, n2sConfig, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**Parses a collection of chemical names using the given number of threads.
+	 * The returned list contains one OpsinResult per name, in the iteration order of the input collection.
+	 * Each OpsinResult is identical to what would have been obtained by calling {@link #parseChemicalName(String, NameToStructureConfig)} on that name
+	 *
+	 * @param names The chemical names to parse.
+	 * @param n2sConfig Options to control how OPSIN interprets the names.
+	 * @param threads The number of threads to use, a value of 1 parses the names on the calling thread
+	 * @return List of OpsinResult in the same order as the input names
+	 */
+	public List<OpsinResult> parseChemicalNames(Collection<String> names, NameToStructureConfig n2sConfig, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1 but was: " + threads);
+		}
+		String[] nameArray = toNameArray(names);
+		threads = Math.min(threads, nameArray.length);
+		if (threads <= 1) {
+			return parseChemicalNamesSerially(nameArray, n2sConfig);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("opsin-worker"));
+		try {
+			return parseChemicalNames(nameArray, n2sConfig, executor, threads);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**Parses a collection of chemical names using the given executor.
+	 * The executor is not shutdown by this method and hence may be reused between calls.
+	 * The returned list contains one OpsinResult per name, in the iteration order of the input collection.
+	 * Each OpsinResult is identical to what would have been obtained by calling {@link #parseChemicalName(String, NameToStructureConfig)} on that name
+	 *
+	 * @param names The chemical names to parse.
+	 * @param n2sConfig Options to control how OPSIN interprets the names.
+	 * @param executor The executor on which names will be parsed
+	 * @return List of OpsinResult in the same order as the input names
+	 */
+	public List<OpsinResult> parseChemicalNames(Collection<String> names, NameToStructureConfig n2sConfig, ExecutorService executor) {
+		String[] nameArray = toNameArray(names);
+		int parallelism = Math.min(Runtime.getRuntime().availableProcessors(), nameArray.length);
+		if (parallelism <= 1) {
+			return parseChemicalNamesSerially(nameArray, n2sConfig);
+		}
+		return parseChemicalNames(nameArray, n2sConfig, executor, parallelism);
+	}
+
+	private static String[] toNameArray(Collection<String> names) {
+		String[] nameArray = names.toArray(new String[names.size()]);
+		for (String name : nameArray) {
+			if (name == null) {
+				throw new IllegalArgumentException("String given for name was null");
+			}
+		}
+		return nameArray;
+	}
+
+	private List<OpsinResult> parseChemicalNamesSerially(String[] names, NameToStructureConfig n2sConfig) {
+		List<OpsinResult> results = new ArrayList<OpsinResult>(names.length);
+		for (String name : names) {
+			results.add(parseChemicalName(name, n2sConfig));
+		}
+		return results;
+	}
+
+	/**
+	 * Splits the names between the given number of tasks.
+	 * Each task claims the next unparsed name, hence slow names do not hold up the other tasks,
+	 * and stores its result at the name's index so that the input order is preserved.
+	 */
+	private List<OpsinResult> parseChemicalNames(final String[] names, NameToStructureConfig n2sConfig, ExecutorService executor, int tasks) {
+		final NameToStructureConfig config = n2sConfig.clone();
+		final OpsinResult[] results = new OpsinResult[names.length];
+		final AtomicInteger nextIndex = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<Future<?>>(tasks);
+		for (int i = 0; i < tasks; i++) {
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					int idx;
+					while ((idx = nextIndex.getAndIncrement()) < names.length) {
+						results[idx] = parseChemicalName(names[idx], config);
+					}
+				}
+			}));
+		}
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			nextIndex.set(names.length);//stop claiming further names
+			throw new NameToStructureException("Interrupted whilst parsing chemical names", e);
+		}
+		catch (ExecutionException e) {
+			nextIndex.set(names.length);
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new NameToStructureException(cause.getMessage(), cause);
+		}
+		return new ArrayList<OpsinResult>(Arrays.asList(results));
+	}
+
+	/**Lazily converts the names read from the given reader, one name per line.
+	 * Lines of the form name&lt;TAB&gt;payload are supported, only the name is converted.
+	 * Results are returned in input order. Reading is performed ahead of consumption by at most a fixed number of lines per thread,
+	 * hence arbitrarily large inputs may be processed with bounded memory.
+	 * The returned pipeline must be closed, closing it does not close the reader.
+	 *
+	 * @param input The source of names
+	 * @param n2sConfig Options to control how OPSIN interprets the names.
+	 * @param threads The number of threads to use, a value of 1 converts each name on the consuming thread when it is requested
+	 * @return a pipeline from which results may be retrieved
+	 */
+	public NameConversionPipeline convertNames(Reader input, NameToStructureConfig n2sConfig, int threads) {
+		BufferedReader reader = input instanceof BufferedReader ? (BufferedReader) input : new BufferedReader(input);
+		return new NameConversionPipeline(this, reader, n2sConfig, threads);
+	}
+
+	/**Lazily converts the names read from the given UTF-8 encoded stream, one name per line.
+	 * See {@link #convertNames(Reader, NameToStructureConfig, int)}
+	 *
+	 * @param input The source of names
+	 * @param n2sConfig Options to control how OPSIN interprets the names.
+	 * @param threads The number of threads to use, a value of 1 converts each name on the consuming thread when it is requested
+	 * @return a pipeline from which results may be retrieved
+	 */
+	public NameConversionPipeline convertNames(InputStream input, NameToStructureConfig n2sConfig, int threads) {
+		return convertNames(new InputStreamReader(input, Charset.forName("UTF-8")), n2sConfig, threads);
+	}
+
+	/**Lazily converts the names returned by the given iterator.
+	 * Names of the form name&lt;TAB&gt;payload are supported, only the name is converted.
+	 * When more than one thread is used the iterator is consumed by a separate reading thread.
+	 * See {@link #convertNames(Reader, NameToStructureConfig, int)}
+	 *
+	 * @param names The names to convert
+	 * @param n2sConfig Options to control how OPSIN interprets the names.
+	 * @param threads The number of threads to use, a value of 1 converts each name on the consuming thread when it is requested
+	 * @return a pipeline from which results may be retrieved
+	 */
+	public NameConversionPipeline convertNames(Iterator<String> names, NameToStructureConfig n2sConfig, int threads) {
+		return new NameConversionPipeline(this, names, n2sConfig, threads);
+	}
+
 	/**
 	 * Returns an OPSIN parser
 	 * This can be used to determine whether a word can be interpreted as being part of a chemical name.
@@ -235,7 +598,19 @@ public class NameToStructure {
 		return n2s.parseRules;
 	}
 	
-	private enum InchiType{
+	/**
+	 * Starts building the resources used for detailed failure analysis, see {@link NameToStructureConfig#setDetailedFailureAnalysis(boolean)},
+	 * on a background thread. Otherwise these are built when a name first fails to parse with detailed failure analysis enabled.
+	 * The resources are only built once, and are shared by all threads
+	 */
+	public void prepareDetailedFailureAnalysisInBackground() {
+		parser.prepareReverseParseRulesInBackground();
+	}
+
+	private enum OutputType{
+		cml,
+		smiles,
+		extendedSmiles,
 		inchiWithFixedH,
 		stdInchi,
 		stdInchiKey
@@ -265,6 +640,15 @@ public class NameToStructure {
 		}
 
 		NameToStructureConfig n2sconfig = generateOpsinConfigObjectFromCmd(cmd);
+		if (n2sconfig.isDetailedFailureAnalysis()) {
+			NameToStructure.getInstance().prepareDetailedFailureAnalysisInBackground();
+		}
+		String outputType = cmd.getOptionValue("o", "smi");
+		boolean outputName = cmd.hasOption("n");
+		if (cmd.hasOption("serve")) {
+			serve(cmd, n2sconfig, outputType, outputName);
+			return;
+		}
 		
 		InputStream input;
 		OutputStream output;
@@ -288,38 +672,118 @@ public class NameToStructure {
 			displayUsage(options);
 		}
 
-		String outputType = cmd.getOptionValue("o", "smi");
-		boolean outputName = cmd.hasOption("n");
-		if (outputType.equalsIgnoreCase("cml")) {
-			interactiveCmlOutput(input, output, n2sconfig);
+		int threads = getThreadsFromCmd(cmd);
+		if (!isRecognisedOutputType(outputType)) {
+			printUnrecognisedOutputType(outputType);
+			System.exit(1);
+		}
+		convertNames(input, output, n2sconfig, outputType, outputName, threads);
+		if (unparsedArgs.length == 1) {
+			input.close();
 		}
-		else if (outputType.equalsIgnoreCase("smi") || outputType.equalsIgnoreCase("smiles")) {
-			interactiveSmilesOutput(input, output, n2sconfig, false, outputName);
+		else if (unparsedArgs.length == 2) {
+			input.close();
+			output.close();
 		}
-		else if (outputType.equalsIgnoreCase("inchi")) {
-			interactiveInchiOutput(input, output, n2sconfig, InchiType.inchiWithFixedH, outputName);
+	}
+
+	private static void serve(CommandLine cmd, NameToStructureConfig n2sconfig, String outputType, boolean outputName) throws IOException {
+		if (!isRecognisedOutputType(outputType)) {
+			printUnrecognisedOutputType(outputType);
+			System.exit(1);
 		}
-		else if (outputType.equalsIgnoreCase("stdinchi")) {
-			interactiveInchiOutput(input, output, n2sconfig, InchiType.stdInchi, outputName);
+		if (cmd.getArgs().length > 0) {
+			System.err.println("Input and output files cannot be specified when serving");
+			System.exit(1);
 		}
-		else if (outputType.equalsIgnoreCase("stdinchikey")) {
-			interactiveInchiOutput(input, output, n2sconfig, InchiType.stdInchiKey, outputName);
+		String portStr = cmd.getOptionValue("serve", String.valueOf(NameToStructureServer.DEFAULT_PORT));
+		int port = -1;
+		try {
+			port = Integer.parseInt(portStr);
 		}
-		else if (outputType.equalsIgnoreCase("extendedsmi") || outputType.equalsIgnoreCase("extendedsmiles") || 
-				outputType.equalsIgnoreCase("cxsmi") || outputType.equalsIgnoreCase("cxsmiles")) {
-			interactiveSmilesOutput(input, output, n2sconfig, true, outputName);
+		catch (NumberFormatException e) {
+			//handled below
 		}
-		else{
-			System.err.println("Unrecognised output format: " + outputType);
-			System.err.println("Expected output types are \"cml\", \"smi\", \"inchi\", \"stdinchi\" and \"stdinchikey\"");
+		if (port < 0 || port > 65535) {
+			System.err.println("Port should be an integer between 0 and 65535, but was: " + portStr);
 			System.exit(1);
 		}
-		if (unparsedArgs.length == 1) {
-			input.close();
+		int threads = cmd.hasOption("t") ? getThreadsFromCmd(cmd) : Runtime.getRuntime().availableProcessors();
+		NameToStructure.getInstance();//initialise before accepting requests
+		NameToStructureServer server = new NameToStructureServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threads, n2sconfig, outputType, outputName);
+		server.start();
+		System.err.println("OPSIN is accepting names at http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/");
+	}
+
+	static boolean isRecognisedOutputType(String outputType) {
+		return parseOutputTypes(outputType) != null;
+	}
+
+	/**
+	 * Converts a comma separated list of output formats, as given to the -o flag, to OutputTypes.
+	 * Returns null if a format is unrecognised, or if CML is combined with other formats
+	 * @param outputTypeStr
+	 * @return
+	 */
+	private static List<OutputType> parseOutputTypes(String outputTypeStr) {
+		List<OutputType> outputTypes = new ArrayList<OutputType>();
+		for (String outputType : outputTypeStr.split(",")) {
+			outputType = outputType.trim();
+			if (outputType.equalsIgnoreCase("cml")) {
+				outputTypes.add(OutputType.cml);
+			}
+			else if (outputType.equalsIgnoreCase("smi") || outputType.equalsIgnoreCase("smiles")) {
+				outputTypes.add(OutputType.smiles);
+			}
+			else if (outputType.equalsIgnoreCase("inchi")) {
+				outputTypes.add(OutputType.inchiWithFixedH);
+			}
+			else if (outputType.equalsIgnoreCase("stdinchi")) {
+				outputTypes.add(OutputType.stdInchi);
+			}
+			else if (outputType.equalsIgnoreCase("stdinchikey")) {
+				outputTypes.add(OutputType.stdInchiKey);
+			}
+			else if (outputType.equalsIgnoreCase("extendedsmi") || outputType.equalsIgnoreCase("extendedsmiles") || 
+					outputType.equalsIgnoreCase("cxsmi") || outputType.equalsIgnoreCase("cxsmiles")) {
+				outputTypes.add(OutputType.extendedSmiles);
+			}
+			else {
+				return null;
+			}
 		}
-		else if (unparsedArgs.length == 2) {
-			input.close();
-			output.close();
+		if (outputTypes.size() > 1 && outputTypes.contains(OutputType.cml)) {
+			return null;
+		}
+		return outputTypes;
+	}
+
+	private static void printUnrecognisedOutputType(String outputType) {
+		System.err.println("Unrecognised output format: " + outputType);
+		System.err.println("Expected output types are \"cml\", \"smi\", \"extendedsmi\", \"inchi\", \"stdinchi\" and \"stdinchikey\"");
+		System.err.println("Output types other than \"cml\" may be combined as a comma separated list");
+	}
+
+	/**
+	 * Converts the newline delimited names read from input, writing them in the given output format(s) to out
+	 * @param input
+	 * @param output
+	 * @param n2sconfig
+	 * @param outputType A format, or comma separated formats, for which {@link #isRecognisedOutputType(String)} is true
+	 * @param outputName
+	 * @param threads
+	 * @throws Exception
+	 */
+	static void convertNames(InputStream input, OutputStream output, NameToStructureConfig n2sconfig, String outputType, boolean outputName, int threads) throws Exception {
+		List<OutputType> outputTypes = parseOutputTypes(outputType);
+		if (outputTypes == null) {
+			throw new IllegalArgumentException("Unrecognised output format: " + outputType);
+		}
+		if (outputTypes.get(0) == OutputType.cml) {
+			interactiveCmlOutput(input, output, n2sconfig, threads);
+		}
+		else {
+			interactiveTextOutput(input, output, n2sconfig, outputTypes, outputName, threads);
 		}
 	}
 
@@ -346,7 +810,8 @@ public class NameToStructure {
 		outputOptionsDesc.append("extendedsmi for Extended SMILES").append(OpsinTools.NEWLINE);
 		outputOptionsDesc.append("inchi for InChI (with FixedH)").append(OpsinTools.NEWLINE);
 		outputOptionsDesc.append("stdinchi for StdInChI").append(OpsinTools.NEWLINE);
-		outputOptionsDesc.append("stdinchikey for StdInChIKey");
+		outputOptionsDesc.append("stdinchikey for StdInChIKey").append(OpsinTools.NEWLINE);
+		outputOptionsDesc.append("Formats other than cml may be combined e.g. smi,stdinchi,stdinchikey, giving a tab separated column per format");
 		outputBuilder.desc(outputOptionsDesc.toString());
 		options.addOption(outputBuilder.build());
 		options.addOption("h", "help", false, "Displays the allowed command line flags");
@@ -358,9 +823,42 @@ public class NameToStructure {
 		options.addOption("r", "allowRadicals", false, "Enables interpretation of radicals");
 		options.addOption("s", "allowUninterpretableStereo", false, "Allows stereochemistry uninterpretable by OPSIN to be ignored");
 		options.addOption("w", "wildcardRadicals", false, "Radicals are output as wildcard atoms");
+		
+		Builder threadsBuilder = Option.builder("t");
+		threadsBuilder.longOpt("threads");
+		threadsBuilder.hasArg();
+		threadsBuilder.argName("N");
+		threadsBuilder.desc("Number of threads used to convert names (default 1). Output order is unaffected");
+		options.addOption(threadsBuilder.build());
+
+		Builder serveBuilder = Option.builder();
+		serveBuilder.longOpt("serve");
+		serveBuilder.hasArg();
+		serveBuilder.optionalArg(true);
+		serveBuilder.argName("port");
+		serveBuilder.desc("Rather than reading names from a file/stdin, accepts HTTP POST requests on the given local port (default " + NameToStructureServer.DEFAULT_PORT + ")" + OpsinTools.NEWLINE +
+				"The request body should contain newline delimited names, the output format may be given by a format query parameter e.g. /?format=stdinchikey" + OpsinTools.NEWLINE +
+				"Requests are processed concurrently using the number of threads given by --threads (default number of processors)");
+		options.addOption(serveBuilder.build());
 		return options;
 	}
 	
+	private static int getThreadsFromCmd(CommandLine cmd) {
+		String threadsStr = cmd.getOptionValue("t", "1");
+		int threads = 0;
+		try {
+			threads = Integer.parseInt(threadsStr);
+		}
+		catch (NumberFormatException e) {
+			//handled below
+		}
+		if (threads < 1) {
+			System.err.println("Number of threads should be a positive integer, but was: " + threadsStr);
+			System.exit(1);
+		}
+		return threads;
+	}
+	
 	/**
 	 * Uses the command line parameters to configure a new NameToStructureConfig
 	 * @param cmd
@@ -376,9 +874,8 @@ public class NameToStructure {
 		return n2sconfig;
 	}
 
-	private static void interactiveCmlOutput(InputStream input, OutputStream out, NameToStructureConfig n2sconfig) throws IOException, XMLStreamException {
+	private static void interactiveCmlOutput(InputStream input, OutputStream out, NameToStructureConfig n2sconfig, int threads) throws IOException, XMLStreamException {
 		NameToStructure nts = NameToStructure.getInstance();
-		BufferedReader inputReader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
 		XMLOutputFactory factory = new WstxOutputFactory();
 		factory.setProperty(WstxOutputProperties.P_OUTPUT_ESCAPE_CR, false);
 		XMLStreamWriter writer = factory.createXMLStreamWriter(out, "UTF-8");
@@ -387,90 +884,117 @@ public class NameToStructure {
 		CMLWriter cmlWriter = new CMLWriter(writer);
 		cmlWriter.writeCmlStart();
 		int id = 1;
-		String line;
-		while((line =inputReader.readLine()) != null) {
-			int splitPoint = line.indexOf('\t');
-			String name = splitPoint >=0 ? line.substring(0, splitPoint) : line;
-			OpsinResult result = nts.parseChemicalName(name, n2sconfig);
-			Fragment structure = result.getStructure();
-			cmlWriter.writeMolecule(structure, name, id++);
-			writer.flush();
-			if(structure == null) {
-				System.err.println(result.getMessage());
+		NameConversionPipeline pipeline = nts.convertNames(input, n2sconfig, threads);
+		try {
+			NameConversionPipeline.ConvertedLine convertedLine;
+			while((convertedLine = pipeline.next()) != null) {
+				OpsinResult result = convertedLine.getResult();
+				Fragment structure = result.getStructure();
+				cmlWriter.writeMolecule(structure, result.getChemicalName(), id++);
+				if (!pipeline.isNextReady()) {
+					writer.flush();
+				}
+				if(structure == null) {
+					System.err.println(result.getMessage());
+				}
 			}
 		}
+		finally {
+			pipeline.close();
+		}
 		cmlWriter.writeCmlEnd();
 		writer.writeEndDocument();
 		writer.flush();
 		writer.close();
 	}
 	
-	private static void interactiveSmilesOutput(InputStream input, OutputStream out, NameToStructureConfig n2sconfig, boolean extendedSmiles, boolean outputName) throws IOException {
+	/**
+	 * Writes a line per name, each line contains a tab separated column for each of the given outputTypes
+	 * and, if outputName is true, the input line.
+	 * Each name is only parsed once, regardless of the number of outputTypes
+	 */
+	private static void interactiveTextOutput(InputStream input, OutputStream out, NameToStructureConfig n2sconfig, List<OutputType> outputTypes, boolean outputName, int threads) throws Exception {
 		NameToStructure nts = NameToStructure.getInstance();
-		BufferedReader inputReader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
 		BufferedWriter outputWriter = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
-		String line;
-		while((line =inputReader.readLine()) != null) {
-			int splitPoint = line.indexOf('\t');
-			String name = splitPoint >=0 ? line.substring(0, splitPoint) : line;
-			OpsinResult result = nts.parseChemicalName(name, n2sconfig);
-			String output = extendedSmiles ? result.getExtendedSmiles() : result.getSmiles();
-			if(output == null) {
-				System.err.println(result.getMessage());
-			} else {
-				outputWriter.write(output);
-			}
-			if (outputName) {
-				outputWriter.write('\t');
-				outputWriter.write(line);
+		Method inchiMethod = null;
+		Method stdInchiMethod = null;
+		Method stdInchiKeyMethod = null;
+		if (outputTypes.contains(OutputType.inchiWithFixedH) || outputTypes.contains(OutputType.stdInchi) || outputTypes.contains(OutputType.stdInchiKey)) {
+			Class<?> c;
+			try {
+				c = Class.forName("uk.ac.cam.ch.wwmm.opsin.NameToInchi");
+			} catch (ClassNotFoundException e) {
+				System.err.println("Could not initialise NameToInChI module. Is it on your classpath?");
+				throw new RuntimeException(e);
 			}
-			outputWriter.newLine();
-			outputWriter.flush();
+			inchiMethod = c.getMethod("convertResultToInChI", new Class[]{OpsinResult.class});
+			stdInchiMethod = c.getMethod("convertResultToStdInChI", new Class[]{OpsinResult.class});
+			stdInchiKeyMethod = c.getMethod("convertStdInChIToStdInChIKey", new Class[]{String.class});
 		}
-	}
 
-	private static void interactiveInchiOutput(InputStream input, OutputStream out, NameToStructureConfig n2sconfig, InchiType inchiType, boolean outputName) throws Exception {
-		NameToStructure nts = NameToStructure.getInstance();
-		BufferedReader inputReader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
-		BufferedWriter outputWriter = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
-		Class<?> c;
+		NameConversionPipeline pipeline = nts.convertNames(input, n2sconfig, threads);
 		try {
-			c = Class.forName("uk.ac.cam.ch.wwmm.opsin.NameToInchi");
-		} catch (ClassNotFoundException e) {
-			System.err.println("Could not initialise NameToInChI module. Is it on your classpath?");
-			throw new RuntimeException(e);
-		}
-		Method m;
-		switch (inchiType) {
-		case inchiWithFixedH:
-			m = c.getMethod("convertResultToInChI", new Class[]{OpsinResult.class});
-			break;
-		case stdInchi:
-			m = c.getMethod("convertResultToStdInChI", new Class[]{OpsinResult.class});
-			break;
-		case stdInchiKey:
-			m = c.getMethod("convertResultToStdInChIKey", new Class[]{OpsinResult.class});
-			break;
-		default :
-			throw new IllegalArgumentException("Unexepected enum value: " + inchiType);
-		}
-
-		String line;
-		while((line =inputReader.readLine()) != null) {
-			int splitPoint = line.indexOf('\t');
-			String name = splitPoint >=0 ? line.substring(0, splitPoint) : line;
-			OpsinResult result = nts.parseChemicalName(name, n2sconfig);
-			String output = (String) m.invoke(null, result);
-			if(output == null) {
-				System.err.println(result.getMessage());
-			} else {
-				outputWriter.write(output);
-			}
-			if (outputName) {
-				outputWriter.write('\t');
-				outputWriter.write(line);
+			NameConversionPipeline.ConvertedLine convertedLine;
+			while((convertedLine = pipeline.next()) != null) {
+				OpsinResult result = convertedLine.getResult();
+				boolean failed = false;
+				String stdInchi = null;
+				boolean stdInchiGenerated = false;
+				for (int i = 0; i < outputTypes.size(); i++) {
+					OutputType outputType = outputTypes.get(i);
+					String output;
+					switch (outputType) {
+					case smiles:
+						output = result.getSmiles();
+						break;
+					case extendedSmiles:
+						output = result.getExtendedSmiles();
+						break;
+					case inchiWithFixedH:
+						output = (String) inchiMethod.invoke(null, result);
+						break;
+					case stdInchi:
+					case stdInchiKey:
+						//the key is derived from the StdInChI, hence when both are requested the StdInChI is only generated once
+						if (!stdInchiGenerated) {
+							stdInchi = (String) stdInchiMethod.invoke(null, result);
+							stdInchiGenerated = true;
+						}
+						if (outputType == OutputType.stdInchi) {
+							output = stdInchi;
+						}
+						else {
+							output = stdInchi != null ? (String) stdInchiKeyMethod.invoke(null, stdInchi) : null;
+						}
+						break;
+					default :
+						throw new IllegalArgumentException("Unexepected enum value: " + outputType);
+					}
+					if (i > 0) {
+						outputWriter.write('\t');
+					}
+					if (output == null) {
+						failed = true;
+					}
+					else {
+						outputWriter.write(output);
+					}
+				}
+				if(failed) {
+					System.err.println(result.getMessage());
+				}
+				if (outputName) {
+					outputWriter.write('\t');
+					outputWriter.write(convertedLine.getLine());
+				}
+				outputWriter.newLine();
+				if (!pipeline.isNextReady()) {
+					outputWriter.flush();
+				}
 			}
-			outputWriter.newLine();
+		}
+		finally {
+			pipeline.close();
 			outputWriter.flush();
 		}
 	}
@@ -1,5 +1,11 @@
 package uk.ac.cam.ch.wwmm.opsin;
 
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import uk.ac.cam.ch.wwmm.opsin.OpsinResult.OutputFormat;
+
 /**
  * Allows OPSIN to be configured e.g. enable processing of radicals
  * Example usage:
@@ -18,6 +24,9 @@ public class NameToStructureConfig implements Cloneable {
 	private boolean detailedFailureAnalysis = false;
 	private boolean interpretAcidsWithoutTheWordAcid = false;
 	private boolean warnRatherThanFailOnUninterpretableStereochemistry = false;
+	private OpsinResultCache resultCache = null;
+	private Set<OutputFormat> precomputedOutputFormats = null;
+	private long timeLimit = 0;
 
 	/**
 	 * Constructs a NameToStructureConfig with default settings:
@@ -26,6 +35,9 @@ public class NameToStructureConfig implements Cloneable {
 	 * detailedFailureAnalysis = false
 	 * interpretAcidsWithoutTheWordAcid = false
 	 * warnRatherThanFailOnUninterpretableStereochemistry = false
+	 * resultCache = null
+	 * precomputedOutputFormats = null
+	 * timeLimit = 0
 	 */
 	public NameToStructureConfig() {
 	}
@@ -114,6 +126,64 @@ public class NameToStructureConfig implements Cloneable {
 		this.warnRatherThanFailOnUninterpretableStereochemistry = warnRatherThanFailOnUninterpretableStereochemistry;
 	}
 
+	/**
+	 * The cache used to store and retrieve OpsinResults, or null if results are not cached
+	 * @return the result cache or null
+	 */
+	public OpsinResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Sets a cache in which OpsinResults are stored, so that repeated names are not reinterpreted (Default null, no caching).
+	 * The cache distinguishes between configurations so may be shared by configurations with different options.
+	 * Note that results returned from the cache are shared, and hence may be returned to multiple callers
+	 * @param resultCache a cache or null to disable caching
+	 */
+	public void setResultCache(OpsinResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	/**
+	 * The representations generated before an OpsinResult is returned, or null if representations are generated on demand
+	 * @return an unmodifiable set of formats or null
+	 */
+	public Set<OutputFormat> getPrecomputedOutputFormats() {
+		return precomputedOutputFormats;
+	}
+
+	/**
+	 * Sets representations that are to be generated before an OpsinResult is returned (Default null, representations are generated on demand).
+	 * Once generated the result's structure is discarded, hence only these representations will be available from the result;
+	 * {@link OpsinResult#getStructure()}, other representations and InChIs will be null.
+	 * This substantially reduces the memory used by retained results e.g. when a result cache is used
+	 * @param precomputedOutputFormats the formats to generate or null to generate representations on demand
+	 */
+	public void setPrecomputedOutputFormats(Set<OutputFormat> precomputedOutputFormats) {
+		this.precomputedOutputFormats = precomputedOutputFormats != null ? Collections.unmodifiableSet(EnumSet.copyOf(precomputedOutputFormats)) : null;
+	}
+
+	/**
+	 * The maximum time, in milliseconds, that may be spent interpreting a name or 0 if there is no limit
+	 * @return the time limit in milliseconds
+	 */
+	public long getTimeLimit() {
+		return timeLimit;
+	}
+
+	/**
+	 * Sets the maximum time, in milliseconds, that may be spent interpreting a name (Default 0, no limit).
+	 * The limit is checked periodically during tokenisation, the generation of parses, structure building and fused ring numbering,
+	 * hence a name may run slightly over the limit. If the limit is exceeded the result's status is FAILURE.
+	 * Such results are not stored in the result cache, as the outcome depends on load
+	 * @param timeLimit the time limit in milliseconds or 0 for no limit
+	 */
+	public void setTimeLimit(long timeLimit) {
+		if (timeLimit < 0) {
+			throw new IllegalArgumentException("Time limit must not be negative but was: " + timeLimit);
+		}
+		this.timeLimit = timeLimit;
+	}
 
 	/**
 	 * Constructs a NameToStructureConfig with default settings:
@@ -122,6 +192,9 @@ public class NameToStructureConfig implements Cloneable {
 	 * detailedFailureAnalysis = false
 	 * interpretAcidsWithoutTheWordAcid = false
 	 * warnRatherThanFailOnUninterpretableStereochemistry = false
+	 * resultCache = null
+	 * precomputedOutputFormats = null
+	 * timeLimit = 0
 	 */
 	public static NameToStructureConfig getDefaultConfigInstance() {
 		return new NameToStructureConfig();
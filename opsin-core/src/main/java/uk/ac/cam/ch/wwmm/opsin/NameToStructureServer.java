@@ -0,0 +1,148 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves OPSIN over HTTP, so that the cost of starting the JVM and initialising OPSIN's resources is only paid once.
+ * Names are converted by POSTing a UTF-8 body of newline delimited names to the root path.
+ * The response contains the output that the command-line interface would have produced for those names.
+ * The output format and whether names are included in the output may be overridden on a per request basis with
+ * the query parameters format and name e.g. /?format=stdinchikey&amp;name=true
+ * <p>
+ * Each request is processed by one thread from a fixed size pool, hence the pool size limits how many batches are converted concurrently.
+ * @author dl387
+ *
+ */
+class NameToStructureServer {
+
+	private static final Logger LOG = Logger.getLogger(NameToStructureServer.class);
+
+	static final int DEFAULT_PORT = 8080;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final NameToStructureConfig n2sConfig;
+	private final String defaultOutputType;
+	private final boolean defaultOutputName;
+
+	/**
+	 * Creates a server that will accept requests on the given address once started
+	 * @param address
+	 * @param threads Number of requests that may be processed concurrently
+	 * @param n2sConfig
+	 * @param defaultOutputType Output format used when a request does not specify one
+	 * @param defaultOutputName Whether names are included in the output when a request does not specify
+	 * @throws IOException If the address could not be bound
+	 */
+	NameToStructureServer(InetSocketAddress address, int threads, NameToStructureConfig n2sConfig, String defaultOutputType, boolean defaultOutputName) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1 but was: " + threads);
+		}
+		this.n2sConfig = n2sConfig.clone();
+		this.defaultOutputType = defaultOutputType;
+		this.defaultOutputName = defaultOutputName;
+		executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("opsin-server"));
+		server = HttpServer.create(address, 0);
+		server.setExecutor(executor);
+		server.createContext("/", new ConversionHandler());
+	}
+
+	void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops accepting requests and waits up to the given number of seconds for requests in progress to complete
+	 * @param delay
+	 */
+	void stop(int delay) {
+		server.stop(delay);
+		executor.shutdownNow();
+	}
+
+	InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	private class ConversionHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+					exchange.getResponseHeaders().set("Allow", "POST");
+					sendText(exchange, 405, "Names should be POSTed as newline delimited text" + OpsinTools.NEWLINE);
+					return;
+				}
+				Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+				String outputType = parameters.containsKey("format") ? parameters.get("format") : defaultOutputType;
+				boolean outputName = parameters.containsKey("name") ? Boolean.parseBoolean(parameters.get("name")) : defaultOutputName;
+				if (!NameToStructure.isRecognisedOutputType(outputType)) {
+					sendText(exchange, 400, "Unrecognised output format: " + outputType + OpsinTools.NEWLINE);
+					return;
+				}
+				//buffered so that the response is sent with its length, rather than as a chunk per name
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				InputStream input = exchange.getRequestBody();
+				try {
+					NameToStructure.convertNames(input, output, n2sConfig, outputType, outputName, 1);
+				}
+				finally {
+					input.close();
+				}
+				exchange.getResponseHeaders().set("Content-Type", (outputType.trim().equalsIgnoreCase("cml") ? "chemical/x-cml" : "text/plain") + "; charset=UTF-8");
+				send(exchange, 200, output.toByteArray());
+			}
+			catch (Exception e) {
+				LOG.error("Failed to process request", e);
+				sendText(exchange, 500, "Failed to process request: " + e.getMessage() + OpsinTools.NEWLINE);
+			}
+			finally {
+				exchange.close();
+			}
+		}
+
+		private void sendText(HttpExchange exchange, int status, String message) throws IOException {
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+			send(exchange, status, message.getBytes("UTF-8"));
+		}
+
+		private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+			exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+			if (body.length > 0) {
+				OutputStream responseBody = exchange.getResponseBody();
+				responseBody.write(body);
+				responseBody.close();
+			}
+		}
+	}
+
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (query != null) {
+			for (String parameter : query.split("&")) {
+				int splitPoint = parameter.indexOf('=');
+				if (splitPoint > 0) {
+					parameters.put(URLDecoder.decode(parameter.substring(0, splitPoint), "UTF-8"), URLDecoder.decode(parameter.substring(splitPoint + 1), "UTF-8"));
+				}
+			}
+		}
+		return parameters;
+	}
+}
@@ -0,0 +1,409 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * An immutable radix tree held in a handful of primitive arrays.
+ * Created from a fully populated {@link OpsinRadixTrie}, which is only needed whilst the tokens are being added.
+ * <p>
+ * Nodes are numbered breadth first, hence the children of each node are contiguous and the children of node n
+ * follow those of node n - 1. The labels of the nodes are concatenated in node order.
+ * Children are ordered by the first character of their label, which is also stored separately so that a node's children can be searched without indirection.
+ * If tokens were added with their annotation symbols, a single trie can hold the tokens of every symbol; the symbols are then retrievable for each matching node.
+ * @author dl387
+ *
+ */
+class OpsinCompactTrie {
+
+	/** Children of a node with at most this many children are found by linear rather than binary search */
+	private static final int LINEAR_SEARCH_THRESHOLD = 8;
+
+	/** Concatenated labels of all nodes */
+	private final char[] labels;
+	/** The label of node n is from labelStarts[n] up to but not including labelStarts[n + 1] */
+	private final int[] labelStarts;
+	/** The first character of each node's label. The root has no label so this is unused for the root */
+	private final char[] firstChars;
+	/** The children of node n are from childStarts[n] up to but not including childStarts[n + 1] */
+	private final int[] childStarts;
+	/** Bit set of the nodes that are the end of a token */
+	private final long[] endPoints;
+	/** The annotation symbols of the tokens ending at node n are from symbolStarts[n] up to but not including symbolStarts[n + 1] */
+	private final int[] symbolStarts;
+	/** Concatenated annotation symbols of all nodes */
+	private final int[] symbols;
+
+	OpsinCompactTrie(OpsinRadixTrie trie) {
+		List<OpsinTrieNode> nodes = new ArrayList<OpsinTrieNode>();
+		List<Integer> childCounts = new ArrayList<Integer>();
+		Deque<OpsinTrieNode> queue = new ArrayDeque<OpsinTrieNode>();
+		queue.add(trie.rootNode);
+		int totalLabelLength = 0;
+		int totalSymbols = 0;
+		while (!queue.isEmpty()) {
+			OpsinTrieNode node = queue.removeFirst();
+			nodes.add(node);
+			totalLabelLength += node.getValue().length();
+			totalSymbols += node.getSymbols().length;
+			int childCount = 0;
+			for (OpsinTrieNode child : node.getChildren()) {//in order of first character
+				queue.add(child);
+				childCount++;
+			}
+			childCounts.add(childCount);
+		}
+		int nodeCount = nodes.size();
+		labels = new char[totalLabelLength];
+		labelStarts = new int[nodeCount + 1];
+		firstChars = new char[nodeCount];
+		childStarts = new int[nodeCount + 1];
+		endPoints = new long[(nodeCount + 63) / 64];
+		symbolStarts = new int[nodeCount + 1];
+		symbols = new int[totalSymbols];
+		int labelPos = 0;
+		int symbolPos = 0;
+		int nextChild = 1;
+		for (int i = 0; i < nodeCount; i++) {
+			OpsinTrieNode node = nodes.get(i);
+			String label = node.getValue();
+			labelStarts[i] = labelPos;
+			label.getChars(0, label.length(), labels, labelPos);
+			labelPos += label.length();
+			if (label.length() > 0) {
+				firstChars[i] = label.charAt(0);
+			}
+			childStarts[i] = nextChild;
+			nextChild += childCounts.get(i);
+			if (node.isEndPoint()) {
+				endPoints[i >> 6] |= 1L << i;
+			}
+			symbolStarts[i] = symbolPos;
+			int[] nodeSymbols = node.getSymbols();
+			System.arraycopy(nodeSymbols, 0, symbols, symbolPos, nodeSymbols.length);
+			symbolPos += nodeSymbols.length;
+		}
+		labelStarts[nodeCount] = labelPos;
+		childStarts[nodeCount] = nextChild;
+		symbolStarts[nodeCount] = symbolPos;
+	}
+
+	private OpsinCompactTrie(char[] labels, int[] labelStarts, char[] firstChars, int[] childStarts, long[] endPoints, int[] symbolStarts, int[] symbols) {
+		this.labels = labels;
+		this.labelStarts = labelStarts;
+		this.firstChars = firstChars;
+		this.childStarts = childStarts;
+		this.endPoints = endPoints;
+		this.symbolStarts = symbolStarts;
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Writes the trie in the form read by {@link #read(ByteBuffer)}
+	 * @param out
+	 * @throws IOException
+	 */
+	void write(DataOutputStream out) throws IOException {
+		ResourceImage.writeCharArray(out, labels);
+		ResourceImage.writeIntArray(out, labelStarts);
+		ResourceImage.writeCharArray(out, firstChars);
+		ResourceImage.writeIntArray(out, childStarts);
+		ResourceImage.writeLongArray(out, endPoints);
+		ResourceImage.writeIntArray(out, symbolStarts);
+		ResourceImage.writeIntArray(out, symbols);
+	}
+
+	/**
+	 * Reads a trie written by {@link #write(DataOutputStream)}
+	 * @param buffer
+	 * @return
+	 */
+	static OpsinCompactTrie read(ByteBuffer buffer) {
+		char[] labels = ResourceImage.readCharArray(buffer);
+		int[] labelStarts = ResourceImage.readIntArray(buffer);
+		char[] firstChars = ResourceImage.readCharArray(buffer);
+		int[] childStarts = ResourceImage.readIntArray(buffer);
+		long[] endPoints = ResourceImage.readLongArray(buffer);
+		int[] symbolStarts = ResourceImage.readIntArray(buffer);
+		int[] symbols = ResourceImage.readIntArray(buffer);
+		return new OpsinCompactTrie(labels, labelStarts, firstChars, childStarts, endPoints, symbolStarts, symbols);
+	}
+
+	/**
+	 * As {@link OpsinRadixTrie#findMatches(String, int)}
+	 * @param chemicalName
+	 * @param posInName The point at which to start matching
+	 * @return
+	 */
+	List<Integer> findMatches(String chemicalName, int posInName) {
+		int[] matchEnds = new int[chemicalName.length() - posInName + 1];
+		int matches = findMatches(chemicalName.toCharArray(), chemicalName.length(), posInName, matchEnds);
+		return toList(matchEnds, matches);
+	}
+
+	/**
+	 * Writes the ends of all possible runs of the input string that reached end point nodes in the trie to matchEnds,
+	 * and returns the number of matches.
+	 * e.g. ylidene might give 2 ("yl"), 6 ("yliden") and 7 ("ylidene")
+	 * matchEnds must be at least (nameLength - posInName + 1) in length.
+	 * @param chemicalName
+	 * @param nameLength The number of characters of chemicalName in use
+	 * @param posInName The point at which to start matching
+	 * @param matchEnds Buffer to which the index of the end of each match is written
+	 * @return The number of matches
+	 */
+	int findMatches(char[] chemicalName, int nameLength, int posInName, int[] matchEnds) {
+		return findMatchingNodes(chemicalName, nameLength, posInName, matchEnds, null);
+	}
+
+	/**
+	 * As {@link #findMatches(char[], int, int, int[])} but the node at which each match ended is also written to matchNodes.
+	 * This allows the annotation symbols of the matching tokens to be retrieved
+	 * @param chemicalName
+	 * @param nameLength The number of characters of chemicalName in use
+	 * @param posInName The point at which to start matching
+	 * @param matchEnds Buffer to which the index of the end of each match is written
+	 * @param matchNodes Buffer of the same length as matchEnds to which the node of each match is written, or null
+	 * @return The number of matches
+	 */
+	int findMatchingNodes(char[] chemicalName, int nameLength, int posInName, int[] matchEnds, int[] matchNodes) {
+		int matches = 0;
+		if (isEndPoint(0)) {
+			if (matchNodes != null) {
+				matchNodes[matches] = 0;
+			}
+			matchEnds[matches++] = posInName;
+		}
+		int node = 0;
+		int i = posInName;
+		while (i < nameLength) {
+			node = getChild(node, chemicalName[i]);
+			if (node == -1) {
+				break;
+			}
+			int labelStart = labelStarts[node];
+			int labelLength = labelStarts[node + 1] - labelStart;
+			if (labelLength > nameLength - i) {
+				break;
+			}
+			for (int j = 1; j < labelLength; j++) {
+				if (labels[labelStart + j] != chemicalName[i + j]) {
+					return matches;
+				}
+			}
+			i += labelLength;
+			if (isEndPoint(node)) {
+				if (matchNodes != null) {
+					matchNodes[matches] = node;
+				}
+				matchEnds[matches++] = i;
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * As {@link OpsinRadixTrie#findMatchesReadingStringRightToLeft(String, int)}
+	 * @param chemicalName
+	 * @param posInName The index after the first character to start matching
+	 * @return
+	 */
+	List<Integer> findMatchesReadingStringRightToLeft(String chemicalName, int posInName) {
+		int[] matchStarts = new int[posInName + 1];
+		int matches = findMatchesReadingStringRightToLeft(chemicalName.toCharArray(), posInName, matchStarts);
+		return toList(matchStarts, matches);
+	}
+
+	/**
+	 * Same as findMatches but the trie has been populated by reversed tokens.
+	 * The starts of the matches are written to matchStarts and the number of matches is returned.
+	 * matchStarts must be at least (posInName + 1) in length.
+	 * @param chemicalName
+	 * @param posInName The index after the first character to start matching
+	 * @param matchStarts Buffer to which the index of the start of each match is written
+	 * @return The number of matches
+	 */
+	int findMatchesReadingStringRightToLeft(char[] chemicalName, int posInName, int[] matchStarts) {
+		return findMatchingNodesReadingStringRightToLeft(chemicalName, posInName, matchStarts, null);
+	}
+
+	/**
+	 * As {@link #findMatchesReadingStringRightToLeft(char[], int, int[])} but the node at which each match ended is also written to matchNodes.
+	 * This allows the annotation symbols of the matching tokens to be retrieved
+	 * @param chemicalName
+	 * @param posInName The index after the first character to start matching
+	 * @param matchStarts Buffer to which the index of the start of each match is written
+	 * @param matchNodes Buffer of the same length as matchStarts to which the node of each match is written, or null
+	 * @return The number of matches
+	 */
+	int findMatchingNodesReadingStringRightToLeft(char[] chemicalName, int posInName, int[] matchStarts, int[] matchNodes) {
+		int matches = 0;
+		if (isEndPoint(0)) {
+			if (matchNodes != null) {
+				matchNodes[matches] = 0;
+			}
+			matchStarts[matches++] = posInName;
+		}
+		int node = 0;
+		int i = posInName - 1;
+		while (i >= 0) {
+			node = getChild(node, chemicalName[i]);
+			if (node == -1) {
+				break;
+			}
+			int labelStart = labelStarts[node];
+			int labelLength = labelStarts[node + 1] - labelStart;
+			if (labelLength > i + 1) {
+				break;
+			}
+			for (int j = 1; j < labelLength; j++) {
+				if (labels[labelStart + j] != chemicalName[i - j]) {
+					return matches;
+				}
+			}
+			i -= labelLength;
+			if (isEndPoint(node)) {
+				if (matchNodes != null) {
+					matchNodes[matches] = node;
+				}
+				matchStarts[matches++] = i + 1;
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Returns the child of the given node whose label starts with c, or -1 if there is no such child
+	 * @param node
+	 * @param c
+	 * @return
+	 */
+	private int getChild(int node, char c) {
+		int low = childStarts[node];
+		int high = childStarts[node + 1] - 1;
+		if (high - low < LINEAR_SEARCH_THRESHOLD) {
+			for (int i = low; i <= high; i++) {
+				char firstChar = firstChars[i];
+				if (firstChar == c) {
+					return i;
+				}
+				if (firstChar > c) {
+					break;
+				}
+			}
+			return -1;
+		}
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			char firstChar = firstChars[mid];
+			if (firstChar < c) {
+				low = mid + 1;
+			}
+			else if (firstChar > c) {
+				high = mid - 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private boolean isEndPoint(int node) {
+		return (endPoints[node >> 6] & (1L << node)) != 0;
+	}
+
+	/**
+	 * The annotation symbols of the token ending at the given node are those from getFirstSymbol(node) up to but not including getEndOfSymbols(node).
+	 * These are only present if the tokens were added with their symbol
+	 * @param node
+	 * @return
+	 */
+	int getFirstSymbol(int node) {
+		return symbolStarts[node];
+	}
+
+	int getEndOfSymbols(int node) {
+		return symbolStarts[node + 1];
+	}
+
+	int getSymbol(int symbol) {
+		return symbols[symbol];
+	}
+
+	/**
+	 * For each symbol, adds the first characters of its tokens to a bit set of ASCII characters, formed of two longs per symbol.
+	 * Lower case letters are added in both cases as tokens are matched case insensitively.
+	 * Symbols with a zero length token are instead marked as unrestricted.
+	 * Only meaningful if the tokens were added with their symbol
+	 * @param masks
+	 * @param unrestricted
+	 */
+	void addFirstCharacterMasks(long[] masks, boolean[] unrestricted) {
+		for (int k = symbolStarts[0]; k < symbolStarts[1]; k++) {
+			unrestricted[symbols[k]] = true;
+		}
+		int[] stack = new int[getNumberOfNodes()];
+		for (int child = childStarts[0]; child < childStarts[1]; child++) {
+			char firstChar = firstChars[child];
+			int stackSize = 0;
+			stack[stackSize++] = child;
+			while (stackSize > 0) {
+				int node = stack[--stackSize];
+				for (int k = symbolStarts[node]; k < symbolStarts[node + 1]; k++) {
+					int symbol = symbols[k];
+					if (!CompiledGrammar.addToMask(masks, symbol, firstChar)) {
+						unrestricted[symbol] = true;
+					}
+					if (firstChar >= 'a' && firstChar <= 'z') {
+						CompiledGrammar.addToMask(masks, symbol, (char) (firstChar - 32));
+					}
+				}
+				for (int grandChild = childStarts[node]; grandChild < childStarts[node + 1]; grandChild++) {
+					stack[stackSize++] = grandChild;
+				}
+			}
+		}
+	}
+
+	int getNumberOfNodes() {
+		return firstChars.length;
+	}
+
+	/**
+	 * An estimate, in bytes, of the heap retained by this trie.
+	 * Assumes 16 byte object headers and 4 byte references, as is typical of a 64-bit JVM with compressed references
+	 * @return
+	 */
+	long getMemoryFootprint() {
+		return 16 + 7 * 4 + arrayFootprint(labels.length, 2) + arrayFootprint(labelStarts.length, 4) +
+				arrayFootprint(firstChars.length, 2) + arrayFootprint(childStarts.length, 4) + arrayFootprint(endPoints.length, 8) +
+				arrayFootprint(symbolStarts.length, 4) + arrayFootprint(symbols.length, 4);
+	}
+
+	private static long arrayFootprint(int length, int bytesPerElement) {
+		long size = 16 + (long) length * bytesPerElement;
+		return (size + 7) & ~7L;
+	}
+
+	private static List<Integer> toList(int[] matches, int numberOfMatches) {
+		if (numberOfMatches == 0) {
+			return null;
+		}
+		List<Integer> indexes = new ArrayList<Integer>(numberOfMatches);
+		for (int i = 0; i < numberOfMatches; i++) {
+			indexes.add(matches[i]);
+		}
+		return indexes;
+	}
+
+	@Override
+	public String toString() {
+		return "OpsinCompactTrie: " + getNumberOfNodes() + " nodes, " + labels.length + " label characters, " + getMemoryFootprint() + " bytes";
+	}
+}
@@ -7,6 +7,7 @@ import java.util.List;
  * A black/white radix tree implementation.
  * A radix tree is a type of trie where common prefixes are merged together to save space 
  * This implementation employs short arrays rather than maps to exploit the fact that all OPSIN tokens are ASCII.
+ * Once populated, tries are converted to the more compact {@link OpsinCompactTrie} for use during parsing.
  * @author dl387
  *
  */
@@ -23,6 +24,23 @@ class OpsinRadixTrie {
 	 * @param token
 	 */
 	void addToken(String token) {
+		addNode(token).setIsEndPoint(true);
+	}
+
+	/**
+	 * Adds a string to the Trie, recording that it is a token of the given annotation symbol.
+	 * A token may be added with multiple symbols.
+	 * This string should not contain any non ASCII characters
+	 * @param token
+	 * @param symbolIndex
+	 */
+	void addToken(String token, int symbolIndex) {
+		OpsinTrieNode node = addNode(token);
+		node.setIsEndPoint(true);
+		node.addSymbol(symbolIndex);
+	}
+
+	private OpsinTrieNode addNode(String token) {
 		int tokenLength =token.length();
 		String remaingStr =token;
 		OpsinTrieNode currentNode = rootNode;
@@ -32,7 +50,7 @@ class OpsinRadixTrie {
 			i+=charsMatched;
 			currentNode = currentNode.add(remaingStr, charsMatched);
 		}
-		currentNode.setIsEndPoint(true);
+		return currentNode;
 	}
 
 	/**
@@ -111,74 +129,3 @@ class OpsinRadixTrie {
 		return indexes;
 	}
 }
-
-class OpsinTrieNode {
-
-	private boolean isEndPoint;
-	private String key;
-	private OpsinTrieNode[] children = new OpsinTrieNode[128];
-
-	OpsinTrieNode(String key, boolean isEndPoint) {
-		this.isEndPoint = isEndPoint;
-		this.key = key;
-	}
-
-	String getValue() {
-		return key;
-	}
-	
-	boolean isEndPoint() {
-		return isEndPoint;
-	}
-
-	void setIsEndPoint(boolean isEndPoint) {
-		this.isEndPoint = isEndPoint;
-	}
-	
-	private void setChildren(OpsinTrieNode[] children) {
-		this.children = children;
-	}
-	
-	OpsinTrieNode add(String remaingStr, int charsMatched) {
-		if (charsMatched < key.length()){//need to split this Trie node
-			OpsinTrieNode newNode = new OpsinTrieNode(key.substring(charsMatched), isEndPoint);
-			newNode.setChildren(children);
-			children = new OpsinTrieNode[128];
-			children[key.charAt(charsMatched)] = newNode;
-			key = key.substring(0, charsMatched);
-			isEndPoint =false;
-		}
-		if (remaingStr.length()!=0){
-			int charValue = (int) remaingStr.charAt(0);
-			if (children[charValue] == null) {
-				children[charValue] = new OpsinTrieNode(remaingStr, false);
-			}
-			return children[charValue];
-		}
-		return this;
-	}
-
-	int getNumberOfMatchingCharacters(String chemicalName, int posInName) {
-		int maxLength = Math.min(key.length(), chemicalName.length() - posInName);
-		for (int i = 0; i < maxLength; i++) {
-			if (key.charAt(i) != chemicalName.charAt(posInName + i)){
-				return i;
-			}
-		}
-		return maxLength;
-	}
-	
-	int getNumberOfMatchingCharactersInReverse(String chemicalName, int posInName) {
-		int maxLength = Math.min(key.length(), posInName + 1);
-		for (int i = 0; i < maxLength; i++) {
-			if (key.charAt(i) != chemicalName.charAt(posInName - i)){
-				return i;
-			}
-		}
-		return maxLength;
-	}
-
-	OpsinTrieNode getChild(char c) {
-		return children[(int) c];
-	}
-}
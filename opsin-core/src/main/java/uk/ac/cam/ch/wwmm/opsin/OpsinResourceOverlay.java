@@ -0,0 +1,152 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Additional resources, e.g. in-house trivial names and company codes, to layer over OPSIN's own resources.<br>
+ * The resources are XML files in the same format as OPSIN's resources:
+ * token files (tokenList or tokenLists root element) and optionally wordRules.xml, suffixRules.xml and suffixApplicability.xml entries.
+ * Example usage:
+ * <pre>
+ * OpsinResourceOverlay overlay = new OpsinResourceOverlay();
+ * overlay.addTokenFile(new File("companyCodes.xml"));
+ * NameToStructure customerNts = NameToStructure.getInstance().withOverlay(overlay);
+ * </pre>
+ * The files are read when they are added, and are interpreted when the overlay is applied by {@link NameToStructure#withOverlay(OpsinResourceOverlay)}.
+ * <p>
+ * The tokens of token files must use annotation symbols that are already used by OPSIN's grammar.
+ * A token that OPSIN already has with the same symbol takes the attributes given by the overlay.
+ * Word rules are tried before OPSIN's word rules. Suffix rules may not redefine OPSIN's suffix rules,
+ * and suffix applicability entries are added to OPSIN's entries.
+ * @author dl387
+ *
+ */
+public class OpsinResourceOverlay {
+
+	static final String WORD_RULES_FILE = "wordRules.xml";
+	static final String SUFFIX_RULES_FILE = "suffixRules.xml";
+	static final String SUFFIX_APPLICABILITY_FILE = "suffixApplicability.xml";
+
+	/**The contents of the overlay's files, keyed by file name*/
+	private final Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+	private final List<String> tokenFiles = new ArrayList<String>();
+
+	/**
+	 * Constructs an empty overlay
+	 */
+	public OpsinResourceOverlay() {
+	}
+
+	/**
+	 * Adds a token file, in the same format as the token files of OPSIN's resources
+	 * @param file
+	 * @return this overlay
+	 * @throws IOException
+	 */
+	public OpsinResourceOverlay addTokenFile(File file) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			return addTokenFile(file.getName(), is);
+		}
+		finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	/**
+	 * Adds a token file, in the same format as the token files of OPSIN's resources.
+	 * The stream is read, but not closed
+	 * @param name The name of the file, used in error messages. Each token file of the overlay should have a different name
+	 * @param is
+	 * @return this overlay
+	 * @throws IOException
+	 */
+	public OpsinResourceOverlay addTokenFile(String name, InputStream is) throws IOException {
+		if (files.containsKey(name)) {
+			throw new IllegalArgumentException("Overlay already has a file named: " + name);
+		}
+		files.put(name, IOUtils.toByteArray(is));
+		tokenFiles.add(name);
+		return this;
+	}
+
+	/**
+	 * Sets additional word rules, in the same format as wordRules.xml.
+	 * The stream is read, but not closed
+	 * @param is
+	 * @return this overlay
+	 * @throws IOException
+	 */
+	public OpsinResourceOverlay setWordRules(InputStream is) throws IOException {
+		return setFile(WORD_RULES_FILE, is);
+	}
+
+	/**
+	 * Sets additional suffix rules, in the same format as suffixRules.xml.
+	 * The stream is read, but not closed
+	 * @param is
+	 * @return this overlay
+	 * @throws IOException
+	 */
+	public OpsinResourceOverlay setSuffixRules(InputStream is) throws IOException {
+		return setFile(SUFFIX_RULES_FILE, is);
+	}
+
+	/**
+	 * Sets additional suffix applicability entries, in the same format as suffixApplicability.xml.
+	 * The stream is read, but not closed
+	 * @param is
+	 * @return this overlay
+	 * @throws IOException
+	 */
+	public OpsinResourceOverlay setSuffixApplicability(InputStream is) throws IOException {
+		return setFile(SUFFIX_APPLICABILITY_FILE, is);
+	}
+
+	private OpsinResourceOverlay setFile(String name, InputStream is) throws IOException {
+		if (tokenFiles.contains(name)) {
+			throw new IllegalArgumentException("Overlay already has a token file named: " + name);
+		}
+		files.put(name, IOUtils.toByteArray(is));
+		return this;
+	}
+
+	/**
+	 * The names of the overlay's token files, in the order they were added
+	 * @return
+	 */
+	List<String> getTokenFiles() {
+		return Collections.unmodifiableList(tokenFiles);
+	}
+
+	boolean hasFile(String name) {
+		return files.containsKey(name);
+	}
+
+	/**
+	 * Returns an XML stream reader for the overlay's file of the given name
+	 * @param name
+	 * @return
+	 * @throws IOException If the overlay does not have a file of the given name
+	 */
+	XMLStreamReader getXMLStreamReader(String name) throws IOException {
+		byte[] contents = files.get(name);
+		if (contents == null) {
+			throw new IOException("Overlay does not have a file named: " + name);
+		}
+		return ResourceGetter.createXMLStreamReader(new ByteArrayInputStream(contents), name);
+	}
+}
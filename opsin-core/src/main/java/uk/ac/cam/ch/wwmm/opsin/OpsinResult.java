@@ -2,6 +2,8 @@ package uk.ac.cam.ch.wwmm.opsin;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.log4j.Logger;
 
@@ -15,7 +17,12 @@ import uk.ac.cam.ch.wwmm.opsin.OpsinWarning.OpsinWarningType;
  */
 public class OpsinResult {
 	private static final Logger LOG = Logger.getLogger(OpsinResult.class);
-	private final Fragment structure;
+	/**Generated representations, indexed by OutputFormat ordinal. null indicates not yet generated*/
+	private final AtomicReferenceArray<String> outputs = new AtomicReferenceArray<String>(OutputFormat.values().length);
+	/**Stored in outputs when generation of that representation was unsuccessful*/
+	private static final String GENERATION_FAILED = new String("");
+	/**Null if the name was not interpretable or the structure has been discarded*/
+	private volatile Fragment structure;
 	private final OPSIN_RESULT_STATUS status;
 	private final String message;
 	private final String chemicalName;
@@ -43,6 +50,28 @@ public class OpsinResult {
 		 */
 		FAILURE
 	}
+
+	/**
+	 * The string representations that an OpsinResult can generate
+	 */
+	public enum OutputFormat{
+		/**
+		 * Chemical Markup Language, see {@link OpsinResult#getCml()}
+		 */
+		CML,
+		/**
+		 * Indented Chemical Markup Language, see {@link OpsinResult#getPrettyPrintedCml()}
+		 */
+		PRETTY_PRINTED_CML,
+		/**
+		 * SMILES, see {@link OpsinResult#getSmiles()}
+		 */
+		SMILES,
+		/**
+		 * Extended SMILES, see {@link OpsinResult#getExtendedSmiles()}
+		 */
+		EXTENDED_SMILES
+	}
 	
 	OpsinResult(Fragment frag, OPSIN_RESULT_STATUS status, List<OpsinWarning> warnings, String chemicalName) {
 		this.structure = frag;
@@ -70,6 +99,22 @@ public class OpsinResult {
 		this.warnings = Collections.emptyList();
 	}
 
+	/**
+	 * Returns a result identical to this one, except for the chemical name.
+	 * The structure is shared with this result
+	 * @param chemicalName
+	 * @return
+	 */
+	OpsinResult withChemicalName(String chemicalName) {
+		if (isStructureDiscarded()) {
+			throw new IllegalStateException("A result's name cannot be changed after its structure has been discarded");
+		}
+		if (warnings.isEmpty()) {
+			return new OpsinResult(structure, status, message, chemicalName);
+		}
+		return new OpsinResult(structure, status, warnings, chemicalName);
+	}
+
 	Fragment getStructure() {
 		return structure;
 	}
@@ -103,73 +148,122 @@ public class OpsinResult {
 	/**
 	 * Generates the CML corresponding to the molecule described by the name
 	 * If name generation failed i.e. the OPSIN_RESULT_STATUS is FAILURE then null is returned
+	 * The CML is generated at most once and then reused
 	 * @return Chemical Markup Language as a String
 	 */
 	public String getCml() {
-		if (structure != null){
-			try{
-				return CMLWriter.generateCml(structure, chemicalName);
-			}
-			catch (Exception e) {
-				LOG.debug("CML generation failed", e);
-			}
-		}
-		return null;
+		return getOutput(OutputFormat.CML);
 	}
 	
 	/**
 	 * Generates the CML corresponding to the molecule described by the name
 	 * If name generation failed i.e. the OPSIN_RESULT_STATUS is FAILURE then null is returned
 	 * The CML is indented
+	 * The CML is generated at most once and then reused
 	 * @return Idented Chemical Markup Language as a String
 	 */
 	public String getPrettyPrintedCml() {
-		if (structure != null){
-			try{
-				return CMLWriter.generateIndentedCml(structure, chemicalName);
-			}
-			catch (Exception e) {
-				LOG.debug("CML generation failed", e);
-			}
-		}
-		return null;
+		return getOutput(OutputFormat.PRETTY_PRINTED_CML);
 	}
 
 	/**
 	 * Generates the SMILES corresponding to the molecule described by the name
 	 * If name generation failed i.e. the OPSIN_RESULT_STATUS is FAILURE then null is returned
+	 * The SMILES is generated at most once and then reused
 	 * @return SMILES as a String
 	 */
 	public String getSmiles() {
-		if (structure != null){
-			try{
-				return SMILESWriter.generateSmiles(structure);
-			}
-			catch (Exception e) {
-				LOG.debug("SMILES generation failed", e);
-			}
-		}
-		return null;
+		return getOutput(OutputFormat.SMILES);
 	}
 	
 	/**
 	 * Experimental function that generates the extended SMILES corresponding to the molecule described by the name
 	 * If name generation failed i.e. the OPSIN_RESULT_STATUS is FAILURE then null is returned
 	 * If the molecule doesn't utilise any features made possible by extended SMILES this is equivalent to {@link #getSmiles()}
+	 * The extended SMILES is generated at most once and then reused
 	 * @return Extended SMILES as a String
 	 */
 	public String getExtendedSmiles() {
+		return getOutput(OutputFormat.EXTENDED_SMILES);
+	}
+
+	/**
+	 * Returns the given representation, generating it if this has not already been done.
+	 * Generation occurs at most once, even if called concurrently
+	 * @param format
+	 * @return
+	 */
+	private String getOutput(OutputFormat format) {
+		int idx = format.ordinal();
+		String output = outputs.get(idx);
+		if (output == null) {
+			synchronized (this) {
+				output = outputs.get(idx);
+				if (output == null) {
+					output = generateOutput(format);
+					if (output == null) {
+						output = GENERATION_FAILED;
+					}
+					outputs.set(idx, output);
+				}
+			}
+		}
+		return output != GENERATION_FAILED ? output : null;
+	}
+
+	private String generateOutput(OutputFormat format) {
+		Fragment structure = this.structure;
 		if (structure != null){
 			try{
-				return SMILESWriter.generateExtendedSmiles(structure);
+				synchronized (structure) {//output generation temporarily modifies the structure, which may be shared e.g. when cached
+					switch (format) {
+					case CML:
+						return CMLWriter.generateCml(structure, chemicalName);
+					case PRETTY_PRINTED_CML:
+						return CMLWriter.generateIndentedCml(structure, chemicalName);
+					case SMILES:
+						return SMILESWriter.generateSmiles(structure);
+					case EXTENDED_SMILES:
+						return SMILESWriter.generateExtendedSmiles(structure);
+					default:
+						throw new IllegalArgumentException("Unexpected output format: " + format);
+					}
+				}
 			}
 			catch (Exception e) {
-				LOG.debug("Extended SMILES generation failed", e);
+				LOG.debug(format + " generation failed", e);
 			}
 		}
 		return null;
 	}
 
+	/**
+	 * Generates the given representations and then releases the structure, to reduce the memory retained by this result.
+	 * Subsequently only these representations are available; other representations, and InChI generation, will return null
+	 * @param formats
+	 */
+	void precomputeOutputsAndDiscardStructure(Set<OutputFormat> formats) {
+		for (OutputFormat format : formats) {
+			getOutput(format);
+		}
+		synchronized (this) {
+			for (OutputFormat format : OutputFormat.values()) {
+				if (outputs.get(format.ordinal()) == null) {
+					outputs.set(format.ordinal(), GENERATION_FAILED);
+				}
+			}
+			structure = null;
+		}
+	}
+
+	/**
+	 * True if {@link #precomputeOutputsAndDiscardStructure(Set)} has released this result's structure
+	 * @return
+	 */
+	boolean isStructureDiscarded() {
+		return structure == null && status != OPSIN_RESULT_STATUS.FAILURE;
+	}
+
 	/**
 	 * A list of warnings encountered when the result was {@link OPSIN_RESULT_STATUS#WARNING}<br>
 	 * This list of warnings is immutable
@@ -0,0 +1,274 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.cam.ch.wwmm.opsin.OpsinResult.OutputFormat;
+
+/**
+ * A bounded, thread-safe cache of OpsinResults, keyed on the {@link NameToStructure} that interpreted the chemical name,
+ * the pre-processed chemical name and the options of the {@link NameToStructureConfig} that affect interpretation.<br>
+ * To use, set the cache on the NameToStructureConfig passed to {@link NameToStructure#parseChemicalName(String, NameToStructureConfig)}:
+ * <pre>
+ * OpsinResultCache cache = new OpsinResultCache(100000);
+ * n2sConfig.setResultCache(cache);
+ * </pre>
+ * A cache may be shared between threads, between configurations and between NameToStructures e.g. those with different overlays.
+ * <p>
+ * Eviction uses a segmented LRU policy: new entries are held in a probationary segment and are only
+ * promoted to the larger protected segment when they are requested again. Hence names that are seen once
+ * cannot displace names that are frequently repeated.
+ * The cache is divided into independently locked stripes to reduce contention.
+ * <p>
+ * Cached OpsinResults are shared between callers. Their output generating methods are safe to call concurrently.
+ * Two threads simultaneously requesting an uncached name may both parse it.
+ * @author dl387
+ *
+ */
+public class OpsinResultCache {
+
+	private static final int MAX_STRIPES = 16;
+
+	/**Proportion of each stripe given to entries that have been requested more than once*/
+	private static final double PROTECTED_FRACTION = 0.8;
+
+	private final Stripe[] stripes;
+	private final int maximumSize;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Creates a cache holding at most maximumSize results
+	 * @param maximumSize
+	 */
+	public OpsinResultCache(int maximumSize) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("Cache size must be at least 1 but was: " + maximumSize);
+		}
+		this.maximumSize = maximumSize;
+		int stripeCount = 1;
+		while (stripeCount < MAX_STRIPES && stripeCount * 2 * 64 <= maximumSize) {
+			stripeCount *= 2;
+		}
+		stripes = new Stripe[stripeCount];
+		int baseCapacity = maximumSize / stripeCount;
+		int remainder = maximumSize % stripeCount;
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe(baseCapacity + (i < remainder ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Returns the cached result for the given NameToStructure, pre-processed name and configuration or null
+	 * @param nameToStructure
+	 * @param preProcessedName
+	 * @param n2sConfig
+	 * @return
+	 */
+	OpsinResult get(NameToStructure nameToStructure, String preProcessedName, NameToStructureConfig n2sConfig) {
+		CacheKey key = new CacheKey(nameToStructure, preProcessedName, n2sConfig);
+		OpsinResult result = stripeFor(key).get(key);
+		if (result != null) {
+			hitCount.incrementAndGet();
+		}
+		else {
+			missCount.incrementAndGet();
+		}
+		return result;
+	}
+
+	void put(NameToStructure nameToStructure, String preProcessedName, NameToStructureConfig n2sConfig, OpsinResult result) {
+		CacheKey key = new CacheKey(nameToStructure, preProcessedName, n2sConfig);
+		stripeFor(key).put(key, result);
+	}
+
+	private Stripe stripeFor(CacheKey key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return stripes[h & (stripes.length - 1)];
+	}
+
+	/**
+	 * The maximum number of results this cache will hold
+	 * @return
+	 */
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * The number of results currently held
+	 * @return
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	/**
+	 * The number of lookups that returned a cached result
+	 * @return
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * The number of lookups that did not find a cached result
+	 * @return
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * The proportion of lookups that returned a cached result, or 0 if there have been no lookups
+	 * @return
+	 */
+	public double getHitRate() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * The number of results that have been removed to make space for newer results
+	 * @return
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * Removes all cached results. Statistics are unaffected
+	 */
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			stripe.clear();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "OpsinResultCache[size=" + size() + ", maximumSize=" + maximumSize + ", hits=" + getHitCount() +
+				", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+
+	private class Stripe {
+		private final int capacity;
+		private final int protectedCapacity;
+		/**Entries seen once, in insertion order*/
+		private final LinkedHashMap<CacheKey, OpsinResult> probation = new LinkedHashMap<CacheKey, OpsinResult>();
+		/**Entries seen more than once, in access order*/
+		private final LinkedHashMap<CacheKey, OpsinResult> protectedEntries = new LinkedHashMap<CacheKey, OpsinResult>(16, 0.75f, true);
+
+		Stripe(int capacity) {
+			this.capacity = capacity;
+			this.protectedCapacity = (int) (capacity * PROTECTED_FRACTION);
+		}
+
+		synchronized OpsinResult get(CacheKey key) {
+			OpsinResult result = protectedEntries.get(key);
+			if (result != null) {
+				return result;
+			}
+			result = probation.remove(key);
+			if (result != null) {
+				protectedEntries.put(key, result);
+				if (protectedEntries.size() > protectedCapacity) {
+					//demote least recently used protected entry, it will be evicted first if not requested again
+					Iterator<Entry<CacheKey, OpsinResult>> it = protectedEntries.entrySet().iterator();
+					Entry<CacheKey, OpsinResult> eldest = it.next();
+					it.remove();
+					probation.put(eldest.getKey(), eldest.getValue());
+				}
+			}
+			return result;
+		}
+
+		synchronized void put(CacheKey key, OpsinResult result) {
+			if (protectedEntries.containsKey(key) || probation.containsKey(key)) {
+				return;
+			}
+			probation.put(key, result);
+			Iterator<Map.Entry<CacheKey, OpsinResult>> it = probation.entrySet().iterator();
+			while (probation.size() + protectedEntries.size() > capacity && it.hasNext()) {
+				it.next();
+				it.remove();
+				evictionCount.incrementAndGet();
+			}
+		}
+
+		synchronized int size() {
+			return probation.size() + protectedEntries.size();
+		}
+
+		synchronized void clear() {
+			probation.clear();
+			protectedEntries.clear();
+		}
+	}
+
+	private static class CacheKey {
+		/**Compared by identity, as NameToStructures with different overlays may interpret the same name differently*/
+		private final NameToStructure nameToStructure;
+		private final String name;
+		private final int options;
+
+		CacheKey(NameToStructure nameToStructure, String name, NameToStructureConfig n2sConfig) {
+			this.nameToStructure = nameToStructure;
+			this.name = name;
+			int options = 0;
+			if (n2sConfig.isAllowRadicals()) {
+				options |= 1;
+			}
+			if (n2sConfig.isOutputRadicalsAsWildCardAtoms()) {
+				options |= 2;
+			}
+			if (n2sConfig.isDetailedFailureAnalysis()) {
+				options |= 4;
+			}
+			if (n2sConfig.allowInterpretationOfAcidsWithoutTheWordAcid()) {
+				options |= 8;
+			}
+			if (n2sConfig.warnRatherThanFailOnUninterpretableStereochemistry()) {
+				options |= 16;
+			}
+			Set<OutputFormat> precomputedOutputFormats = n2sConfig.getPrecomputedOutputFormats();
+			if (precomputedOutputFormats != null) {
+				//results with discarded structures are only reusable by configurations that precompute the same formats
+				options |= 32;
+				for (OutputFormat format : precomputedOutputFormats) {
+					options |= 64 << format.ordinal();
+				}
+			}
+			this.options = options;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * System.identityHashCode(nameToStructure) + name.hashCode()) + options;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof CacheKey)) {
+				return false;
+			}
+			CacheKey other = (CacheKey) obj;
+			return nameToStructure == other.nameToStructure && options == other.options && name.equals(other.name);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A node of an {@link OpsinRadixTrie}, holding the characters of the edge leading to it and its children indexed by their first character
+ * @author dl387
+ *
+ */
+class OpsinTrieNode {
+	private static final int[] NO_SYMBOLS = new int[0];
+
+	private boolean isEndPoint;
+	/** Ascending indices of the annotation symbols of the token ending at this node, if these were given */
+	private int[] symbols = NO_SYMBOLS;
+	private String key;
+	private OpsinTrieNode[] children = new OpsinTrieNode[128];
+
+	OpsinTrieNode(String key, boolean isEndPoint) {
+		this.isEndPoint = isEndPoint;
+		this.key = key;
+	}
+
+	String getValue() {
+		return key;
+	}
+	
+	boolean isEndPoint() {
+		return isEndPoint;
+	}
+
+	void setIsEndPoint(boolean isEndPoint) {
+		this.isEndPoint = isEndPoint;
+	}
+
+	int[] getSymbols() {
+		return symbols;
+	}
+
+	void addSymbol(int symbolIndex) {
+		int insertionPoint = Arrays.binarySearch(symbols, symbolIndex);
+		if (insertionPoint < 0) {
+			insertionPoint = -(insertionPoint + 1);
+			int[] newSymbols = new int[symbols.length + 1];
+			System.arraycopy(symbols, 0, newSymbols, 0, insertionPoint);
+			newSymbols[insertionPoint] = symbolIndex;
+			System.arraycopy(symbols, insertionPoint, newSymbols, insertionPoint + 1, symbols.length - insertionPoint);
+			symbols = newSymbols;
+		}
+	}
+	
+	private void setChildren(OpsinTrieNode[] children) {
+		this.children = children;
+	}
+	
+	OpsinTrieNode add(String remaingStr, int charsMatched) {
+		if (charsMatched < key.length()){//need to split this Trie node
+			OpsinTrieNode newNode = new OpsinTrieNode(key.substring(charsMatched), isEndPoint);
+			newNode.setChildren(children);
+			newNode.symbols = symbols;
+			symbols = NO_SYMBOLS;
+			children = new OpsinTrieNode[128];
+			children[key.charAt(charsMatched)] = newNode;
+			key = key.substring(0, charsMatched);
+			isEndPoint =false;
+		}
+		if (remaingStr.length()!=0){
+			int charValue = (int) remaingStr.charAt(0);
+			if (children[charValue] == null) {
+				children[charValue] = new OpsinTrieNode(remaingStr, false);
+			}
+			return children[charValue];
+		}
+		return this;
+	}
+
+	int getNumberOfMatchingCharacters(String chemicalName, int posInName) {
+		int maxLength = Math.min(key.length(), chemicalName.length() - posInName);
+		for (int i = 0; i < maxLength; i++) {
+			if (key.charAt(i) != chemicalName.charAt(posInName + i)){
+				return i;
+			}
+		}
+		return maxLength;
+	}
+	
+	int getNumberOfMatchingCharactersInReverse(String chemicalName, int posInName) {
+		int maxLength = Math.min(key.length(), posInName + 1);
+		for (int i = 0; i < maxLength; i++) {
+			if (key.charAt(i) != chemicalName.charAt(posInName - i)){
+				return i;
+			}
+		}
+		return maxLength;
+	}
+
+	OpsinTrieNode getChild(char c) {
+		return children[(int) c];
+	}
+
+	/**
+	 * The children of this node, in order of the first character of their value
+	 * @return
+	 */
+	List<OpsinTrieNode> getChildren() {
+		List<OpsinTrieNode> nonNullChildren = new ArrayList<OpsinTrieNode>();
+		for (OpsinTrieNode child : children) {
+			if (child != null) {
+				nonNullChildren.add(child);
+			}
+		}
+		return nonNullChildren;
+	}
+}
@@ -0,0 +1,173 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Memoises the results of parsing the words of a chemical name, so that when the tokeniser retries after modifying the name
+ * e.g. by removing a space, or the name is tokenised again using a different strategy, words that have already been parsed are not parsed again.
+ * <p>
+ * The result of parsing a word depends only on the text that was parsed: for left to right parsing the name from the start of the word onwards
+ * and for right to left parsing the name up to the end of the word. Results are keyed on this text, hence they are reused
+ * whatever string, and wherever in that string, the same text is subsequently found.
+ * Exceptions, such as those thrown for words that are too ambiguous, are memoised in the same way.
+ * <p>
+ * Instances are not thread safe and are intended to be used whilst parsing a single name
+ * @author dl387
+ *
+ */
+final class ParseMemo {
+
+	private final Map<TextRegion, MemoisedParse> leftToRightParses = new HashMap<TextRegion, MemoisedParse>();
+	private final Map<TextRegion, MemoisedParse> rightToLeftParses = new HashMap<TextRegion, MemoisedParse>();
+
+	private int hits = 0;
+	private int misses = 0;
+
+	/**
+	 * Equivalent to parseRules.getParses(name, start)
+	 * @param parseRules
+	 * @param name
+	 * @param start
+	 * @return
+	 * @throws ParsingException
+	 */
+	ParseRulesResults getParses(ParseRules parseRules, String name, int start) throws ParsingException {
+		TextRegion key = new TextRegion(name, start, name.length());
+		MemoisedParse memoisedParse = leftToRightParses.get(key);
+		if (memoisedParse == null) {
+			misses++;
+			try {
+				memoisedParse = new MemoisedParse(key, parseRules.getParses(name, start));
+			}
+			catch (ParsingException e) {
+				memoisedParse = new MemoisedParse(key, e);
+			}
+			leftToRightParses.put(key, memoisedParse);
+		}
+		else {
+			hits++;
+		}
+		return memoisedParse.getResults(name, start);
+	}
+
+	/**
+	 * Equivalent to reverseParseRules.getParses(name, end)
+	 * @param reverseParseRules
+	 * @param name
+	 * @param end
+	 * @return
+	 * @throws ParsingException
+	 */
+	ParseRulesResults getParsesInReverse(ReverseParseRules reverseParseRules, String name, int end) throws ParsingException {
+		TextRegion key = new TextRegion(name, 0, end);
+		MemoisedParse memoisedParse = rightToLeftParses.get(key);
+		if (memoisedParse == null) {
+			misses++;
+			try {
+				memoisedParse = new MemoisedParse(key, reverseParseRules.getParses(name, end));
+			}
+			catch (ParsingException e) {
+				memoisedParse = new MemoisedParse(key, e);
+			}
+			rightToLeftParses.put(key, memoisedParse);
+		}
+		else {
+			hits++;
+		}
+		return memoisedParse.getResults(name, 0);
+	}
+
+	/**
+	 * The number of requests that were answered from the memo
+	 * @return
+	 */
+	int getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * The number of requests that required parsing
+	 * @return
+	 */
+	int getMissCount() {
+		return misses;
+	}
+
+	private static final class MemoisedParse {
+		private final TextRegion region;
+		private final ParseRulesResults results;
+		private final ParsingException exception;
+
+		MemoisedParse(TextRegion region, ParseRulesResults results) {
+			this.region = region;
+			this.results = results;
+			this.exception = null;
+		}
+
+		MemoisedParse(TextRegion region, ParsingException exception) {
+			this.region = region;
+			this.results = null;
+			this.exception = exception;
+		}
+
+		/**
+		 * Returns the results, with their positions translated to the same text at regionStart in the given name
+		 * @param name
+		 * @param regionStart
+		 * @return
+		 * @throws ParsingException
+		 */
+		ParseRulesResults getResults(String name, int regionStart) throws ParsingException {
+			if (exception != null) {
+				throw exception;
+			}
+			if (name == region.str && regionStart == region.start) {
+				return results;
+			}
+			int shift = regionStart - region.start;
+			return new ParseRulesResults(results.getParseTokensList(), name,
+					results.getUninterpretableStart() + shift, results.getUninterpretableEnd() + shift,
+					results.getUnparseableStart() + shift, results.getUnparseableEnd() + shift);
+		}
+	}
+
+	/**
+	 * A region of a string, compared by its characters
+	 */
+	private static final class TextRegion {
+		private final String str;
+		private final int start;
+		private final int end;
+		private final int hash;
+
+		TextRegion(String str, int start, int end) {
+			this.str = str;
+			this.start = start;
+			this.end = end;
+			int h = 0;
+			for (int i = start; i < end; i++) {
+				h = 31 * h + str.charAt(i);
+			}
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof TextRegion)) {
+				return false;
+			}
+			TextRegion other = (TextRegion) obj;
+			int length = end - start;
+			return hash == other.hash && length == other.end - other.start && str.regionMatches(start, other.str, other.start, length);
+		}
+	}
+}
@@ -1,13 +1,10 @@
 package uk.ac.cam.ch.wwmm.opsin;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import dk.brics.automaton.RunAutomaton;
 
 /**
  * Instantiate via NameToStructure.getOpsinParser()
@@ -26,28 +23,48 @@ import dk.brics.automaton.RunAutomaton;
  */
 public class ParseRules {
 
-	/** A DFA encompassing the grammar of a chemical word. */
-	private final RunAutomaton chemAutomaton;
-	/** The allowed symbols in chemAutomaton */
+	/** The transitions of each state of the DFA encompassing the grammar of a chemical word. */
+	private final CompiledGrammar compiledGrammar;
+	/** The allowed symbols in the grammar */
 	private final char[] stateSymbols;
 	
-	private final OpsinRadixTrie[] symbolTokenNamesDict;
-	private final RunAutomaton[] symbolRegexAutomataDict;
+	private final OpsinCompactTrie tokenNamesTrie;
+	/** The tokens of an overlay that are not in tokenNamesTrie, may be null */
+	private final OpsinCompactTrie additionalTokenNamesTrie;
+	private final CompactAutomaton[] symbolRegexAutomataDict;
 	private final Pattern[] symbolRegexesDict;
-	
-	private final AnnotatorState initialState;
+
+	/** Per thread working memory for {@link #getParses(String)} and {@link #getLongestAcceptedLength(String)} */
+	private final ThreadLocal<AnnotationChart> annotationChart = new ThreadLocal<AnnotationChart>() {
+		@Override
+		protected AnnotationChart initialValue() {
+			return new AnnotationChart();
+		}
+	};
+	private final ThreadLocal<TokenLattice> tokenLattice = new ThreadLocal<TokenLattice>() {
+		@Override
+		protected TokenLattice initialValue() {
+			return new TokenLattice(new LeftToRightTokenFinder(), stateSymbols.length);
+		}
+	};
+
+	/** Beyond this many parses of a single word, the word is considered too ambiguous to process further */
+	private static final int MAXIMUM_PARSES = 128;
+
+	/** Per thread working arrays, of the {@link AnnotationChart} and {@link TokenLattice}, that grow beyond this length whilst processing an unusually long or ambiguous word are discarded afterwards */
+	static final int MAX_RETAINED_WORKING_ARRAY_LENGTH = 1 << 16;
 
 	/**
 	 * Creates a left to right parser that can parse a substituent/full/functional word
 	 * @param resourceManager
 	 */
 	ParseRules(ResourceManager resourceManager){
-		this.chemAutomaton = resourceManager.getChemicalAutomaton();
-		this.symbolTokenNamesDict = resourceManager.getSymbolTokenNamesDict();
+		this.tokenNamesTrie = resourceManager.getTokenNamesTrie();
+		this.additionalTokenNamesTrie = resourceManager.getAdditionalTokenNamesTrie();
 		this.symbolRegexAutomataDict = resourceManager.getSymbolRegexAutomataDict();
 		this.symbolRegexesDict = resourceManager.getSymbolRegexesDict();
-		this.stateSymbols = chemAutomaton.getCharIntervals();
-		this.initialState = new AnnotatorState(chemAutomaton.getInitialState(), '\0', 0, true, null);
+		this.compiledGrammar = resourceManager.getCompiledGrammar();
+		this.stateSymbols = compiledGrammar.getSymbols();
 	}
 
 	/**Determines the possible annotations for a chemical word
@@ -61,104 +78,223 @@ public class ParseRules {
 	 * @throws ParsingException
 	 */
 	public ParseRulesResults getParses(String chemicalWord) throws ParsingException {
-		String chemicalWordLowerCase = StringTools.lowerCaseAsciiString(chemicalWord);
-		ArrayDeque<AnnotatorState> asStack = new ArrayDeque<AnnotatorState>();
-		asStack.add(initialState);
-
-		int posInNameOfLastSuccessfulAnnotations = 0;
-		List<AnnotatorState> successfulAnnotations = new ArrayList<AnnotatorState>();
-		AnnotatorState longestAnnotation = initialState;//this is the longest annotation. It does not necessarily end in an accept state
-		int stateSymbolsSize = stateSymbols.length;
-		while (!asStack.isEmpty()) {
-			AnnotatorState as = asStack.removeFirst();
-			int posInName = as.getPosInName();
-			if (chemAutomaton.isAccept(as.getState())){
-				if (posInName >= posInNameOfLastSuccessfulAnnotations){//this annotation is worthy of consideration
-					if (posInName > posInNameOfLastSuccessfulAnnotations){//this annotation is longer than any previously found annotation
-						successfulAnnotations.clear();
-						posInNameOfLastSuccessfulAnnotations = posInName;
-					}
-					else if (successfulAnnotations.size() > 128){
-						throw new ParsingException("Ambiguity in OPSIN's chemical grammar has produced more than 128 annotations. Parsing has been aborted. Please report this as a bug");
-					}
-					successfulAnnotations.add(as);
-				}
+		return getParses(chemicalWord, 0);
+	}
+
+	/**
+	 * As {@link #getParses(String)} but the word to parse is the region of the name from start onwards.
+	 * The name is not copied; the tokens of the parses and the uninterpretable/unparseable names of the results
+	 * are only created from the name if they are requested
+	 * @param name
+	 * @param start
+	 * @return Results of parsing
+	 * @throws ParsingException
+	 */
+	ParseRulesResults getParses(String name, int start) throws ParsingException {
+		AnnotationChart chart = annotationChart.get();
+		chart.prepare(compiledGrammar.getNumberOfStates());
+		TokenLattice lattice = tokenLattice.get();
+		int end = name.length();
+		lattice.prepare(name, start, end);
+		try {
+			buildChart(lattice, chart, false);
+			List<ParseTokens> outputList;
+			int uninterpretableStart = start;
+			if (chart.acceptedPosition >= 0){//at least some of the name could be interpreted into a substituent/full/functionalTerm
+				outputList = enumerateParses(lattice, chart);
+				//all accepting nodes have the same posInName
+				uninterpretableStart = start + chart.acceptedPosition;
 			}
-			//record the longest annotation found so it can be reported to the user for debugging
-			if (posInName > longestAnnotation.getPosInName()){
-				longestAnnotation = as;
+			else {
+				outputList = new ArrayList<ParseTokens>(0);
 			}
+			return new ParseRulesResults(outputList, name, uninterpretableStart, end, start + chart.longestPosition, end);
+		}
+		finally {
+			chart.release();
+			lattice.release();
+		}
+	}
 
-			for (int i = 0; i < stateSymbolsSize; i++) {
-				char annotationCharacter = stateSymbols[i];
-				int potentialNextState = chemAutomaton.step(as.getState(), annotationCharacter);
-				if (potentialNextState != -1) {//-1 means this state is not accessible from the previous state
-					OpsinRadixTrie possibleTokenisationsTrie = symbolTokenNamesDict[i];
-					if (possibleTokenisationsTrie != null) {
-						List<Integer> possibleTokenisations = possibleTokenisationsTrie.findMatches(chemicalWordLowerCase, posInName);
-						if (possibleTokenisations != null) {//next could be a token
-							for (int j = 0, l = possibleTokenisations.size(); j < l; j++) {//typically list size will be 1 so this is faster than an iterator
-								int tokenizationIndex = possibleTokenisations.get(j);
-								AnnotatorState newAs = new AnnotatorState(potentialNextState, annotationCharacter, tokenizationIndex, false, as);
-								//System.out.println("tokened " + chemicalWordLowerCase.substring(posInName, tokenizationIndex));
-								asStack.add(newAs);
-							}
-						}
-					}
-					RunAutomaton possibleAutomata = symbolRegexAutomataDict[i];
-					if (possibleAutomata != null) {//next could be an automaton
-						int matchLength = possibleAutomata.run(chemicalWord, posInName);
-						if (matchLength != -1){//matchLength = -1 means it did not match
-							int tokenizationIndex = posInName + matchLength;
-							AnnotatorState newAs = new AnnotatorState(potentialNextState, annotationCharacter, tokenizationIndex, true, as);
-							//System.out.println("neword automata " + chemicalWord.substring(posInName, tokenizationIndex));
-							asStack.add(newAs);
-						}
-					}
-					Pattern possibleRegex = symbolRegexesDict[i];
-					if (possibleRegex != null) {//next could be a regex
-						Matcher mat = possibleRegex.matcher(chemicalWord).region(posInName, chemicalWord.length());
-						mat.useTransparentBounds(true);
-						if (mat.lookingAt()) {//match at start
-							int tokenizationIndex = posInName + mat.group(0).length();
-							AnnotatorState newAs = new AnnotatorState(potentialNextState, annotationCharacter, tokenizationIndex, true, as);
-							//System.out.println("neword regex " + mat.group(0));
-							asStack.add(newAs);
-						}
+	/**
+	 * Determines whether the entirety of the given word can be interpreted as a substituent/full/functionalTerm
+	 * e.g. ethyl and ester are chemical words whilst ethylfoo is not.
+	 * This is equivalent to checking that {@link #getParses(String)} returns at least one parse
+	 * and no uninterpretable name, but is much cheaper as no parses are generated
+	 * @param chemicalWord
+	 * @return
+	 */
+	public boolean isChemicalWord(String chemicalWord) {
+		return getLongestAcceptedLength(chemicalWord) == chemicalWord.length();
+	}
+
+	/**
+	 * Returns the length of the longest prefix of the given word that can be interpreted as a substituent/full/functionalTerm,
+	 * or -1 if no prefix can be e.g. 5 for ethylfoo.
+	 * This is the length {@link #getParses(String)} would have interpreted, but only whether the grammar accepts is determined, hence
+	 * no parses are generated and, after the first call on a thread, objects are only allocated if the chemical grammar requires a java.util.regex Pattern.
+	 * Unlike getParses, no exception is thrown for highly ambiguous words
+	 * @param chemicalWord
+	 * @return The length of the longest interpretable prefix or -1
+	 */
+	public int getLongestAcceptedLength(String chemicalWord) {
+		AnnotationChart chart = annotationChart.get();
+		chart.prepare(compiledGrammar.getNumberOfStates());
+		TokenLattice lattice = tokenLattice.get();
+		lattice.prepare(chemicalWord);
+		try {
+			buildChart(lattice, chart, true);
+			return chart.acceptedPosition;
+		}
+		finally {
+			chart.release();
+			lattice.release();
+		}
+	}
+
+	/**
+	 * Populates the chart with every (DFA state, position) node reachable from the initial state and the annotated tokens that connect them.
+	 * Each node is processed once, however many annotations lead to it, and the tokens at each position are shared by all nodes at that position.
+	 * @param lattice
+	 * @param chart
+	 * @param stopOnFullAcceptance Stop as soon as the entire word is found to be acceptable. Edges will be incomplete
+	 */
+	private void buildChart(TokenLattice lattice, AnnotationChart chart, boolean stopOnFullAcceptance) {
+		String name = lattice.getName();
+		int offset = lattice.getOffset();
+		int wordLength = lattice.getWordLength();
+		int initialState = compiledGrammar.getInitialState();
+		chart.findOrAddNode(initialState, 0, compiledGrammar.isAccept(initialState));
+
+		for (int node = 0; node < chart.nodeCount; node++) {
+			if (((node + 1) & 255) == 0) {
+				ProcessingTimeLimit.check();
+			}
+			int state = chart.nodeStates[node];
+			int posInName = chart.nodePositions[node];
+			if (posInName > chart.longestPosition){
+				chart.longestPosition = posInName;
+			}
+			if (chart.nodeAccepts[node] && posInName > chart.acceptedPosition){
+				chart.acceptedPosition = posInName;
+				if (stopOnFullAcceptance && posInName == wordLength){
+					break;
+				}
+			}
+			chart.nodeFirstEdge[node] = chart.edgeCount;
+			//skip states from which no token could be read at this position
+			if (compiledGrammar.mayReadToken(state, posInName < wordLength ? name.charAt(offset + posInName) : -1)) {
+				for (int transition = compiledGrammar.getFirstTransition(state), endOfTransitions = compiledGrammar.getEndOfTransitions(state); transition < endOfTransitions; transition++) {
+					int symbolIndex = compiledGrammar.getTransitionSymbol(transition);
+					int potentialNextState = compiledGrammar.getTransitionTarget(transition);
+					char annotationCharacter = stateSymbols[symbolIndex];
+					boolean accepts = compiledGrammar.isAccept(potentialNextState);
+					int tokens = lattice.findTokens(posInName, symbolIndex);
+					for (int t = lattice.getFirstToken(tokens), end = lattice.getEndOfTokens(tokens); t < end; t++) {
+						chart.addEdge(potentialNextState, accepts, lattice.getTokenPosition(t), annotationCharacter, lattice.isCaseSensitive(t));
 					}
 				}
 			}
+			chart.nodeEndEdge[node] = chart.edgeCount;
+		}
+	}
+
+	/**
+	 * Enumerates the paths through the chart that end at an accepting node.
+	 * Partial paths are extended breadth first, and only along edges from which an accepting node can be reached,
+	 * hence parses are returned in the order they would be found by a breadth first search over every annotator state
+	 * @param lattice
+	 * @param chart
+	 * @return
+	 * @throws ParsingException
+	 */
+	private List<ParseTokens> enumerateParses(TokenLattice lattice, AnnotationChart chart) throws ParsingException {
+		int numberOfParses = chart.countPaths(MAXIMUM_PARSES);
+		if (numberOfParses > MAXIMUM_PARSES){
+			throw new ParsingException("Ambiguity in OPSIN's chemical grammar has produced more than " + MAXIMUM_PARSES + " annotations. Parsing has been aborted. Please report this as a bug");
 		}
-		List<ParseTokens> outputList = new ArrayList<ParseTokens>();
-		String uninterpretableName = chemicalWord;
-		String unparseableName = chemicalWord.substring(longestAnnotation.getPosInName());
-		if (successfulAnnotations.size() > 0){//at least some of the name could be interpreted into a substituent/full/functionalTerm
-			int bestAcceptPosInName = -1;
-			for(AnnotatorState as : successfulAnnotations) {
-				outputList.add(convertAnnotationStateToParseTokens(as, chemicalWord, chemicalWordLowerCase));
-				bestAcceptPosInName = as.getPosInName();//all acceptable annotator states found should have the same posInName
+		List<ParseTokens> outputList = new ArrayList<ParseTokens>(numberOfParses);
+		chart.addPath(0, -1, -1);
+		for (int path = 0; path < chart.pathCount && outputList.size() < numberOfParses; path++) {
+			int node = chart.pathNodes[path];
+			if (chart.isAcceptingNode(node)){
+				outputList.add(convertPathToParseTokens(lattice, chart, path));
+			}
+			for (int edge = chart.nodeFirstEdge[node], end = chart.nodeEndEdge[node]; edge < end; edge++) {
+				int target = chart.edgeTargets[edge];
+				if (chart.nodeParseCounts[target] > 0){
+					chart.addPath(target, path, edge);
+				}
 			}
-			uninterpretableName = chemicalWord.substring(bestAcceptPosInName);
 		}
-		return new ParseRulesResults(outputList, uninterpretableName, unparseableName);
+		return outputList;
 	}
 
-	private ParseTokens convertAnnotationStateToParseTokens(AnnotatorState as, String chemicalWord, String chemicalWordLowerCase) {
-		List<String> tokens = new ArrayList<String>();
-		List<Character> annotations = new ArrayList<Character>();
-		AnnotatorState previousAs;
-		while ((previousAs = as.getPreviousAs()) != null) {
-			if (as.isCaseSensitive()) {
-				tokens.add(chemicalWord.substring(previousAs.getPosInName(), as.getPosInName()));
+	private ParseTokens convertPathToParseTokens(TokenLattice lattice, AnnotationChart chart, int path) {
+		int tokenCount = 0;
+		for (int i = path; chart.pathPrevious[i] != -1; i = chart.pathPrevious[i]) {
+			tokenCount++;
+		}
+		int offset = lattice.getOffset();
+		int[] tokenBoundaries = new int[tokenCount + 1];
+		boolean[] caseSensitive = new boolean[tokenCount];
+		char[] annotations = new char[tokenCount];
+		tokenBoundaries[tokenCount] = offset + chart.nodePositions[chart.pathNodes[path]];
+		int previousPath;
+		for (int i = tokenCount - 1; (previousPath = chart.pathPrevious[path]) != -1; i--) {
+			int edge = chart.pathEdges[path];
+			tokenBoundaries[i] = offset + chart.nodePositions[chart.pathNodes[previousPath]];
+			caseSensitive[i] = chart.edgeCaseSensitive[edge];
+			annotations[i] = chart.edgeAnnotations[edge];
+			path = previousPath;
+		}
+		return new ParseTokens(lattice.getName(), tokenBoundaries, caseSensitive, annotations);
+	}
+
+	/**
+	 * Finds tokens by reading the word from left to right
+	 */
+	private class LeftToRightTokenFinder implements TokenFinder {
+
+		public void findDictionaryTokens(TokenLattice lattice, int posInName) {
+			findDictionaryTokens(tokenNamesTrie, lattice, posInName);
+			if (additionalTokenNamesTrie != null) {
+				findDictionaryTokens(additionalTokenNamesTrie, lattice, posInName);
 			}
-			else{
-				tokens.add(chemicalWordLowerCase.substring(previousAs.getPosInName(), as.getPosInName()));
+		}
+
+		private void findDictionaryTokens(OpsinCompactTrie trie, TokenLattice lattice, int posInName) {
+			int[] matchEnds = lattice.getMatchBuffer();
+			int[] matchNodes = lattice.getMatchNodeBuffer();
+			int offset = lattice.getOffset();
+			int matches = trie.findMatchingNodes(lattice.getLowerCaseName(), offset + lattice.getWordLength(), offset + posInName, matchEnds, matchNodes);
+			for (int j = 0; j < matches; j++) {
+				int node = matchNodes[j];
+				for (int k = trie.getFirstSymbol(node), end = trie.getEndOfSymbols(node); k < end; k++) {
+					lattice.addDictionaryToken(trie.getSymbol(k), matchEnds[j] - offset);
+				}
+			}
+		}
+
+		public void findTokens(TokenLattice lattice, int posInName, int symbolIndex) {
+			int wordLength = lattice.getWordLength();
+			CompactAutomaton possibleAutomata = symbolRegexAutomataDict[symbolIndex];
+			if (possibleAutomata != null) {//next could be an automaton
+				//words always extend to the end of the name
+				int matchLength = possibleAutomata.run(lattice.getName(), lattice.getOffset() + posInName);
+				if (matchLength != -1){//matchLength = -1 means it did not match
+					lattice.addToken(posInName + matchLength, true);
+				}
+			}
+			Pattern possibleRegex = symbolRegexesDict[symbolIndex];
+			if (possibleRegex != null) {//next could be a regex
+				Matcher mat = lattice.getMatcher(symbolIndex, possibleRegex);
+				mat.region(posInName, wordLength);
+				mat.useTransparentBounds(true);
+				if (mat.lookingAt()) {//match at start
+					lattice.addToken(mat.end(), true);
+				}
 			}
-			annotations.add(as.getAnnot());
-			as = previousAs;
 		}
-		Collections.reverse(tokens);
-		Collections.reverse(annotations);
-		return new ParseTokens(tokens, annotations);
 	}
 }
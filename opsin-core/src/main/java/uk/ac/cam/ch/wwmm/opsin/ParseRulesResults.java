@@ -10,13 +10,43 @@ import java.util.List;
  */
 public class ParseRulesResults {
    private final List<ParseTokens> parseTokensList;
-   private final String uninterpretableName;
-   private final String unparseableName;
+   private String uninterpretableName;
+   private String unparseableName;
+   /**The name the uninterpretable and unparseable names are regions of, or null if they were given directly*/
+   private final String name;
+   private final int uninterpretableStart;
+   private final int uninterpretableEnd;
+   private final int unparseableStart;
+   private final int unparseableEnd;
 	
    public ParseRulesResults(List<ParseTokens> parseTokensList, String uninterpretableName, String unparseableName) {
 	  this.parseTokensList = parseTokensList;
 	  this.uninterpretableName = uninterpretableName;
 	  this.unparseableName = unparseableName;
+	  this.name = null;
+	  this.uninterpretableStart = -1;
+	  this.uninterpretableEnd = -1;
+	  this.unparseableStart = -1;
+	  this.unparseableEnd = -1;
+   }
+
+   /**
+    * Creates results whose uninterpretable and unparseable names are regions of the given name.
+    * These are only copied out of the name if they are requested
+    * @param parseTokensList
+    * @param name
+    * @param uninterpretableStart
+    * @param uninterpretableEnd
+    * @param unparseableStart
+    * @param unparseableEnd
+    */
+   ParseRulesResults(List<ParseTokens> parseTokensList, String name, int uninterpretableStart, int uninterpretableEnd, int unparseableStart, int unparseableEnd) {
+	  this.parseTokensList = parseTokensList;
+	  this.name = name;
+	  this.uninterpretableStart = uninterpretableStart;
+	  this.uninterpretableEnd = uninterpretableEnd;
+	  this.unparseableStart = unparseableStart;
+	  this.unparseableEnd = unparseableEnd;
    }
 
    /**
@@ -34,8 +64,29 @@ public class ParseRulesResults {
     * @return String of uninterpetable chemical name
     */
    public String getUninterpretableName() {
+      if (uninterpretableName == null) {
+         uninterpretableName = name.substring(uninterpretableStart, uninterpretableEnd);
+      }
       return uninterpretableName;
    }
+
+   /**
+    * The index in the parsed name at which the uninterpretable name starts.
+    * Only available if the results were created from a region of a name
+    * @return
+    */
+   int getUninterpretableStart() {
+      return uninterpretableStart;
+   }
+
+   /**
+    * The index in the parsed name after the end of the uninterpretable name.
+    * Only available if the results were created from a region of a name
+    * @return
+    */
+   int getUninterpretableEnd() {
+      return uninterpretableEnd;
+   }
    
    /**
     * The substring of the name that could not be tokenised at all.
@@ -44,11 +95,32 @@ public class ParseRulesResults {
     * @return String of unparseable chemical name
     */
    public String getUnparseableName() {
+	   if (unparseableName == null) {
+		   unparseableName = name.substring(unparseableStart, unparseableEnd);
+	   }
 	   return unparseableName;
    }
 
+   /**
+    * The index in the parsed name at which the unparseable name starts.
+    * Only available if the results were created from a region of a name
+    * @return
+    */
+   int getUnparseableStart() {
+      return unparseableStart;
+   }
+
+   /**
+    * The index in the parsed name after the end of the unparseable name.
+    * Only available if the results were created from a region of a name
+    * @return
+    */
+   int getUnparseableEnd() {
+      return unparseableEnd;
+   }
+
    public String toString() {
-      return "(" + parseTokensList.toString() + ", " + uninterpretableName + ", " + unparseableName + ")";
+      return "(" + parseTokensList.toString() + ", " + getUninterpretableName() + ", " + getUnparseableName() + ")";
    }
 
 }
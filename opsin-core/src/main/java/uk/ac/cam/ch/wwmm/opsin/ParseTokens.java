@@ -1,8 +1,10 @@
 package uk.ac.cam.ch.wwmm.opsin;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.RandomAccess;
 /**A "struct" containing data a possible tokenisation of a word in a chemical name.
  *
  * @author ptc24
@@ -10,11 +12,19 @@ import java.util.List;
  *
  */
 public class ParseTokens {
-	/**The tokens that the word is made up of.*/
-	private final List<String> tokens;
+	/**The name the tokens were read from, or null if the tokens were given directly*/
+	private final String name;
+	/**Token i is from tokenBoundaries[i] up to but not including tokenBoundaries[i + 1] in name*/
+	private final int[] tokenBoundaries;
+	/**Whether each token is as given in name, rather than its lower case form*/
+	private final boolean[] caseSensitive;
 
-	/**A list of possible annotations of that token.*/
-	private final List<Character> annotations;
+	/**The annotation of each token.*/
+	private final char[] annotations;
+
+	/**The tokens that the word is made up of. Created from name when first required*/
+	private volatile List<String> tokensList;
+	private final List<Character> annotationsList;
 
 	
 	/**
@@ -24,23 +34,113 @@ public class ParseTokens {
      * @param annotations
 	 */
 	ParseTokens(List<String> tokens, List<Character> annotations ){
-		if (tokens.size() != annotations.size()){
+		this(tokens.toArray(new String[tokens.size()]), toCharArray(annotations));
+	}
+
+	/**
+	 * Creates a parseTokens from arrays of tokens and annotations, which should not be subsequently modified
+	 * The arrays should be of identical lengths otherwise an exception is thrown
+	 * @param tokens
+	 * @param annotations
+	 */
+	ParseTokens(String[] tokens, char[] annotations){
+		if (tokens.length != annotations.length){
 			throw new IllegalArgumentException("OPSIN bug: mismatch between the sizes of tokens list and annotation list");
 		}
-		this.tokens = Collections.unmodifiableList(new ArrayList<String>(tokens));
-		this.annotations = Collections.unmodifiableList(new ArrayList<Character>(annotations));
+		this.name = null;
+		this.tokenBoundaries = null;
+		this.caseSensitive = null;
+		this.annotations = annotations;
+		this.tokensList = Collections.unmodifiableList(Arrays.asList(tokens));
+		this.annotationsList = new AnnotationList(annotations);
+	}
+
+	/**
+	 * Creates a parseTokens whose tokens are regions of the given name, the strings of which are only created if they are requested.
+	 * The arrays should not be subsequently modified
+	 * @param name
+	 * @param tokenBoundaries Token i is from tokenBoundaries[i] up to but not including tokenBoundaries[i + 1]. One longer than annotations
+	 * @param caseSensitive For each token, true if it should be as given in the name, false for its ASCII lower case form
+	 * @param annotations
+	 */
+	ParseTokens(String name, int[] tokenBoundaries, boolean[] caseSensitive, char[] annotations){
+		if (tokenBoundaries.length != annotations.length + 1 || caseSensitive.length != annotations.length){
+			throw new IllegalArgumentException("OPSIN bug: mismatch between the sizes of tokens list and annotation list");
+		}
+		this.name = name;
+		this.tokenBoundaries = tokenBoundaries;
+		this.caseSensitive = caseSensitive;
+		this.annotations = annotations;
+		this.annotationsList = new AnnotationList(annotations);
+	}
+
+	private static String[] createTokens(String name, int[] tokenBoundaries, boolean[] caseSensitive) {
+		String[] tokens = new String[caseSensitive.length];
+		for (int i = 0; i < tokens.length; i++) {
+			int start = tokenBoundaries[i];
+			int end = tokenBoundaries[i + 1];
+			if (caseSensitive[i]) {
+				tokens[i] = name.substring(start, end);
+			}
+			else {
+				char[] token = new char[end - start];
+				for (int j = 0; j < token.length; j++) {
+					char c = name.charAt(start + j);
+					if (c >= 'A' && c <= 'Z') {
+						c = (char) (c + 32);
+					}
+					token[j] = c;
+				}
+				tokens[i] = new String(token);
+			}
+		}
+		return tokens;
+	}
+
+	private static char[] toCharArray(List<Character> annotations) {
+		char[] arr = new char[annotations.size()];
+		for (int i = 0; i < arr.length; i++) {
+			arr[i] = annotations.get(i);
+		}
+		return arr;
 	}
 
 	public List<String> getTokens() {
+		List<String> tokens = tokensList;
+		if (tokens == null) {
+			tokens = Collections.unmodifiableList(Arrays.asList(createTokens(name, tokenBoundaries, caseSensitive)));
+			tokensList = tokens;
+		}
 		return tokens;
 	}
 
 	public List<Character> getAnnotations() {
-		return annotations;
+		return annotationsList;
+	}
+
+	/**
+	 * Read only view of a char array
+	 */
+	private static class AnnotationList extends AbstractList<Character> implements RandomAccess {
+		private final char[] annotations;
+
+		AnnotationList(char[] annotations) {
+			this.annotations = annotations;
+		}
+
+		@Override
+		public Character get(int index) {
+			return annotations[index];
+		}
+
+		@Override
+		public int size() {
+			return annotations.length;
+		}
 	}
 	
 	public String toString() {
-		return "[" + tokens + ", " + annotations + "]";
+		return "[" + getTokens() + ", " + annotationsList + "]";
 	}
 	
 	@Override
@@ -50,13 +150,13 @@ public class ParseTokens {
 		}
 		if (other instanceof ParseTokens) {
 			ParseTokens otherPT = (ParseTokens) other;
-			return this.tokens.equals(otherPT.tokens) && this.annotations.equals(otherPT.annotations);
+			return Arrays.equals(this.annotations, otherPT.annotations) && this.getTokens().equals(otherPT.getTokens());
 		}
 		return false;
 	}
 	
 	@Override
 	public int hashCode() {		
-		return (3 * this.tokens.hashCode()) * (7 * this.annotations.hashCode());
+		return (3 * getTokens().hashCode()) * (7 * Arrays.hashCode(this.annotations));
 	}
 }
@@ -28,6 +28,10 @@ class Parser {
 	/**Holds the various tokens used.*/
 	private final ResourceManager resourceManager;
 	private final ParseRules parseRules;
+	/**The right to left parser used for detailed failure analysis, built on first use or in the background. Null until successfully built*/
+	private volatile ReverseParseRules reverseParseRules;
+	/**Held whilst building reverseParseRules, so that it is only built once*/
+	private final Object reverseParseRulesLock = new Object();
 	
 	private static final Pattern matchSemiColonSpace = Pattern.compile("; ");
 	private static final Pattern matchStoichiometryIndication = Pattern.compile("[ ]?[\\{\\[\\(](\\d+|\\?)([:/](\\d+|\\?))+[\\}\\]\\)]$");
@@ -58,6 +62,55 @@ class Parser {
 		this.parseRules = tokeniser.getParseRules();
 	}
 
+	/**
+	 * Starts building the right to left parser used for detailed failure analysis on a background thread.
+	 * Does nothing if the parser has already been built
+	 */
+	void prepareReverseParseRulesInBackground() {
+		if (reverseParseRules != null) {
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					getReverseParseRules();
+				}
+				catch (RuntimeException e) {
+					//building will be retried when the parser is first needed
+					LOG.debug(e.getMessage(), e);
+				}
+			}
+		}, "OPSIN right to left parser initialisation");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the right to left parser used for detailed failure analysis, building it if it has not already been built.
+	 * If it is being built on another thread, waits for it to be built.
+	 * If building fails, the next call will try again
+	 * @return
+	 */
+	ReverseParseRules getReverseParseRules() {
+		ReverseParseRules result = reverseParseRules;
+		if (result == null) {
+			synchronized (reverseParseRulesLock) {
+				result = reverseParseRules;
+				if (result == null) {
+					long start = System.nanoTime();
+					try {
+						result = new ReverseParseRules(resourceManager);
+					} catch (IOException e) {
+						throw new RuntimeException("Failed to load resources for parsing names from right to left!", e);
+					}
+					LOG.debug("Right to left parser built in " + (System.nanoTime() - start) / 1000000 + "ms");
+					reverseParseRules = result;
+				}
+			}
+		}
+		return result;
+	}
+
 	/**Parses a chemical name to an XML representation of the parse.
 	 * @param n2sConfig 
 	 *
@@ -75,9 +128,11 @@ class Parser {
 			}
 		}
 		Parse parse = null;
+		//shared by all attempts to tokenise this name, so words are parsed at most once
+		ParseMemo memo = new ParseMemo();
 		if (name.contains(", ")){
 			try{
-				TokenizationResult tokenizationResult = tokeniser.tokenize(CASTools.uninvertCASName(name, parseRules), false);
+				TokenizationResult tokenizationResult = tokeniser.tokenize(CASTools.uninvertCASName(name, parseRules), false, memo);
 				if (tokenizationResult.isSuccessfullyTokenized()){
 					parse = tokenizationResult.getParse();
 				}
@@ -86,7 +141,7 @@ class Parser {
 			}
 		}
 		else if (name.contains("; ")){//a mixture, spaces are sufficient for OPSIN to treat as a mixture. These spaces for obvious reasons must not be removed
-			TokenizationResult tokenizationResult = tokeniser.tokenize(matchSemiColonSpace.matcher(name).replaceAll(" "), false);
+			TokenizationResult tokenizationResult = tokeniser.tokenize(matchSemiColonSpace.matcher(name).replaceAll(" "), false, memo);
 			if (tokenizationResult.isSuccessfullyTokenized()){
 				parse = tokenizationResult.getParse();
 			}
@@ -94,7 +149,7 @@ class Parser {
 		boolean allowSpaceRemoval;
 		if (parse == null) {
 			allowSpaceRemoval = true;
-			TokenizationResult tokenizationResult = tokeniser.tokenize(name , true);
+			TokenizationResult tokenizationResult = tokeniser.tokenize(name , true, memo);
 			if (tokenizationResult.isSuccessfullyTokenized()){
 				parse = tokenizationResult.getParse();
 			}
@@ -120,6 +175,7 @@ class Parser {
 		List<Element> results = new ArrayList<Element>();
 		ParsingException preciseException = null;
 		for(Parse pp : parses) {
+			ProcessingTimeLimit.check();
 			Element moleculeEl = new GroupingEl(MOLECULE_EL);
 			moleculeEl.addAttribute(new Attribute(NAME_ATR, name));
 			for(ParseWord pw : pp.getWords()) {
@@ -200,15 +256,9 @@ class Parser {
 	}
 
 	private void generateExactParseFailureReason(TokenizationResult tokenizationResult, String name) throws ParsingException {
-		ReverseParseRules reverseParseRules;
-		try {
-			reverseParseRules = new ReverseParseRules(resourceManager);
-		} catch (IOException e) {
-			throw new RuntimeException("Failed to load resources for parsing names from right to left!",e);
-		}
 		String uninterpretableLR = tokenizationResult.getUninterpretableName();
 		String unparseableLR = tokenizationResult.getUnparsableName();
-		TokenizationResult reverseTokenizationResult = tokeniser.tokenizeRightToLeft(reverseParseRules, uninterpretableLR, true);
+		TokenizationResult reverseTokenizationResult = tokeniser.tokenizeRightToLeft(getReverseParseRules(), uninterpretableLR, true);
 		String uninterpretableRL = reverseTokenizationResult.getUninterpretableName();
 		String unparseableRL = reverseTokenizationResult.getUnparsableName();
 		int indiceToTruncateUpTo =  uninterpretableLR.length()-unparseableLR.length();
@@ -261,6 +311,7 @@ class Parser {
 		Deque<Parse> parseQueue = new ArrayDeque<Parse>();
 		parseQueue.add(new Parse(parse.getName()));
 		while (!parseQueue.isEmpty()){
+			ProcessingTimeLimit.check();
 			Parse currentParse = parseQueue.removeFirst();
 			int wordsInCurrentParse = currentParse.getWords().size();
 			if(wordsInCurrentParse == parseWords.size()) {
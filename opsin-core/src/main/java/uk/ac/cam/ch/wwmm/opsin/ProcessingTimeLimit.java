@@ -0,0 +1,56 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+/**
+ * Holds the deadline for processing the name currently being processed by this thread.
+ * Stages of processing that may take a long time on pathological input call {@link #check()} periodically,
+ * hence processing is cancelled cooperatively.
+ * If no deadline has been started {@link #check()} does nothing
+ * @author dl387
+ *
+ */
+class ProcessingTimeLimit {
+
+	/** Limits longer than this, roughly 292 years, are treated as this limit as they cannot be expressed in nanoseconds */
+	private static final long MAX_TIME_LIMIT_MILLIS = Long.MAX_VALUE / 1000000L;
+
+	private static final ThreadLocal<ProcessingTimeLimit> CURRENT = new ThreadLocal<ProcessingTimeLimit>() {
+		@Override
+		protected ProcessingTimeLimit initialValue() {
+			return new ProcessingTimeLimit();
+		}
+	};
+
+	/** Compared to System.nanoTime(), only meaningful if timeLimitMillis != 0 */
+	private long deadline;
+	/** 0 if there is no time limit */
+	private long timeLimitMillis;
+
+	private ProcessingTimeLimit() {}
+
+	/**
+	 * Starts timing the processing of a name on this thread
+	 * @param timeLimitMillis
+	 */
+	static void start(long timeLimitMillis) {
+		ProcessingTimeLimit limit = CURRENT.get();
+		limit.timeLimitMillis = timeLimitMillis;
+		limit.deadline = System.nanoTime() + Math.min(timeLimitMillis, MAX_TIME_LIMIT_MILLIS) * 1000000L;
+	}
+
+	/**
+	 * Removes the time limit for this thread
+	 */
+	static void end() {
+		CURRENT.get().timeLimitMillis = 0;
+	}
+
+	/**
+	 * Throws a {@link TimeLimitExceededException} if the time limit for this thread has been exceeded
+	 */
+	static void check() {
+		ProcessingTimeLimit limit = CURRENT.get();
+		if (limit.timeLimitMillis != 0 && System.nanoTime() - limit.deadline > 0) {
+			throw new TimeLimitExceededException("Processing of the name was abandoned as it exceeded the time limit of " + limit.timeLimitMillis + " ms");
+		}
+	}
+}
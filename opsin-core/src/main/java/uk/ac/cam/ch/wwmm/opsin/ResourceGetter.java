@@ -6,9 +6,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
@@ -22,7 +26,7 @@ import com.ctc.wstx.stax.WstxInputFactory;
 /**
  * Handles I/O:
  * Gets resource files from packages which is useful for including data from the JAR file.
- * Provides OutputStreams for the serialisation of automata.
+ * Writes files, such as serialised automata, atomically.
  *
  * @author ptc24
  * @author dl387
@@ -33,7 +37,6 @@ class ResourceGetter {
 	private static final XMLInputFactory xmlInputFactory;
 
 	private final String resourcePath;
-	private final String workingDirectory;
 	
 	static {
 		xmlInputFactory = new WstxInputFactory();
@@ -53,14 +56,19 @@ class ResourceGetter {
 			resourcePath = resourcePath.substring(1);
 		}
 		this.resourcePath = resourcePath;
-		String workingDirectory;
+	}
+
+	/**
+	 * The working directory is determined whenever a file is fetched, rather than when this ResourceGetter is created,
+	 * as OPSIN may be initialised in a different environment to where it runs e.g. whilst building a native image
+	 * @return The canonical path of the working directory, or null if it could not be determined
+	 */
+	private static String getWorkingDirectory() {
 		try {
-			workingDirectory = new File(".").getCanonicalPath();//works on linux unlike using the system property
+			return new File(".").getCanonicalPath();//works on linux unlike using the system property
 		} catch (IOException e) {
-			//Automata will not be serialisable
-			workingDirectory = null;
+			return null;
 		}
-		this.workingDirectory = workingDirectory;
 	}
 	
 	/**
@@ -83,11 +91,9 @@ class ResourceGetter {
 			throw new IllegalArgumentException("Input to function was null");
 		}
 		try {
-			if (workingDirectory != null){
-				File f = getFile(name);
-				if(f != null) {
-					return xmlInputFactory.createXMLStreamReader(new FileInputStream(f));
-				}
+			File f = getFile(name);
+			if(f != null) {
+				return xmlInputFactory.createXMLStreamReader(new FileInputStream(f));
 			}
 			ClassLoader l = getClass().getClassLoader();
 			URL url = l.getResource(resourcePath + name);
@@ -100,19 +106,41 @@ class ResourceGetter {
 		}
 	}
 
+	/**
+	 * Returns an XML stream reader, configured as for OPSIN's resources, for the given input stream
+	 * e.g. for the files of a {@link OpsinResourceOverlay}.
+	 * The input stream is closed when the reader is closed
+	 * @param is
+	 * @param name The name of the file, used in error messages
+	 * @return An XMLStreamReader
+	 * @throws IOException
+	 */
+	static XMLStreamReader createXMLStreamReader(InputStream is, String name) throws IOException {
+		try {
+			return xmlInputFactory.createXMLStreamReader(is);
+		} catch (XMLStreamException e) {
+			throw new IOException("Validity exception occurred while reading the XML file with name:" +name, e);
+		}
+	}
+
+	/**
+	 * Returns the file with the given name in the resources folder of the working directory
+	 * @param name
+	 * @return The file or null if it does not exist or the working directory could not be determined
+	 */
 	private File getFile(String name) {
-		File f = new File(getResDir(), name);
+		String workingDirectory = getWorkingDirectory();
+		if (workingDirectory == null) {
+			return null;
+		}
+		File resourcesTop = new File(workingDirectory, "resources");
+		File f = new File(new File(resourcesTop, resourcePath), name);
 		if(f.isFile()){
 			return f;
 		}
 		return null;
 	}
 
-	private File getResDir() {
-		File resourcesTop = new File(workingDirectory, "resources");
-		return new File(resourcesTop, resourcePath);
-	}
-
 	/**Fetches a data file from resourcePath, and returns the entire contents
 	 * as a string.
 	 *
@@ -149,11 +177,9 @@ class ResourceGetter {
 		if(name == null){
 			throw new IllegalArgumentException("Input to function was null");
 		}
-		if (workingDirectory!=null){
-			File f = getFile(name);
-			if(f != null) {
-				return new FileInputStream(f);
-			}
+		File f = getFile(name);
+		if(f != null) {
+			return new FileInputStream(f);
 		}
 		ClassLoader l = getClass().getClassLoader();
 		URL url = l.getResource(resourcePath + name);
@@ -163,30 +189,89 @@ class ResourceGetter {
 		return url.openStream();
 	}
 
-	/**Sets up an output stream to which a resource file can be written; this
-	 * resource file will be in a subdirectory of the resources directory in
-	 * the working directory.
+	/**Fetches a data file from the working directory or resourcePath as a read-only ByteBuffer.
+	 * Files are memory mapped, whilst resources within a JAR are read into memory.
 	 *
-	 * @param name The name of the file to write.
-	 * @return The output stream.
-	 * @throws IOException 
+	 * @param name The name of the file to get a ByteBuffer of.
+	 * @return A ByteBuffer of the file's contents.
+	 * @throws IOException
 	 */
-	OutputStream getOutputStream(String name) throws IOException {
+	ByteBuffer getByteBuffer(String name) throws IOException {
 		if(name == null){
 			throw new IllegalArgumentException("Input to function was null");
 		}
-		File f = getFileForWriting(name);
-		return new FileOutputStream(f);
+		File f = getFile(name);
+		if (f == null) {
+			ClassLoader l = getClass().getClassLoader();
+			URL url = l.getResource(resourcePath + name);
+			if (url == null){
+				throw new IOException("URL for resource: " + resourcePath + name + " is invalid");
+			}
+			if (url.getProtocol().equals("file")) {
+				try {
+					f = new File(url.toURI());
+				} catch (URISyntaxException e) {
+					//read from the URL's stream instead
+				}
+			}
+			if (f == null) {
+				InputStream is = url.openStream();
+				try {
+					return ByteBuffer.wrap(IOUtils.toByteArray(is)).asReadOnlyBuffer();
+				}
+				finally {
+					IOUtils.closeQuietly(is);
+				}
+			}
+		}
+		return mapFile(f);
 	}
 
-	private File getFileForWriting(String name) throws IOException {
-		File resourcesTop = new File(workingDirectory, "resources");
-		File resDir = new File(resourcesTop, resourcePath);
-		if(!resDir.exists()){
-			if (!resDir.mkdirs()){
-				throw new IOException("Failed to generate requested directories to create: " + name);
+	/**Memory maps the given file as a read-only ByteBuffer.
+	 *
+	 * @param f
+	 * @return A ByteBuffer of the file's contents.
+	 * @throws IOException
+	 */
+	static ByteBuffer mapFile(File f) throws IOException {
+		FileInputStream fis = new FileInputStream(f);
+		try {
+			FileChannel channel = fis.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally {
+			IOUtils.closeQuietly(fis);
+		}
+	}
+
+	/**Writes the given file, creating its directory if necessary.
+	 * The file is written under a temporary name in the same directory and then renamed, hence any existing file is replaced atomically
+	 * and concurrent readers, including those that have memory mapped the file, see either the old or new file in its entirety.
+	 *
+	 * @param f
+	 * @param contents
+	 * @throws IOException
+	 */
+	static void writeFileAtomically(File f, byte[] contents) throws IOException {
+		File dir = f.getParentFile();
+		if (!dir.mkdirs() && !dir.isDirectory()){//may have been concurrently created
+			throw new IOException("Failed to generate requested directories to create: " + f);
+		}
+		File temp = File.createTempFile(f.getName(), ".tmp", dir);
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(contents);
+			}
+			finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			if (temp.exists()) {
+				temp.delete();
 			}
 		}
-		return new File(resDir, name);
 	}
 }
@@ -0,0 +1,542 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+
+/**
+ * The left to right mappings of a {@link ResourceManager}, and the {@link WordRules} and {@link SuffixRules}, in a binary form that can be
+ * loaded without parsing the XML resources or deserialising the chemical grammar's automaton. The image is generated by {@link #main(String[])}
+ * whilst building OPSIN, hence is included in OPSIN's jar, and is memory mapped when loaded, if it is not within a JAR.
+ * <p>
+ * The image records the format version and a fingerprint of the XML resources it was generated from,
+ * an image whose format or fingerprint does not match is ignored, and the resources are instead loaded from XML.
+ * @author dl387
+ *
+ */
+final class ResourceImage {
+
+	private static final Logger LOG = Logger.getLogger(ResourceImage.class);
+
+	static final String FILE_NAME = "resources.img";
+	/** "OPSN" */
+	private static final int MAGIC_NUMBER = 0x4F50534E;
+	/** Should be incremented whenever the contents of the image, or how the resources are derived from the XML, changes */
+	static final int FORMAT_VERSION = 3;
+
+	private final List<String> tokenFiles;
+	private final CompiledGrammar compiledGrammar;
+	private final OpsinCompactTrie tokenNamesTrie;
+	private final HashMap<String, Map<Character, TokenEl>> tokenDict;
+	private final HashMap<Character, TokenEl> reSymbolTokenDict;
+	private final CompactAutomaton[] symbolRegexAutomataDict;
+	private final Pattern[] symbolRegexesDict;
+	private final List<String> regexTokensNotDeterminised;
+	private final WordRules wordRules;
+	private final SuffixRules suffixRules;
+
+	ResourceImage(List<String> tokenFiles, CompiledGrammar compiledGrammar, OpsinCompactTrie tokenNamesTrie,
+			HashMap<String, Map<Character, TokenEl>> tokenDict, HashMap<Character, TokenEl> reSymbolTokenDict,
+			CompactAutomaton[] symbolRegexAutomataDict, Pattern[] symbolRegexesDict, List<String> regexTokensNotDeterminised,
+			WordRules wordRules, SuffixRules suffixRules) {
+		this.tokenFiles = tokenFiles;
+		this.compiledGrammar = compiledGrammar;
+		this.tokenNamesTrie = tokenNamesTrie;
+		this.tokenDict = tokenDict;
+		this.reSymbolTokenDict = reSymbolTokenDict;
+		this.symbolRegexAutomataDict = symbolRegexAutomataDict;
+		this.symbolRegexesDict = symbolRegexesDict;
+		this.regexTokensNotDeterminised = regexTokensNotDeterminised;
+		this.wordRules = wordRules;
+		this.suffixRules = suffixRules;
+	}
+
+	/**
+	 * Loads the resource image using the given resourceGetter.
+	 * Returns null if there is no image, or it is not of the current format or was not generated from the current resources
+	 * @param resourceGetter
+	 * @return
+	 */
+	static ResourceImage load(ResourceGetter resourceGetter) {
+		ByteBuffer buffer;
+		try {
+			buffer = resourceGetter.getByteBuffer(FILE_NAME);
+		}
+		catch (IOException e) {
+			LOG.debug("No resource image found, resources will be loaded from XML");
+			return null;
+		}
+		return load(buffer, resourceGetter);
+	}
+
+	/**
+	 * Loads the resource image from the given buffer.
+	 * Returns null if it is not of the current format or was not generated from the resources of the given resourceGetter
+	 * @param buffer
+	 * @param resourceGetter
+	 * @return
+	 */
+	static ResourceImage load(ByteBuffer buffer, ResourceGetter resourceGetter) {
+		try {
+			if (buffer.getInt() != MAGIC_NUMBER || buffer.getInt() != FORMAT_VERSION) {
+				LOG.debug("Resource image is of a different format, resources will be loaded from XML");
+				return null;
+			}
+			List<String> tokenFiles = readStringList(buffer);
+			long fingerprint = buffer.getLong();
+			int bodyLength = buffer.getInt();
+			if (buffer.remaining() != bodyLength) {
+				LOG.debug("Resource image is incomplete, resources will be loaded from XML");
+				return null;
+			}
+			if (fingerprint != fingerprint(resourceGetter, tokenFiles)) {
+				LOG.debug("Resource image is out of date, resources will be loaded from XML");
+				return null;
+			}
+			return read(buffer, tokenFiles);
+		}
+		catch (Exception e) {
+			LOG.warn("Resource image could not be read, resources will be loaded from XML", e);
+			return null;
+		}
+	}
+
+	private static ResourceImage read(ByteBuffer buffer, List<String> tokenFiles) throws IOException {
+		CompiledGrammar compiledGrammar = CompiledGrammar.read(buffer);
+		OpsinCompactTrie tokenNamesTrie = OpsinCompactTrie.read(buffer);
+
+		String[] strings = readStringTable(buffer);
+
+		int[] elNames = readIntArray(buffer);
+		int[] attributeStarts = readIntArray(buffer);
+		int[] attributeNames = readIntArray(buffer);
+		int[] attributeValues = readIntArray(buffer);
+		TokenEl[] tokenEls = new TokenEl[elNames.length];
+		for (int i = 0; i < tokenEls.length; i++) {
+			TokenEl el = new TokenEl(strings[elNames[i]]);
+			for (int j = attributeStarts[i]; j < attributeStarts[i + 1]; j++) {
+				el.addAttribute(strings[attributeNames[j]], strings[attributeValues[j]]);
+			}
+			tokenEls[i] = el;
+		}
+
+		int[] tokens = readIntArray(buffer);
+		int[] tokenSymbolStarts = readIntArray(buffer);
+		char[] tokenSymbols = readCharArray(buffer);
+		int[] tokenSymbolEls = readIntArray(buffer);
+		HashMap<String, Map<Character, TokenEl>> tokenDict = new HashMap<String, Map<Character, TokenEl>>((int) (tokens.length / 0.75f) + 1);
+		for (int i = 0; i < tokens.length; i++) {
+			Map<Character, TokenEl> symbolToToken = new HashMap<Character, TokenEl>((int) ((tokenSymbolStarts[i + 1] - tokenSymbolStarts[i]) / 0.75f) + 1);
+			for (int j = tokenSymbolStarts[i]; j < tokenSymbolStarts[i + 1]; j++) {
+				symbolToToken.put(tokenSymbols[j], getTokenEl(tokenEls, tokenSymbolEls[j]));
+			}
+			tokenDict.put(strings[tokens[i]], symbolToToken);
+		}
+		char[] regexSymbols = readCharArray(buffer);
+		int[] regexElIndices = readIntArray(buffer);
+		HashMap<Character, TokenEl> reSymbolTokenDict = new HashMap<Character, TokenEl>();
+		for (int i = 0; i < regexSymbols.length; i++) {
+			reSymbolTokenDict.put(regexSymbols[i], getTokenEl(tokenEls, regexElIndices[i]));
+		}
+
+		int[] regexes = readIntArray(buffer);
+		Pattern[] symbolRegexesDict = new Pattern[regexes.length];
+		for (int i = 0; i < regexes.length; i++) {
+			if (regexes[i] >= 0) {
+				symbolRegexesDict[i] = Pattern.compile(strings[regexes[i]]);
+			}
+		}
+		List<String> regexTokensNotDeterminised = new ArrayList<String>();
+		for (int i : readIntArray(buffer)) {
+			regexTokensNotDeterminised.add(strings[i]);
+		}
+		CompactAutomaton[] symbolRegexAutomataDict = new CompactAutomaton[buffer.getInt()];
+		for (int i = 0; i < symbolRegexAutomataDict.length; i++) {
+			if (buffer.get() != 0) {
+				symbolRegexAutomataDict[i] = CompactAutomaton.read(buffer);
+			}
+		}
+		WordRules wordRules = WordRules.read(buffer);
+		SuffixRules suffixRules = SuffixRules.read(buffer);
+		return new ResourceImage(tokenFiles, compiledGrammar, tokenNamesTrie, tokenDict, reSymbolTokenDict,
+				symbolRegexAutomataDict, symbolRegexesDict, regexTokensNotDeterminised, wordRules, suffixRules);
+	}
+
+	private static TokenEl getTokenEl(TokenEl[] tokenEls, int index) {
+		return index >= 0 ? tokenEls[index] : ResourceManager.IGNORE_WHEN_WRITING_PARSE_TREE;
+	}
+
+	/**
+	 * Serialises the image, including a fingerprint of the XML resources, read using the given resourceGetter, from which it was generated
+	 * @param resourceGetter
+	 * @return
+	 * @throws IOException
+	 */
+	byte[] toByteArray(ResourceGetter resourceGetter) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		compiledGrammar.write(out);
+		tokenNamesTrie.write(out);
+
+		Map<String, Integer> stringIndices = new HashMap<String, Integer>();
+		List<String> strings = new ArrayList<String>();
+		Map<TokenEl, Integer> tokenElIndices = new IdentityHashMap<TokenEl, Integer>();
+		List<TokenEl> tokenEls = new ArrayList<TokenEl>();
+		for (Map<Character, TokenEl> symbolToToken : tokenDict.values()) {
+			for (TokenEl el : symbolToToken.values()) {
+				addTokenEl(el, tokenElIndices, tokenEls);
+			}
+		}
+		for (TokenEl el : reSymbolTokenDict.values()) {
+			addTokenEl(el, tokenElIndices, tokenEls);
+		}
+		int attributeCount = 0;
+		for (TokenEl el : tokenEls) {
+			attributeCount += el.getAttributeCount();
+		}
+		int[] elNames = new int[tokenEls.size()];
+		int[] attributeStarts = new int[tokenEls.size() + 1];
+		int[] attributeNames = new int[attributeCount];
+		int[] attributeValues = new int[attributeCount];
+		int attribute = 0;
+		for (int i = 0; i < tokenEls.size(); i++) {
+			TokenEl el = tokenEls.get(i);
+			elNames[i] = addString(el.getName(), stringIndices, strings);
+			attributeStarts[i] = attribute;
+			for (int j = 0, len = el.getAttributeCount(); j < len; j++) {
+				Attribute atr = el.getAttribute(j);
+				attributeNames[attribute] = addString(atr.getName(), stringIndices, strings);
+				attributeValues[attribute++] = addString(atr.getValue(), stringIndices, strings);
+			}
+		}
+		attributeStarts[tokenEls.size()] = attribute;
+
+		int tokenSymbolCount = 0;
+		for (Map<Character, TokenEl> symbolToToken : tokenDict.values()) {
+			tokenSymbolCount += symbolToToken.size();
+		}
+		int[] tokens = new int[tokenDict.size()];
+		int[] tokenSymbolStarts = new int[tokenDict.size() + 1];
+		char[] tokenSymbols = new char[tokenSymbolCount];
+		int[] tokenSymbolEls = new int[tokenSymbolCount];
+		int token = 0;
+		int tokenSymbol = 0;
+		for (Entry<String, Map<Character, TokenEl>> entry : tokenDict.entrySet()) {
+			tokens[token] = addString(entry.getKey(), stringIndices, strings);
+			tokenSymbolStarts[token++] = tokenSymbol;
+			for (Entry<Character, TokenEl> symbolEntry : entry.getValue().entrySet()) {
+				tokenSymbols[tokenSymbol] = symbolEntry.getKey();
+				tokenSymbolEls[tokenSymbol++] = getTokenElIndex(symbolEntry.getValue(), tokenElIndices);
+			}
+		}
+		tokenSymbolStarts[token] = tokenSymbol;
+
+		char[] regexSymbols = new char[reSymbolTokenDict.size()];
+		int[] regexElIndices = new int[reSymbolTokenDict.size()];
+		int regexToken = 0;
+		for (Entry<Character, TokenEl> entry : reSymbolTokenDict.entrySet()) {
+			regexSymbols[regexToken] = entry.getKey();
+			regexElIndices[regexToken++] = getTokenElIndex(entry.getValue(), tokenElIndices);
+		}
+		int[] regexes = new int[symbolRegexesDict.length];
+		for (int i = 0; i < symbolRegexesDict.length; i++) {
+			regexes[i] = symbolRegexesDict[i] != null ? addString(symbolRegexesDict[i].pattern(), stringIndices, strings) : -1;
+		}
+		int[] regexTokensNotDeterminisedIndices = new int[regexTokensNotDeterminised.size()];
+		for (int i = 0; i < regexTokensNotDeterminised.size(); i++) {
+			regexTokensNotDeterminisedIndices[i] = addString(regexTokensNotDeterminised.get(i), stringIndices, strings);
+		}
+
+		writeStringTable(out, strings);
+		writeIntArray(out, elNames);
+		writeIntArray(out, attributeStarts);
+		writeIntArray(out, attributeNames);
+		writeIntArray(out, attributeValues);
+		writeIntArray(out, tokens);
+		writeIntArray(out, tokenSymbolStarts);
+		writeCharArray(out, tokenSymbols);
+		writeIntArray(out, tokenSymbolEls);
+		writeCharArray(out, regexSymbols);
+		writeIntArray(out, regexElIndices);
+		writeIntArray(out, regexes);
+		writeIntArray(out, regexTokensNotDeterminisedIndices);
+		out.writeInt(symbolRegexAutomataDict.length);
+		for (CompactAutomaton automaton : symbolRegexAutomataDict) {
+			out.writeBoolean(automaton != null);
+			if (automaton != null) {
+				automaton.write(out);
+			}
+		}
+		wordRules.write(out);
+		suffixRules.write(out);
+		out.flush();
+
+		ByteArrayOutputStream image = new ByteArrayOutputStream(body.size() + 1024);
+		DataOutputStream header = new DataOutputStream(image);
+		header.writeInt(MAGIC_NUMBER);
+		header.writeInt(FORMAT_VERSION);
+		writeStringTable(header, tokenFiles);
+		header.writeLong(fingerprint(resourceGetter, tokenFiles));
+		header.writeInt(body.size());
+		header.flush();
+		body.writeTo(image);
+		return image.toByteArray();
+	}
+
+	private static void addTokenEl(TokenEl el, Map<TokenEl, Integer> tokenElIndices, List<TokenEl> tokenEls) {
+		if (el != ResourceManager.IGNORE_WHEN_WRITING_PARSE_TREE && !tokenElIndices.containsKey(el)) {
+			tokenElIndices.put(el, tokenEls.size());
+			tokenEls.add(el);
+		}
+	}
+
+	private static int addString(String str, Map<String, Integer> stringIndices, List<String> strings) {
+		Integer index = stringIndices.get(str);
+		if (index == null) {
+			index = strings.size();
+			stringIndices.put(str, index);
+			strings.add(str);
+		}
+		return index;
+	}
+
+	private static int getTokenElIndex(TokenEl el, Map<TokenEl, Integer> tokenElIndices) {
+		return el != ResourceManager.IGNORE_WHEN_WRITING_PARSE_TREE ? tokenElIndices.get(el) : -1;
+	}
+
+	/**
+	 * A fingerprint of the contents of the XML resources from which the image is generated
+	 * @param resourceGetter
+	 * @param tokenFiles
+	 * @return
+	 * @throws IOException
+	 */
+	private static long fingerprint(ResourceGetter resourceGetter, List<String> tokenFiles) throws IOException {
+		List<String> files = new ArrayList<String>();
+		files.add("index.xml");
+		files.addAll(tokenFiles);
+		files.add("regexTokens.xml");
+		files.add("regexes.xml");
+		files.add("wordRules.xml");
+		files.add("suffixRules.xml");
+		files.add("suffixApplicability.xml");
+		CRC32 crc = new CRC32();
+		long length = 0;
+		byte[] bytes = new byte[8192];
+		for (String file : files) {
+			InputStream is = resourceGetter.getInputstreamFromFileName(file);
+			try {
+				int read;
+				while ((read = is.read(bytes)) != -1) {
+					crc.update(bytes, 0, read);
+					length += read;
+				}
+			}
+			finally {
+				IOUtils.closeQuietly(is);
+			}
+		}
+		return (length << 32) | crc.getValue();
+	}
+
+	List<String> getTokenFiles() {
+		return tokenFiles;
+	}
+
+	WordRules getWordRules() {
+		return wordRules;
+	}
+
+	SuffixRules getSuffixRules() {
+		return suffixRules;
+	}
+
+	CompiledGrammar getCompiledGrammar() {
+		return compiledGrammar;
+	}
+
+	OpsinCompactTrie getTokenNamesTrie() {
+		return tokenNamesTrie;
+	}
+
+	HashMap<String, Map<Character, TokenEl>> getTokenDict() {
+		return tokenDict;
+	}
+
+	HashMap<Character, TokenEl> getReSymbolTokenDict() {
+		return reSymbolTokenDict;
+	}
+
+	CompactAutomaton[] getSymbolRegexAutomataDict() {
+		return symbolRegexAutomataDict;
+	}
+
+	Pattern[] getSymbolRegexesDict() {
+		return symbolRegexesDict;
+	}
+
+	List<String> getRegexTokensNotDeterminised() {
+		return regexTokensNotDeterminised;
+	}
+
+	/**
+	 * Writes the strings as their lengths followed by their concatenated characters, so that they can be read in bulk
+	 * @param out
+	 * @param strs
+	 * @throws IOException
+	 */
+	private static void writeStringTable(DataOutputStream out, List<String> strs) throws IOException {
+		int[] lengths = new int[strs.size()];
+		StringBuilder chars = new StringBuilder();
+		for (int i = 0; i < lengths.length; i++) {
+			String str = strs.get(i);
+			lengths[i] = str.length();
+			chars.append(str);
+		}
+		writeIntArray(out, lengths);
+		writeCharArray(out, chars.toString().toCharArray());
+	}
+
+	private static String[] readStringTable(ByteBuffer buffer) {
+		int[] lengths = readIntArray(buffer);
+		char[] chars = readCharArray(buffer);
+		String[] strs = new String[lengths.length];
+		int start = 0;
+		for (int i = 0; i < lengths.length; i++) {
+			strs[i] = new String(chars, start, lengths[i]);
+			start += lengths[i];
+		}
+		return strs;
+	}
+
+	private static List<String> readStringList(ByteBuffer buffer) {
+		return Collections.unmodifiableList(Arrays.asList(readStringTable(buffer)));
+	}
+
+	/**
+	 * Writes a string, which may be null, in the form read by {@link #readString(ByteBuffer)}
+	 * @param out
+	 * @param str
+	 * @throws IOException
+	 */
+	static void writeString(DataOutputStream out, String str) throws IOException {
+		if (str == null) {
+			out.writeInt(-1);
+		}
+		else {
+			writeCharArray(out, str.toCharArray());
+		}
+	}
+
+	static String readString(ByteBuffer buffer) {
+		if (buffer.getInt(buffer.position()) < 0) {
+			buffer.getInt();
+			return null;
+		}
+		return new String(readCharArray(buffer));
+	}
+
+	static void writeCharArray(DataOutputStream out, char[] array) throws IOException {
+		out.writeInt(array.length);
+		for (char c : array) {
+			out.writeChar(c);
+		}
+	}
+
+	static char[] readCharArray(ByteBuffer buffer) {
+		char[] array = new char[buffer.getInt()];
+		buffer.asCharBuffer().get(array);
+		buffer.position(buffer.position() + array.length * 2);
+		return array;
+	}
+
+	static void writeIntArray(DataOutputStream out, int[] array) throws IOException {
+		out.writeInt(array.length);
+		for (int i : array) {
+			out.writeInt(i);
+		}
+	}
+
+	static int[] readIntArray(ByteBuffer buffer) {
+		int[] array = new int[buffer.getInt()];
+		buffer.asIntBuffer().get(array);
+		buffer.position(buffer.position() + array.length * 4);
+		return array;
+	}
+
+	static void writeLongArray(DataOutputStream out, long[] array) throws IOException {
+		out.writeInt(array.length);
+		for (long l : array) {
+			out.writeLong(l);
+		}
+	}
+
+	static long[] readLongArray(ByteBuffer buffer) {
+		long[] array = new long[buffer.getInt()];
+		buffer.asLongBuffer().get(array);
+		buffer.position(buffer.position() + array.length * 8);
+		return array;
+	}
+
+	static void writeBooleanArray(DataOutputStream out, boolean[] array) throws IOException {
+		out.writeInt(array.length);
+		for (boolean b : array) {
+			out.writeBoolean(b);
+		}
+	}
+
+	static boolean[] readBooleanArray(ByteBuffer buffer) {
+		boolean[] array = new boolean[buffer.getInt()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = buffer.get() != 0;
+		}
+		return array;
+	}
+
+	/**
+	 * Generates the resource image from the XML resources on the classpath.
+	 * The image is written to the resources directory within the given output directory, typically target/classes
+	 * @param args The output directory
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: ResourceImage outputDirectory");
+			System.exit(1);
+		}
+		ResourceGetter resourceGetter = new ResourceGetter("uk/ac/cam/ch/wwmm/opsin/resources/");
+		ResourceManager resourceManager = new ResourceManager(resourceGetter, false);
+		byte[] image = resourceManager.getResourceImage(new WordRules(resourceGetter), new SuffixRules(resourceGetter)).toByteArray(resourceGetter);
+		File outputDirectory = new File(args[0], resourceGetter.getResourcePath());
+		if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			throw new IOException("Failed to create directory: " + outputDirectory);
+		}
+		File imageFile = new File(outputDirectory, FILE_NAME);
+		FileOutputStream out = new FileOutputStream(imageFile);
+		try {
+			out.write(image);
+		}
+		finally {
+			out.close();
+		}
+		System.out.println("Wrote " + image.length + " byte resource image to " + imageFile);
+	}
+}
@@ -1,9 +1,18 @@
 package uk.ac.cam.ch.wwmm.opsin;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -11,19 +20,31 @@ import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
-import dk.brics.automaton.RunAutomaton;
+import org.apache.log4j.Logger;
+
 import static uk.ac.cam.ch.wwmm.opsin.XmlDeclarations.*;
 
 /**Holds all of the tokens used in parsing of chemical names.
  * Holds all automata
  * Generates XML Elements for tokens.
+ * 
+ * The left-to-right mappings are loaded from the {@link ResourceImage} generated whilst building OPSIN if an up to date image is available,
+ * otherwise they are derived from the XML resources. No image is written at runtime.
+ * 
+ * A ResourceManager may also be an overlay of a base ResourceManager, with the tokens of additional token files.
+ * An overlay shares the base's grammar, automata, tries and token dictionary, and only holds its own tokens.
+ * 
+ * Thread-safety: all left-to-right mappings are populated by the constructor and are never modified afterwards.
+ * The right-to-left mappings are built on first use by {@link #populatedReverseTokenMappings()}
+ * and published, fully populated, via volatile fields. Hence a ResourceManager may be shared between threads.
  *
  * @author ptc24
  * @author dl387
  *
  */
 class ResourceManager {
-	private static final TokenEl IGNORE_WHEN_WRITING_PARSE_TREE = new TokenEl("");
+	private static final Logger LOG = Logger.getLogger(ResourceManager.class);
+	static final TokenEl IGNORE_WHEN_WRITING_PARSE_TREE = new TokenEl("");
 
 	/**Used to load XML files.*/
 	private final ResourceGetter resourceGetter;
@@ -31,32 +52,48 @@ class ResourceManager {
 	/**Used to serialise and deserialise automata.*/
 	private final AutomatonInitialiser automatonInitialiser;
 	
-	/**A mapping between primitive tokens, and annotation->Token object mappings.*/
-	private final HashMap<String, Map<Character, TokenEl>> tokenDict = new HashMap<String, Map<Character, TokenEl>>();
+	/**The ResourceManager whose mappings this overlays, null if this is not an overlay*/
+	private final ResourceManager base;
+	/**The token lists of the overlay's token files, empty if this is not an overlay*/
+	private final List<TokenList> overlayTokenLists;
+
+	/**A mapping between primitive tokens, and annotation->Token object mappings.
+	 * For an overlay, only the overlay's tokens*/
+	private final HashMap<String, Map<Character, TokenEl>> tokenDict;
 	/**A mapping between regex tokens, and annotation->Token object mappings.*/
-	private final HashMap<Character, TokenEl> reSymbolTokenDict = new HashMap<Character, TokenEl>();
+	private final HashMap<Character, TokenEl> reSymbolTokenDict;
+	/**The token files listed in index.xml*/
+	private final List<String> tokenFiles;
 
 
-	/**A mapping between annotation symbols and a trie of tokens.*/
-	private final OpsinRadixTrie[] symbolTokenNamesDict;
+	/**A trie of the tokens of all annotation symbols, whose end points record the symbols of the token.*/
+	private final OpsinCompactTrie tokenNamesTrie;
+	/**A trie of the tokens of an overlay that the base does not have with the same symbol, null if there are none*/
+	private final OpsinCompactTrie additionalTokenNamesTrie;
 	/**A mapping between annotation symbols and DFAs (annotation->automata mapping).*/
-	private final RunAutomaton[] symbolRegexAutomataDict;
+	private final CompactAutomaton[] symbolRegexAutomataDict;
 	/**A mapping between annotation symbols and regex patterns (annotation->regex pattern mapping).*/
 	private final Pattern[] symbolRegexesDict;
+	/**The regex tokens, as symbol=regex, that are matched using symbolRegexesDict as they could not be compiled into DFAs*/
+	private final List<String> regexTokensNotDeterminised;
 	
-	/**The automaton which describes the grammar of a chemical name from left to right*/
-	private final RunAutomaton chemicalAutomaton;
+	/**The annotation symbols of the chemical grammar*/
+	private final char[] grammarSymbols;
+	/**Transition tables and token first character masks derived from the automaton which describes the grammar of a chemical name from left to right*/
+	private final CompiledGrammar compiledGrammar;
 	
 	
-	/**As symbolTokenNamesDict but the tokens are reversed*/
-	private OpsinRadixTrie[] symbolTokenNamesDictReversed;
+	/**As tokenNamesTrie but the tokens are reversed*/
+	private volatile OpsinCompactTrie tokenNamesTrieReversed;
+	/**As additionalTokenNamesTrie but the tokens are reversed*/
+	private volatile OpsinCompactTrie additionalTokenNamesTrieReversed;
 	/**As symbolRegexAutomataDict but automata are reversed */
-	private RunAutomaton[] symbolRegexAutomataDictReversed;
+	private volatile CompactAutomaton[] symbolRegexAutomataDictReversed;
 	/**As symbolRegexesDict but regexes match the end of string */
-	private Pattern[] symbolRegexesDictReversed;
-	
-	/**The automaton which describes the grammar of a chemical name from right to left*/
-	private RunAutomaton reverseChemicalAutomaton;
+	private volatile Pattern[] symbolRegexesDictReversed;
+	/**As compiledGrammar but derived from the automaton which describes the grammar of a chemical name from right to left.
+	 * Assigned after the other reversed fields, hence if this is non-null they are all available*/
+	private volatile CompiledGrammar reverseCompiledGrammar;
 
 	/**Generates the ResourceManager.
 	 * This involves reading in the token files, the regexToken file (regexTokens.xml) and the grammar file (regexes.xml).
@@ -67,31 +104,192 @@ class ResourceManager {
 	 * @throws IOException 
 	 */
 	ResourceManager(ResourceGetter resourceGetter) throws IOException {
+		this(resourceGetter, true, null);
+	}
+
+	/**Generates the ResourceManager.
+	 * If useResourceImage is true, the left-to-right mappings are loaded from the {@link ResourceImage} generated whilst building OPSIN, if an up to date image is available.
+	 * Otherwise they are generated from the XML resources.
+	 * @param resourceGetter
+	 * @param useResourceImage
+	 * @throws IOException
+	 */
+	ResourceManager(ResourceGetter resourceGetter, boolean useResourceImage) throws IOException {
+		this(resourceGetter, useResourceImage, null);
+	}
+
+	/**Generates the ResourceManager.
+	 * As {@link #ResourceManager(ResourceGetter, boolean)}, but if an executor is given and the mappings are generated from the XML resources
+	 * the token files are read, and the automata loaded, concurrently on the executor.
+	 * The executor is only used by this constructor and is not shutdown.
+	 * @param resourceGetter
+	 * @param useResourceImage
+	 * @param executor May be null, in which case all work is performed on the calling thread
+	 * @throws IOException
+	 */
+	ResourceManager(ResourceGetter resourceGetter, boolean useResourceImage, ExecutorService executor) throws IOException {
+		this(resourceGetter, useResourceImage ? ResourceImage.load(resourceGetter) : null, executor);
+	}
+
+	/**Generates the ResourceManager.
+	 * The left-to-right mappings are taken from the given image, or, if it is null, generated from the XML resources,
+	 * in which case if an executor is given the token files are read, and the automata loaded, concurrently on the executor.
+	 * The executor is only used by this constructor and is not shutdown.
+	 * @param resourceGetter
+	 * @param image May be null
+	 * @param executor May be null, in which case all work is performed on the calling thread
+	 * @throws IOException
+	 */
+	ResourceManager(ResourceGetter resourceGetter, ResourceImage image, ExecutorService executor) throws IOException {
+		this.base = null;
+		this.overlayTokenLists = Collections.emptyList();
+		this.additionalTokenNamesTrie = null;
 		this.resourceGetter = resourceGetter;
 		this.automatonInitialiser = new AutomatonInitialiser(resourceGetter.getResourcePath() + "serialisedAutomata/");
-		chemicalAutomaton = processChemicalGrammar(false);
-		int grammarSymbolsSize = chemicalAutomaton.getCharIntervals().length;
-		symbolTokenNamesDict = new OpsinRadixTrie[grammarSymbolsSize];
-		symbolRegexAutomataDict = new RunAutomaton[grammarSymbolsSize];
+		long start = System.nanoTime();
+		if (image != null) {
+			tokenFiles = image.getTokenFiles();
+			compiledGrammar = image.getCompiledGrammar();
+			grammarSymbols = compiledGrammar.getSymbols();
+			tokenNamesTrie = image.getTokenNamesTrie();
+			tokenDict = image.getTokenDict();
+			reSymbolTokenDict = image.getReSymbolTokenDict();
+			symbolRegexAutomataDict = image.getSymbolRegexAutomataDict();
+			symbolRegexesDict = image.getSymbolRegexesDict();
+			regexTokensNotDeterminised = image.getRegexTokensNotDeterminised();
+			LOG.debug("Loaded mappings from resource image in " + (System.nanoTime() - start) / 1000000 + " ms");
+			return;
+		}
+		tokenDict = new HashMap<String, Map<Character, TokenEl>>();
+		reSymbolTokenDict = new HashMap<Character, TokenEl>();
+		regexTokensNotDeterminised = new ArrayList<String>();
+		Future<CompactAutomaton> chemicalAutomatonLoader = submit(executor, new ChemicalGrammarLoader(false));
+		tokenFiles = readTokenFileNames();
+		List<Future<List<TokenList>>> tokenLists = submitTokenFiles(executor, tokenFiles);
+		List<RegexToken> regexTokens = readRegexTokens();
+		List<Future<CompactAutomaton>> regexTokenAutomata = submitRegexTokenAutomata(executor, regexTokens, false);
+
+		CompactAutomaton chemicalAutomaton = getResult(chemicalAutomatonLoader);
+		grammarSymbols = chemicalAutomaton.getCharIntervals();
+		int grammarSymbolsSize = grammarSymbols.length;
+		OpsinRadixTrie tokenNames = new OpsinRadixTrie();
+		addTokens(tokenLists, tokenNames, false);
+		tokenNamesTrie = new OpsinCompactTrie(tokenNames);
+		symbolRegexAutomataDict = new CompactAutomaton[grammarSymbolsSize];
 		symbolRegexesDict = new Pattern[grammarSymbolsSize];
-		processTokenFiles(false);
-		processRegexTokenFiles(false);
+		addRegexTokens(regexTokens, regexTokenAutomata, symbolRegexAutomataDict, symbolRegexesDict, false);
+		if (regexTokensNotDeterminised.size() > 0) {
+			LOG.debug("Regex tokens matched using java.util.regex as they could not be compiled into DFAs: " + regexTokensNotDeterminised);
+		}
+		compiledGrammar = compileGrammar(chemicalAutomaton, tokenNamesTrie, symbolRegexAutomataDict, symbolRegexesDict);
+		LOG.debug("Loaded resources from XML in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	/**Generates a ResourceManager that overlays the tokens of the overlay's token files over the mappings of the base ResourceManager.
+	 * The base's grammar, automata, tries and token dictionary are shared, not copied. Tokens that the base does not have with the same symbol
+	 * are held in an additional trie, and the grammar's first character masks are only copied if these tokens start with characters
+	 * that the base's tokens of the same symbol do not.
+	 * If the base is itself an overlay, the tokens of both overlays are overlaid over its base.
+	 * 
+	 * Throws an exception if the overlay's token files can't be read or use symbols that are not used by the chemical grammar
+	 * @param base
+	 * @param overlay
+	 * @throws IOException
+	 */
+	ResourceManager(ResourceManager base, OpsinResourceOverlay overlay) throws IOException {
+		List<TokenList> overlayTokenLists = new ArrayList<TokenList>();
+		if (base.base != null) {
+			overlayTokenLists.addAll(base.overlayTokenLists);
+			base = base.base;
+		}
+		for (String fileName : overlay.getTokenFiles()) {
+			overlayTokenLists.addAll(readTokenFile(overlay.getXMLStreamReader(fileName), fileName));
+		}
+		this.base = base;
+		this.overlayTokenLists = overlayTokenLists;
+		resourceGetter = base.resourceGetter;
+		automatonInitialiser = base.automatonInitialiser;
+		tokenFiles = base.tokenFiles;
+		grammarSymbols = base.grammarSymbols;
+		tokenNamesTrie = base.tokenNamesTrie;
+		reSymbolTokenDict = base.reSymbolTokenDict;
+		symbolRegexAutomataDict = base.symbolRegexAutomataDict;
+		symbolRegexesDict = base.symbolRegexesDict;
+		regexTokensNotDeterminised = base.regexTokensNotDeterminised;
+		tokenDict = new HashMap<String, Map<Character, TokenEl>>();
+		OpsinRadixTrie additionalTokenNames = new OpsinRadixTrie();
+		if (addOverlayTokens(additionalTokenNames, false)) {
+			additionalTokenNamesTrie = new OpsinCompactTrie(additionalTokenNames);
+			compiledGrammar = withAdditionalTokens(base.compiledGrammar, additionalTokenNamesTrie);
+		}
+		else {
+			additionalTokenNamesTrie = null;
+			compiledGrammar = base.compiledGrammar;
+		}
 	}
 
 	/**
-	 * Processes tokenFiles
-	 * @param reversed Should the tokens be reversed
+	 * Runs the task on the executor, or immediately on the calling thread if the executor is null
+	 * @param executor
+	 * @param task
+	 * @return
+	 */
+	private static <T> Future<T> submit(ExecutorService executor, Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>(task);
+		if (executor != null) {
+			executor.execute(future);
+		}
+		else {
+			future.run();
+		}
+		return future;
+	}
+
+	/**
+	 * Waits for the result of the given task, rethrowing any exception it threw
+	 * @param future
+	 * @return
+	 * @throws IOException
+	 */
+	private static <T> T getResult(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			InterruptedIOException ioe = new InterruptedIOException("Interrupted whilst loading resources");
+			ioe.initCause(e);
+			throw ioe;
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Reads the names of the token files from index.xml
+	 * @return The names of the token files
 	 * @throws IOException 
 	 */
-	private void processTokenFiles(boolean reversed) throws IOException {
+	private List<String> readTokenFileNames() throws IOException {
+		List<String> fileNames = new ArrayList<String>();
 		XMLStreamReader filesToProcessReader = resourceGetter.getXMLStreamReader("index.xml");
 		try {
 			while (filesToProcessReader.hasNext()) {
 				int event = filesToProcessReader.next();
 				if (event == XMLStreamConstants.START_ELEMENT && 
 						filesToProcessReader.getLocalName().equals("tokenFile")) {
-					String fileName = filesToProcessReader.getElementText();
-					processTokenFile(fileName, reversed);
+					fileNames.add(filesToProcessReader.getElementText());
 				}
 			}
 		}
@@ -105,10 +303,91 @@ class ResourceManager {
 				throw new IOException("Parsing exception occurred while reading index.xml", e);
 			}
 		}
+		return fileNames;
 	}
 
-	private void processTokenFile(String fileName, boolean reversed) throws IOException {
-		XMLStreamReader reader = resourceGetter.getXMLStreamReader(fileName);
+	/**
+	 * Reads each token file as a separate task
+	 * @param executor
+	 * @param fileNames
+	 * @return The tokenLists of each file, in the same order as fileNames
+	 */
+	private List<Future<List<TokenList>>> submitTokenFiles(ExecutorService executor, List<String> fileNames) {
+		List<Future<List<TokenList>>> tokenLists = new ArrayList<Future<List<TokenList>>>(fileNames.size());
+		for (final String fileName : fileNames) {
+			tokenLists.add(submit(executor, new Callable<List<TokenList>>() {
+				@Override
+				public List<TokenList> call() throws IOException {
+					return readTokenFile(fileName);
+				}
+			}));
+		}
+		return tokenLists;
+	}
+
+	/**
+	 * Adds the tokens of the given token files, in order, to the trie and, if not reversed, tokenDict
+	 * @param tokenFiles
+	 * @param trie The trie to populate with the tokens of all symbols
+	 * @param reversed Should the tokens be reversed
+	 * @throws IOException
+	 */
+	private void addTokens(List<Future<List<TokenList>>> tokenFiles, OpsinRadixTrie trie, boolean reversed) throws IOException {
+		for (Future<List<TokenList>> tokenFile : tokenFiles) {
+			for (TokenList tokenList : getResult(tokenFile)) {
+				int index = getSymbolIndex(tokenList);
+				for (int i = 0, len = tokenList.tokens.size(); i < len; i++) {
+					addToken(tokenList.tokens.get(i), tokenList.tokenEls.get(i), tokenList.symbol, index, trie, reversed);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the tokens of the overlay's token lists to, if not reversed, tokenDict, and,
+	 * if the base does not have the token with the same symbol, to the trie
+	 * @param trie The trie to populate with the tokens that the base does not have
+	 * @param reversed Should the tokens be reversed
+	 * @return Whether any tokens were added to the trie
+	 */
+	private boolean addOverlayTokens(OpsinRadixTrie trie, boolean reversed) {
+		boolean addedToTrie = false;
+		for (TokenList tokenList : overlayTokenLists) {
+			int index = getSymbolIndex(tokenList);
+			for (int i = 0, len = tokenList.tokens.size(); i < len; i++) {
+				String text = tokenList.tokens.get(i);
+				if (!reversed) {
+					Map<Character, TokenEl> symbolToToken = tokenDict.get(text);
+					if (symbolToToken == null) {
+						symbolToToken = new HashMap<Character, TokenEl>();
+						tokenDict.put(text, symbolToToken);
+					}
+					symbolToToken.put(tokenList.symbol, tokenList.tokenEls.get(i));
+				}
+				Map<Character, TokenEl> baseSymbolToToken = base.tokenDict.get(text);
+				if (baseSymbolToToken == null || !baseSymbolToToken.containsKey(tokenList.symbol)) {
+					trie.addToken(reversed ? new StringBuilder(text).reverse().toString() : text, index);
+					addedToTrie = true;
+				}
+			}
+		}
+		return addedToTrie;
+	}
+
+	private int getSymbolIndex(TokenList tokenList) {
+		int index = Arrays.binarySearch(grammarSymbols, tokenList.symbol);
+		if (index < 0) {
+			throw new RuntimeException(tokenList.symbol +" is associated with a tokenList of tagname " + tokenList.tagName +" however it is not actually used in OPSIN's grammar!!!");
+		}
+		return index;
+	}
+
+	private List<TokenList> readTokenFile(String fileName) throws IOException {
+		return readTokenFile(resourceGetter.getXMLStreamReader(fileName), fileName);
+	}
+
+	private static List<TokenList> readTokenFile(XMLStreamReader reader, String fileName) throws IOException {
+		List<TokenList> tokenLists = new ArrayList<TokenList>();
 		try {
 			while (reader.hasNext()) {
 				if (reader.next() == XMLStreamConstants.START_ELEMENT) {
@@ -118,14 +397,14 @@ class ResourceManager {
 							switch (reader.next()) {
 							case XMLStreamConstants.START_ELEMENT:
 								if (reader.getLocalName().equals("tokenList")) {
-									processTokenList(reader, reversed);
+									tokenLists.add(readTokenList(reader));
 								}
 								break;
 							}
 						}
 					}
 					else if (tagName.equals("tokenList")) {
-						processTokenList(reader, reversed);
+						tokenLists.add(readTokenList(reader));
 					}
 				}
 			}
@@ -140,9 +419,10 @@ class ResourceManager {
 				throw new IOException("Parsing exception occurred while reading " + fileName, e);
 			}
 		}
+		return tokenLists;
 	}
 
-	private void processTokenList(XMLStreamReader reader, boolean reversed) throws XMLStreamException {
+	private static TokenList readTokenList(XMLStreamReader reader) throws XMLStreamException {
 		String tokenTagName = null;
 		Character symbol = null;
 		String type = null;
@@ -174,11 +454,7 @@ class ResourceManager {
 		if (tokenTagName == null || symbol == null) {
 			throw new RuntimeException("Malformed tokenlist");
 		}
-		
-		int index = Arrays.binarySearch(chemicalAutomaton.getCharIntervals(), symbol);
-		if (index < 0) {
-			throw new RuntimeException(symbol +" is associated with a tokenList of tagname " + tokenTagName +" however it is not actually used in OPSIN's grammar!!!");
-		}
+		TokenList tokenList = new TokenList(symbol, tokenTagName);
 		
 		while (reader.hasNext()) {
 			switch (reader.next()) {
@@ -211,51 +487,43 @@ class ResourceManager {
 							ch = text.charAt(++i);
 						}
 						else if (ch == '|') {
-							addToken(sb.toString(), el, symbol, index, reversed);
+							tokenList.add(sb.toString(), el);
 							sb.setLength(0);
 							continue;
 						}
 						sb.append(ch);
 					}
-					addToken(sb.toString(), el, symbol, index, reversed);
+					tokenList.add(sb.toString(), el);
 				}
 				break;
 			case XMLStreamConstants.END_ELEMENT:
 				if (reader.getLocalName().equals("tokenList")) {
-					return;
+					return tokenList;
 				}
 				break;
 			}
 		}
+		return tokenList;
 	}
 
-	private void addToken(String text, TokenEl el, Character symbol, int index, boolean reversed) {
-		Map<Character, TokenEl> symbolToToken = tokenDict.get(text);
-		if(symbolToToken == null) {
-			symbolToToken = new HashMap<Character, TokenEl>();
-			tokenDict.put(text, symbolToToken);
-		}
-		symbolToToken.put(symbol, el);
-
+	private void addToken(String text, TokenEl el, Character symbol, int index, OpsinRadixTrie trie, boolean reversed) {
 		if (!reversed){
-			OpsinRadixTrie trie = symbolTokenNamesDict[index];
-			if(trie == null) {
-				trie = new OpsinRadixTrie();
-				symbolTokenNamesDict[index] = trie;
+			//tokenDict will be populated when the constructor is called for left-right parsing, hence skip for right-left (as it may be concurrently read)
+			Map<Character, TokenEl> symbolToToken = tokenDict.get(text);
+			if(symbolToToken == null) {
+				symbolToToken = new HashMap<Character, TokenEl>();
+				tokenDict.put(text, symbolToToken);
 			}
-			trie.addToken(text);
+			symbolToToken.put(symbol, el);
+			trie.addToken(text, index);
 		}
 		else{
-			OpsinRadixTrie trie = symbolTokenNamesDictReversed[index];
-			if(trie == null) {
-				trie = new OpsinRadixTrie();
-				symbolTokenNamesDictReversed[index] = trie;
-			}
-			trie.addToken(new StringBuilder(text).reverse().toString());
+			trie.addToken(new StringBuilder(text).reverse().toString(), index);
 		}
 	}
 
-	private void processRegexTokenFiles(boolean reversed) throws IOException{
+	private List<RegexToken> readRegexTokens() throws IOException{
+		List<RegexToken> regexTokens = new ArrayList<RegexToken>();
 		XMLStreamReader reader = resourceGetter.getXMLStreamReader("regexTokens.xml");
 		Map<String, StringBuilder> tempRegexes = new HashMap<String, StringBuilder>();
 		Pattern matchRegexReplacement = Pattern.compile("%.*?%");
@@ -288,7 +556,7 @@ class ResourceManager {
 						tempRegexes.put(regexName, newValueSB);
 						continue;
 					}
-					addRegexToken(reader, newValueSB.toString(), reversed);
+					regexTokens.add(readRegexToken(reader, newValueSB.toString()));
 				}
 			}
 		}
@@ -302,15 +570,16 @@ class ResourceManager {
 				throw new IOException("Parsing exception occurred while reading regexTokens.xml", e);
 			}
 		}
+		return regexTokens;
 	}
 	
-	private void addRegexToken(XMLStreamReader reader, String regex, boolean reversed) {
+	private RegexToken readRegexToken(XMLStreamReader reader, String regex) {
 		String tokenTagName = null;
 		Character symbol = null;
 		String type = null;
 		String subType = null;
 		String value = null;
-		boolean determinise = false;
+		String determinise = null;
 		boolean ignoreWhenWritingXML = false;
 		
 		for (int i = 0, l = reader.getAttributeCount(); i < l; i++) {
@@ -332,7 +601,7 @@ class ResourceManager {
 				value = atrValue;
 			}
 			else if (atrName.equals("determinise")){
-				determinise = atrValue.equals("yes");
+				determinise = atrValue;
 			}
 			else if (atrName.equals("ignoreWhenWritingXML")){
 				ignoreWhenWritingXML = atrValue.equals("yes");
@@ -344,54 +613,100 @@ class ResourceManager {
 		if (tokenTagName == null || symbol == null) {
 			throw new RuntimeException("Malformed regexToken");
 		}
-		
-		if (!reversed) {
-			//reSymbolTokenDict will be populated when the constructor is called for left-right parsing, hence skip for right-left 
-			if (reSymbolTokenDict.get(symbol) != null) {
-				throw new RuntimeException(symbol +" is associated with multiple regular expressions. The following expression clashes: " + regex +" This should be resolved by combining regular expressions that map the same symbol" );
-			}
 
-			if (ignoreWhenWritingXML) {
-				reSymbolTokenDict.put(symbol, IGNORE_WHEN_WRITING_PARSE_TREE);
+		TokenEl el;
+		if (ignoreWhenWritingXML) {
+			el = IGNORE_WHEN_WRITING_PARSE_TREE;
+		}
+		else{
+			el = new TokenEl(tokenTagName);
+			if (type != null){
+				el.addAttribute(TYPE_ATR, type);
 			}
-			else{
-				TokenEl el = new TokenEl(tokenTagName);
-				if (type != null){
-					el.addAttribute(TYPE_ATR, type);
-				}
-				if (subType != null){
-					el.addAttribute(SUBTYPE_ATR, subType);
-				}
-				if (value != null){
-					el.addAttribute(VALUE_ATR, value);
-				}
-				reSymbolTokenDict.put(symbol, el);
+			if (subType != null){
+				el.addAttribute(SUBTYPE_ATR, subType);
+			}
+			if (value != null){
+				el.addAttribute(VALUE_ATR, value);
 			}
 		}
-		
-		int index = Arrays.binarySearch(chemicalAutomaton.getCharIntervals(), symbol);
-		if (index < 0){
-			throw new RuntimeException(symbol +" is associated with the regex " + regex +" however it is not actually used in OPSIN's grammar!!!");
-		}
-		if (!reversed){
-			if (determinise){//should the regex be compiled into a DFA for faster execution?
-				symbolRegexAutomataDict[index] = automatonInitialiser.loadAutomaton(tokenTagName + "_" + (int)symbol, regex, false, false);
+		//unless specified, regexes are compiled into a DFA for faster execution if this can be done without changing their meaning
+		boolean determinised = determinise != null ? determinise.equals("yes") : AutomatonInitialiser.isDeterminisable(regex);
+		return new RegexToken(regex, symbol, tokenTagName, el, determinised);
+	}
+
+	/**
+	 * Loads the automata of the regex tokens that are to be compiled into DFAs, each as a separate task
+	 * @param executor
+	 * @param regexTokens
+	 * @param reversed
+	 * @return The automata, in the same order as regexTokens, null for regex tokens that are not determinised
+	 */
+	private List<Future<CompactAutomaton>> submitRegexTokenAutomata(ExecutorService executor, List<RegexToken> regexTokens, final boolean reversed) {
+		List<Future<CompactAutomaton>> automata = new ArrayList<Future<CompactAutomaton>>(regexTokens.size());
+		for (final RegexToken regexToken : regexTokens) {
+			if (regexToken.determinised) {
+				automata.add(submit(executor, new Callable<CompactAutomaton>() {
+					@Override
+					public CompactAutomaton call() {
+						return automatonInitialiser.loadAutomaton(regexToken.tagName + "_" + (int) regexToken.symbol, regexToken.regex, reversed);
+					}
+				}));
 			}
-			else{
-				symbolRegexesDict[index] = Pattern.compile(regex);
+			else {
+				automata.add(null);
 			}
 		}
-		else{
-			if (determinise){//should the regex be compiled into a DFA for faster execution?
-				symbolRegexAutomataDictReversed[index] = automatonInitialiser.loadAutomaton(tokenTagName + "_" + (int)symbol, regex, false, true);
+		return automata;
+	}
+
+	private void addRegexTokens(List<RegexToken> regexTokens, List<Future<CompactAutomaton>> regexTokenAutomata, CompactAutomaton[] automata, Pattern[] regexes, boolean reversed) throws IOException {
+		for (int i = 0, len = regexTokens.size(); i < len; i++) {
+			RegexToken regexToken = regexTokens.get(i);
+			char symbol = regexToken.symbol;
+			String regex = regexToken.regex;
+			if (!reversed) {
+				//reSymbolTokenDict will be populated when the constructor is called for left-right parsing, hence skip for right-left 
+				if (reSymbolTokenDict.get(symbol) != null) {
+					throw new RuntimeException(symbol +" is associated with multiple regular expressions. The following expression clashes: " + regex +" This should be resolved by combining regular expressions that map the same symbol" );
+				}
+				reSymbolTokenDict.put(symbol, regexToken.el);
+			}
+			
+			int index = Arrays.binarySearch(grammarSymbols, symbol);
+			if (index < 0){
+				throw new RuntimeException(symbol +" is associated with the regex " + regex +" however it is not actually used in OPSIN's grammar!!!");
+			}
+			Future<CompactAutomaton> automaton = regexTokenAutomata.get(i);
+			if (automaton != null){
+				automata[index] = getResult(automaton);
 			}
 			else{
-				symbolRegexesDictReversed[index] = Pattern.compile(regex +"$");
+				if (!reversed) {
+					regexTokensNotDeterminised.add(symbol + "=" + regex);
+				}
+				regexes[index] = Pattern.compile(reversed ? regex + "$" : regex);
 			}
 		}
 	}
 
-	private RunAutomaton processChemicalGrammar(boolean reversed) throws IOException {
+	/**
+	 * Loads the automaton of the chemical grammar described by regexes.xml
+	 */
+	private class ChemicalGrammarLoader implements Callable<CompactAutomaton> {
+		private final boolean reversed;
+
+		ChemicalGrammarLoader(boolean reversed) {
+			this.reversed = reversed;
+		}
+
+		@Override
+		public CompactAutomaton call() throws IOException {
+			return processChemicalGrammar(reversed);
+		}
+	}
+
+	private CompactAutomaton processChemicalGrammar(boolean reversed) throws IOException {
 		XMLStreamReader reader = resourceGetter.getXMLStreamReader("regexes.xml");
 		Map<String, StringBuilder> regexDict = new HashMap<String, StringBuilder>();
 		Pattern matchRegexReplacement = Pattern.compile("%.*?%");
@@ -433,28 +748,109 @@ class ResourceManager {
 		}
 
 		String re = regexDict.get("%chemical%").toString();
-		if (!reversed){
-			return automatonInitialiser.loadAutomaton("chemical", re, true, false);
-		}
-		else{
-			return automatonInitialiser.loadAutomaton("chemical", re, true, true);
-		}
+		return automatonInitialiser.loadAutomaton("chemical", re, reversed);
 	}
 
-	synchronized void populatedReverseTokenMappings() throws IOException{
-		if (reverseChemicalAutomaton == null){
-			reverseChemicalAutomaton = processChemicalGrammar(true);
-		}
-		int grammarSymbolsSize = reverseChemicalAutomaton.getCharIntervals().length;
-		if (symbolTokenNamesDictReversed == null){
-			symbolTokenNamesDictReversed = new OpsinRadixTrie[grammarSymbolsSize];
-			processTokenFiles(true);
+	/**
+	 * Populates the mappings required for right to left parsing, if they have not already been populated.
+	 * The mappings are fully built before being published, hence once this method has returned
+	 * the reversed getters may be used by any thread.
+	 * @throws IOException
+	 */
+	void populatedReverseTokenMappings() throws IOException{
+		if (reverseCompiledGrammar != null){
+			return;
+		}
+		synchronized (this) {
+			if (reverseCompiledGrammar != null){
+				return;
+			}
+			if (base != null) {
+				base.populatedReverseTokenMappings();
+				CompiledGrammar reverseCompiledGrammar = base.reverseCompiledGrammar;
+				if (additionalTokenNamesTrie != null) {
+					OpsinRadixTrie additionalTokenNamesReversed = new OpsinRadixTrie();
+					addOverlayTokens(additionalTokenNamesReversed, true);
+					OpsinCompactTrie additionalTokenNamesTrieReversed = new OpsinCompactTrie(additionalTokenNamesReversed);
+					this.additionalTokenNamesTrieReversed = additionalTokenNamesTrieReversed;
+					reverseCompiledGrammar = withAdditionalTokens(reverseCompiledGrammar, additionalTokenNamesTrieReversed);
+				}
+				tokenNamesTrieReversed = base.tokenNamesTrieReversed;
+				symbolRegexAutomataDictReversed = base.symbolRegexAutomataDictReversed;
+				symbolRegexesDictReversed = base.symbolRegexesDictReversed;
+				this.reverseCompiledGrammar = reverseCompiledGrammar;
+				return;
+			}
+			CompactAutomaton reverseAutomaton = processChemicalGrammar(true);
+			int grammarSymbolsSize = reverseAutomaton.getCharIntervals().length;
+			OpsinRadixTrie tokenNamesReversed = new OpsinRadixTrie();
+			addTokens(submitTokenFiles(null, tokenFiles), tokenNamesReversed, true);
+			List<RegexToken> regexTokens = readRegexTokens();
+			CompactAutomaton[] regexAutomataDictReversed = new CompactAutomaton[grammarSymbolsSize];
+			Pattern[] regexesDictReversed = new Pattern[grammarSymbolsSize];
+			addRegexTokens(regexTokens, submitRegexTokenAutomata(null, regexTokens, true), regexAutomataDictReversed, regexesDictReversed, true);
+			OpsinCompactTrie tokenNamesTrieReversed = new OpsinCompactTrie(tokenNamesReversed);
+			this.tokenNamesTrieReversed = tokenNamesTrieReversed;
+			symbolRegexAutomataDictReversed = regexAutomataDictReversed;
+			symbolRegexesDictReversed = regexesDictReversed;
+			reverseCompiledGrammar = compileGrammar(reverseAutomaton, tokenNamesTrieReversed, regexAutomataDictReversed, regexesDictReversed);
 		}
-		if (symbolRegexAutomataDictReversed == null && symbolRegexesDictReversed==null){
-			symbolRegexAutomataDictReversed = new RunAutomaton[grammarSymbolsSize];
-			symbolRegexesDictReversed = new Pattern[grammarSymbolsSize];
-			processRegexTokenFiles(true);
+	}
+
+	/**
+	 * Derives the transition tables of the given grammar and which characters the tokens of each of its symbols may start with.
+	 * These are derived whenever the resources are loaded, rather than cached with the automaton, as they depend on the token files as well as the grammar.
+	 * @param grammar
+	 * @param tokenNames
+	 * @param regexAutomata
+	 * @param regexes
+	 * @return
+	 */
+	private static CompiledGrammar compileGrammar(CompactAutomaton grammar, OpsinCompactTrie tokenNames, CompactAutomaton[] regexAutomata, Pattern[] regexes) {
+		int grammarSymbolsSize = grammar.getCharIntervals().length;
+		long[] firstCharacterMasks = new long[grammarSymbolsSize * 2];
+		boolean[] unrestricted = new boolean[grammarSymbolsSize];
+		tokenNames.addFirstCharacterMasks(firstCharacterMasks, unrestricted);
+		for (int i = 0; i < grammarSymbolsSize; i++) {
+			CompactAutomaton regexAutomaton = regexAutomata[i];
+			if (regexAutomaton != null) {
+				int initialState = regexAutomaton.getInitialState();
+				if (regexAutomaton.isAccept(initialState)) {
+					unrestricted[i] = true;
+				}
+				if (regexAutomaton.step(initialState, (char) 128) != -1) {
+					unrestricted[i] = true;
+				}
+				for (char c : regexAutomaton.getCharIntervals()) {//any other interval that includes non-ASCII characters starts with one
+					if (c > 128 && regexAutomaton.step(initialState, c) != -1) {
+						unrestricted[i] = true;
+					}
+				}
+				for (char c = 0; c < 128; c++) {
+					if (regexAutomaton.step(initialState, c) != -1) {
+						CompiledGrammar.addToMask(firstCharacterMasks, i, c);
+					}
+				}
+			}
+			if (regexes[i] != null) {
+				unrestricted[i] = true;
+			}
 		}
+		return new CompiledGrammar(grammar, firstCharacterMasks, unrestricted);
+	}
+
+	/**
+	 * Returns the grammar with its first character masks extended to include the first characters of the given tokens
+	 * @param grammar
+	 * @param additionalTokenNames
+	 * @return
+	 */
+	private static CompiledGrammar withAdditionalTokens(CompiledGrammar grammar, OpsinCompactTrie additionalTokenNames) {
+		int grammarSymbolsSize = grammar.getSymbols().length;
+		long[] firstCharacterMasks = new long[grammarSymbolsSize * 2];
+		boolean[] unrestricted = new boolean[grammarSymbolsSize];
+		additionalTokenNames.addFirstCharacterMasks(firstCharacterMasks, unrestricted);
+		return grammar.withAdditionalFirstCharacters(firstCharacterMasks, unrestricted);
 	}
 
 	/**Given a token string and an annotation character, makes the XML element for
@@ -476,6 +872,9 @@ class ResourceManager {
 				return token.copy(tokenString);
 			}
 		}
+		if (base != null) {
+			return base.makeTokenElement(tokenString, symbol);
+		}
 		TokenEl regexToken = reSymbolTokenDict.get(symbol);
 		if (regexToken != null){
 			if (regexToken == IGNORE_WHEN_WRITING_PARSE_TREE){
@@ -486,15 +885,24 @@ class ResourceManager {
 		throw new ParsingException("Parsing Error: This is a bug in the program. A token element could not be found for token: " + tokenString +" using annotation symbol: " +symbol);
 	}
 	
-	RunAutomaton getChemicalAutomaton() {
-		return chemicalAutomaton;
+	CompiledGrammar getCompiledGrammar() {
+		return compiledGrammar;
 	}
 	
-	OpsinRadixTrie[] getSymbolTokenNamesDict() {
-		return symbolTokenNamesDict;
+	OpsinCompactTrie getTokenNamesTrie() {
+		return tokenNamesTrie;
 	}
 
-	RunAutomaton[] getSymbolRegexAutomataDict() {
+	/**
+	 * The trie of the tokens of an overlay that the base does not have with the same symbol.
+	 * These tokens are not in {@link #getTokenNamesTrie()}
+	 * @return The trie, or null if this is not an overlay or there are no such tokens
+	 */
+	OpsinCompactTrie getAdditionalTokenNamesTrie() {
+		return additionalTokenNamesTrie;
+	}
+
+	CompactAutomaton[] getSymbolRegexAutomataDict() {
 		return symbolRegexAutomataDict;
 	}
 
@@ -502,20 +910,102 @@ class ResourceManager {
 		return symbolRegexesDict;
 	}
 
-	RunAutomaton getReverseChemicalAutomaton() {
-		return reverseChemicalAutomaton;
+	/**
+	 * The regex tokens, as symbol=regex, that are matched using java.util.regex as they could not be compiled into DFAs
+	 * e.g. as they use lookaround
+	 * @return
+	 */
+	List<String> getRegexTokensNotDeterminised() {
+		return Collections.unmodifiableList(regexTokensNotDeterminised);
+	}
+
+	/**
+	 * The left-to-right mappings, together with the given word rules and suffix rules, as a {@link ResourceImage}.
+	 * For an overlay, the overlay's tokens are not included
+	 * @param wordRules
+	 * @param suffixRules
+	 * @return
+	 */
+	ResourceImage getResourceImage(WordRules wordRules, SuffixRules suffixRules) {
+		if (base != null) {
+			return base.getResourceImage(wordRules, suffixRules);
+		}
+		return new ResourceImage(tokenFiles, compiledGrammar, tokenNamesTrie, tokenDict, reSymbolTokenDict,
+				symbolRegexAutomataDict, symbolRegexesDict, regexTokensNotDeterminised, wordRules, suffixRules);
+	}
+
+	CompiledGrammar getReverseCompiledGrammar() {
+		return reverseCompiledGrammar;
 	}
 
-	OpsinRadixTrie[] getSymbolTokenNamesDictReversed() {
-		return symbolTokenNamesDictReversed;
+	OpsinCompactTrie getTokenNamesTrieReversed() {
+		return tokenNamesTrieReversed;
 	}
 
-	RunAutomaton[] getSymbolRegexAutomataDictReversed() {
+	OpsinCompactTrie getAdditionalTokenNamesTrieReversed() {
+		return additionalTokenNamesTrieReversed;
+	}
+
+	/**
+	 * An estimate, in bytes, of the heap retained by the tries of token names.
+	 * Includes the reversed trie if this has been populated
+	 * @return
+	 */
+	long getTokenNamesTrieMemoryFootprint() {
+		long footprint = tokenNamesTrie.getMemoryFootprint();
+		OpsinCompactTrie reversedTrie = tokenNamesTrieReversed;
+		if (reversedTrie != null) {
+			footprint += reversedTrie.getMemoryFootprint();
+		}
+		return footprint;
+	}
+
+	CompactAutomaton[] getSymbolRegexAutomataDictReversed() {
 		return symbolRegexAutomataDictReversed;
 	}
 
 	Pattern[] getSymbolRegexesDictReversed() {
 		return symbolRegexesDictReversed;
 	}
+
+	/**
+	 * The tokens of a tokenList in a token file
+	 */
+	private static final class TokenList {
+		private final char symbol;
+		private final String tagName;
+		private final List<String> tokens = new ArrayList<String>();
+		private final List<TokenEl> tokenEls = new ArrayList<TokenEl>();
+
+		TokenList(char symbol, String tagName) {
+			this.symbol = symbol;
+			this.tagName = tagName;
+		}
+
+		void add(String token, TokenEl el) {
+			tokens.add(token);
+			tokenEls.add(el);
+		}
+	}
+
+	/**
+	 * A regexToken in regexTokens.xml, with references to other regexes substituted
+	 */
+	private static final class RegexToken {
+		private final String regex;
+		private final char symbol;
+		private final String tagName;
+		private final TokenEl el;
+		/**Whether the regex is compiled into a DFA, rather than matched using java.util.regex*/
+		private final boolean determinised;
+
+		RegexToken(String regex, char symbol, String tagName, TokenEl el, boolean determinised) {
+			this.regex = regex;
+			this.symbol = symbol;
+			this.tagName = tagName;
+			this.el = el;
+			this.determinised = determinised;
+		}
+	}
 	
 }
@@ -7,7 +7,6 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import dk.brics.automaton.RunAutomaton;
 
 /**
  * The same as ParseRules but works from right to left
@@ -25,15 +24,24 @@ import dk.brics.automaton.RunAutomaton;
  */
 class ReverseParseRules {
 
-	/** A DFA encompassing the grammar of a chemical word. */
-	private final RunAutomaton chemAutomaton;
-	/** The allowed symbols in chemAutomaton */
+	/** The transitions of each state of the DFA encompassing the grammar of a chemical word, read from right to left. */
+	private final CompiledGrammar compiledGrammar;
+	/** The allowed symbols in the grammar */
 	private final char[] stateSymbols;
 	
-	private final OpsinRadixTrie[] symbolTokenNamesDictReversed;
-	private final RunAutomaton[] symbolRegexAutomataDictReversed;
+	private final OpsinCompactTrie tokenNamesTrieReversed;
+	/** The tokens of an overlay that are not in tokenNamesTrieReversed, may be null */
+	private final OpsinCompactTrie additionalTokenNamesTrieReversed;
+	private final CompactAutomaton[] symbolRegexAutomataDictReversed;
 	private final Pattern[] symbolRegexesDictReversed;
 
+	private final ThreadLocal<TokenLattice> tokenLattice = new ThreadLocal<TokenLattice>() {
+		@Override
+		protected TokenLattice initialValue() {
+			return new TokenLattice(new RightToLeftTokenFinder(), stateSymbols.length);
+		}
+	};
+
 	/** 
 	 * Creates a right to left parser that can parse a substituent/full/functional word
 	 * @param resourceManager
@@ -41,11 +49,12 @@ class ReverseParseRules {
 	 */
 	ReverseParseRules(ResourceManager resourceManager) throws IOException{
 		resourceManager.populatedReverseTokenMappings();
-		this.chemAutomaton = resourceManager.getReverseChemicalAutomaton();
-		this.symbolTokenNamesDictReversed = resourceManager.getSymbolTokenNamesDictReversed();
+		this.tokenNamesTrieReversed = resourceManager.getTokenNamesTrieReversed();
+		this.additionalTokenNamesTrieReversed = resourceManager.getAdditionalTokenNamesTrieReversed();
 		this.symbolRegexAutomataDictReversed = resourceManager.getSymbolRegexAutomataDictReversed();
 		this.symbolRegexesDictReversed = resourceManager.getSymbolRegexesDictReversed();
-		this.stateSymbols = chemAutomaton.getCharIntervals();
+		this.compiledGrammar = resourceManager.getReverseCompiledGrammar();
+		this.stateSymbols = compiledGrammar.getSymbols();
 	}
 
 	/**Determines the possible annotations for a chemical word
@@ -59,19 +68,45 @@ class ReverseParseRules {
 	 * @throws ParsingException
 	 */
 	public ParseRulesResults getParses(String chemicalWord) throws ParsingException {
-		AnnotatorState initialState = new AnnotatorState(chemAutomaton.getInitialState(), '\0', chemicalWord.length(), true, null);
-		String chemicalWordLowerCase = StringTools.lowerCaseAsciiString(chemicalWord);
+		return getParses(chemicalWord, chemicalWord.length());
+	}
+
+	/**
+	 * As {@link #getParses(String)} but the word to parse is the region of the name before end.
+	 * The name is not copied; the tokens of the parses and the uninterpretable/unparseable names of the results
+	 * are only created from the name if they are requested
+	 * @param name
+	 * @param end
+	 * @return
+	 * @throws ParsingException
+	 */
+	ParseRulesResults getParses(String name, int end) throws ParsingException {
+		TokenLattice lattice = tokenLattice.get();
+		lattice.prepare(name, 0, end);
+		try {
+			return getParses(name, end, lattice);
+		}
+		finally {
+			lattice.release();
+		}
+	}
+
+	private ParseRulesResults getParses(String name, int end, TokenLattice lattice) throws ParsingException {
+		AnnotatorState initialState = new AnnotatorState(compiledGrammar.getInitialState(), '\0', end, true, null);
 		ArrayDeque<AnnotatorState> asStack = new ArrayDeque<AnnotatorState>();
 		asStack.add(initialState);
 
-		int posInNameOfLastSuccessfulAnnotations = chemicalWord.length();
+		int posInNameOfLastSuccessfulAnnotations = end;
 		List<AnnotatorState> successfulAnnotations = new ArrayList<AnnotatorState>();
 		AnnotatorState longestAnnotation = initialState;//this is the longest annotation. It does not necessarily end in an accept state
-		int stateSymbolsSize = stateSymbols.length;
+		int statesProcessed = 0;
 		while (!asStack.isEmpty()) {
+			if ((++statesProcessed & 255) == 0) {
+				ProcessingTimeLimit.check();
+			}
 			AnnotatorState as = asStack.removeFirst();
 			int posInName = as.getPosInName();
-			if (chemAutomaton.isAccept(as.getState())){
+			if (compiledGrammar.isAccept(as.getState())){
 				if (posInName <= posInNameOfLastSuccessfulAnnotations){//this annotation is worthy of consideration
 					if (posInName < posInNameOfLastSuccessfulAnnotations){//this annotation is longer than any previously found annotation
 						successfulAnnotations.clear();
@@ -88,58 +123,31 @@ class ReverseParseRules {
 				longestAnnotation = as;
 			}
 
-			for (int i = 0; i < stateSymbolsSize; i++) {
-				char annotationCharacter = stateSymbols[i];
-				int potentialNextState = chemAutomaton.step(as.getState(), annotationCharacter);
-				if (potentialNextState != -1) {//-1 means this state is not accessible from the previous state
-					OpsinRadixTrie possibleTokenisationsTrie = symbolTokenNamesDictReversed[i];
-					if (possibleTokenisationsTrie != null) {
-						List<Integer> possibleTokenisations = possibleTokenisationsTrie.findMatchesReadingStringRightToLeft(chemicalWordLowerCase, posInName);
-						if (possibleTokenisations != null) {//next could be a token
-							for (int j = 0, l = possibleTokenisations.size(); j < l; j++) {//typically list size will be 1 so this is faster than an iterator
-								int tokenizationIndex = possibleTokenisations.get(j);
-								AnnotatorState newAs = new AnnotatorState(potentialNextState, annotationCharacter, tokenizationIndex, false, as);
-								//System.out.println("tokened " + chemicalWordLowerCase.substring(tokenizationIndex, posInName));
-								asStack.add(newAs);
-							}
-						}
-					}
-					RunAutomaton possibleAutomata = symbolRegexAutomataDictReversed[i];
-					if (possibleAutomata != null) {//next could be an automaton
-						int matchLength = runInReverse(possibleAutomata, chemicalWord, posInName);
-						if (matchLength != -1){//matchLength = -1 means it did not match
-							int tokenizationIndex = posInName - matchLength;
-							AnnotatorState newAs = new AnnotatorState(potentialNextState, annotationCharacter, tokenizationIndex, true, as);
-							//System.out.println("neword automata " + chemicalWord.substring(tokenizationIndex, posInName));
-							asStack.add(newAs);
-						}
-					}
-					Pattern possibleRegex = symbolRegexesDictReversed[i];
-					if (possibleRegex != null) {//next could be a regex
-						Matcher mat = possibleRegex.matcher(chemicalWord).region(0, posInName);
-						mat.useTransparentBounds(true);
-						if (mat.find()) {//match at end (patterns use $ anchor)
-							int tokenizationIndex = posInName - mat.group(0).length();
-							AnnotatorState newAs = new AnnotatorState(potentialNextState, annotationCharacter, tokenizationIndex, true, as);
-							//System.out.println("neword regex " + mat.group(0));
-							asStack.add(newAs);
-						}
+			int state = as.getState();
+			//skip states from which no token could be read at this position
+			if (compiledGrammar.mayReadToken(state, posInName > 0 ? name.charAt(posInName - 1) : -1)) {
+				for (int transition = compiledGrammar.getFirstTransition(state), endOfTransitions = compiledGrammar.getEndOfTransitions(state); transition < endOfTransitions; transition++) {
+					int symbolIndex = compiledGrammar.getTransitionSymbol(transition);
+					int potentialNextState = compiledGrammar.getTransitionTarget(transition);
+					char annotationCharacter = stateSymbols[symbolIndex];
+					int tokens = lattice.findTokens(posInName, symbolIndex);
+					for (int t = lattice.getFirstToken(tokens), endOfTokens = lattice.getEndOfTokens(tokens); t < endOfTokens; t++) {
+						asStack.add(new AnnotatorState(potentialNextState, annotationCharacter, lattice.getTokenPosition(t), lattice.isCaseSensitive(t), as));
 					}
 				}
 			}
 		}
 		List<ParseTokens> outputList = new ArrayList<ParseTokens>();
-		String uninterpretableName = chemicalWord;
-		String unparseableName = chemicalWord.substring(0, longestAnnotation.getPosInName());
+		int uninterpretableEnd = end;
 		if (successfulAnnotations.size() > 0){//at least some of the name could be interpreted into a substituent/full/functionalTerm
 			int bestAcceptPosInName = -1;
 			for(AnnotatorState as : successfulAnnotations) {
-				outputList.add(convertAnnotationStateToParseTokens(as, chemicalWord, chemicalWordLowerCase));
+				outputList.add(convertAnnotationStateToParseTokens(as, name));
 				bestAcceptPosInName = as.getPosInName();//all acceptable annotator states found should have the same posInName
 			}
-			uninterpretableName = chemicalWord.substring(0, bestAcceptPosInName);
+			uninterpretableEnd = bestAcceptPosInName;
 		}
-		return new ParseRulesResults(outputList, uninterpretableName, unparseableName);
+		return new ParseRulesResults(outputList, name, 0, uninterpretableEnd, 0, longestAnnotation.getPosInName());
 	}
 
 	/**
@@ -150,7 +158,7 @@ class ReverseParseRules {
 	 * @param indexAfterFirstchar pos in string to start at
 	 * @return length of the longest accepted run, -1 if no run is accepted
 	 */
-	private int runInReverse(RunAutomaton automaton, String s, int indexAfterFirstchar) {
+	private int runInReverse(CompactAutomaton automaton, String s, int indexAfterFirstchar) {
 		int state = automaton.getInitialState();
 		int max = -1;
 		for (int pos = indexAfterFirstchar -1; ; pos--) {
@@ -168,20 +176,67 @@ class ReverseParseRules {
 		return max;
 	}
 	
-	private ParseTokens convertAnnotationStateToParseTokens(AnnotatorState as, String chemicalWord, String chemicalWordLowerCase) {
-		List<String> tokens = new ArrayList<String>();
-		List<Character> annotations = new ArrayList<Character>();
+	private ParseTokens convertAnnotationStateToParseTokens(AnnotatorState as, String name) {
+		int tokenCount = 0;
+		for (AnnotatorState previousAs = as.getPreviousAs(); previousAs != null; previousAs = previousAs.getPreviousAs()) {
+			tokenCount++;
+		}
+		int[] tokenBoundaries = new int[tokenCount + 1];
+		boolean[] caseSensitive = new boolean[tokenCount];
+		char[] annotations = new char[tokenCount];
 		AnnotatorState previousAs;
-		while ((previousAs = as.getPreviousAs()) != null) {
-			if (as.isCaseSensitive()) {
-				tokens.add(chemicalWord.substring(as.getPosInName(), previousAs.getPosInName()));
+		for (int i = 0; (previousAs = as.getPreviousAs()) != null; i++) {
+			tokenBoundaries[i] = as.getPosInName();
+			caseSensitive[i] = as.isCaseSensitive();
+			annotations[i] = as.getAnnot();
+			as = previousAs;
+		}
+		tokenBoundaries[tokenCount] = as.getPosInName();
+		return new ParseTokens(name, tokenBoundaries, caseSensitive, annotations);
+	}
+
+	/**
+	 * Finds tokens by reading the word from right to left
+	 */
+	private class RightToLeftTokenFinder implements TokenFinder {
+
+		public void findDictionaryTokens(TokenLattice lattice, int posInName) {
+			findDictionaryTokens(tokenNamesTrieReversed, lattice, posInName);
+			if (additionalTokenNamesTrieReversed != null) {
+				findDictionaryTokens(additionalTokenNamesTrieReversed, lattice, posInName);
+			}
+		}
+
+		private void findDictionaryTokens(OpsinCompactTrie trie, TokenLattice lattice, int posInName) {
+			int[] matchStarts = lattice.getMatchBuffer();
+			int[] matchNodes = lattice.getMatchNodeBuffer();
+			int matches = trie.findMatchingNodesReadingStringRightToLeft(lattice.getLowerCaseName(), posInName, matchStarts, matchNodes);
+			for (int j = 0; j < matches; j++) {
+				int node = matchNodes[j];
+				for (int k = trie.getFirstSymbol(node), end = trie.getEndOfSymbols(node); k < end; k++) {
+					lattice.addDictionaryToken(trie.getSymbol(k), matchStarts[j]);
+				}
+			}
+		}
+
+		public void findTokens(TokenLattice lattice, int posInName, int symbolIndex) {
+			CompactAutomaton possibleAutomata = symbolRegexAutomataDictReversed[symbolIndex];
+			if (possibleAutomata != null) {//next could be an automaton
+				//words always start at the start of the name
+				int matchLength = runInReverse(possibleAutomata, lattice.getName(), posInName);
+				if (matchLength != -1){//matchLength = -1 means it did not match
+					lattice.addToken(posInName - matchLength, true);
+				}
 			}
-			else{
-				tokens.add(chemicalWordLowerCase.substring(as.getPosInName(), previousAs.getPosInName()));
+			Pattern possibleRegex = symbolRegexesDictReversed[symbolIndex];
+			if (possibleRegex != null) {//next could be a regex
+				Matcher mat = lattice.getMatcher(symbolIndex, possibleRegex);
+				mat.region(0, posInName);
+				mat.useTransparentBounds(true);
+				if (mat.find()) {//match at end (patterns use $ anchor)
+					lattice.addToken(posInName - mat.group(0).length(), true);
+				}
 			}
-			annotations.add(as.getAnnot());
-			as = previousAs;
 		}
-		return new ParseTokens(tokens, annotations);
 	}
 }
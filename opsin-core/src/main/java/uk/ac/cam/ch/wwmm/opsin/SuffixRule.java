@@ -15,6 +15,10 @@ import java.util.List;
 	SuffixRuleType getType() {
 		return type;
 	}
+
+	List<Attribute> getAttributes() {
+		return attributes;
+	}
 	
 	/**
 	 * Returns the value of the attribute with the given name
@@ -2,11 +2,15 @@ package uk.ac.cam.ch.wwmm.opsin;
 
 import static uk.ac.cam.ch.wwmm.opsin.XmlDeclarations.*;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
@@ -20,6 +24,9 @@ class SuffixRules {
 	 * Returns a list as different group subTypes can give different meanings*/
 	private final Map<String, Map<String, List<ApplicableSuffix>>> suffixApplicability;
 
+	/**The suffix rules, keyed by their value in suffixRules.xml*/
+	private final Map<String, List<SuffixRule>> suffixRulesMap;
+
 	private static class ApplicableSuffix {
 
 		private final String requiredSubType;
@@ -32,13 +39,115 @@ class SuffixRules {
 	}
 	
 	SuffixRules(ResourceGetter resourceGetter) throws IOException {
-		Map<String, List<SuffixRule>> suffixRulesMap = generateSuffixRulesMap(resourceGetter);
-		suffixApplicability = generateSuffixApplicabilityMap(resourceGetter, suffixRulesMap);
+		suffixRulesMap = new HashMap<String, List<SuffixRule>>();
+		addSuffixRules(resourceGetter.getXMLStreamReader("suffixRules.xml"), suffixRulesMap);
+		suffixApplicability = new HashMap<String, Map<String,List<ApplicableSuffix>>>();
+		addSuffixApplicability(resourceGetter.getXMLStreamReader("suffixApplicability.xml"), suffixRulesMap, suffixApplicability, null);
 	}
-	
-	private Map<String, List<SuffixRule>> generateSuffixRulesMap(ResourceGetter resourceGetter) throws IOException {
+
+	/**
+	 * Creates SuffixRules with the suffix rules and suffix applicability entries of the overlay in addition to those of the base SuffixRules.
+	 * The suffix rules of the base are shared, and only the applicability entries of group types that the overlay adds to are copied.
+	 * @param base
+	 * @param overlay
+	 * @throws IOException
+	 */
+	SuffixRules(SuffixRules base, OpsinResourceOverlay overlay) throws IOException {
+		suffixRulesMap = new HashMap<String, List<SuffixRule>>(base.suffixRulesMap);
+		if (overlay.hasFile(OpsinResourceOverlay.SUFFIX_RULES_FILE)) {
+			addSuffixRules(overlay.getXMLStreamReader(OpsinResourceOverlay.SUFFIX_RULES_FILE), suffixRulesMap);
+		}
+		suffixApplicability = new HashMap<String, Map<String,List<ApplicableSuffix>>>(base.suffixApplicability);
+		if (overlay.hasFile(OpsinResourceOverlay.SUFFIX_APPLICABILITY_FILE)) {
+			addSuffixApplicability(overlay.getXMLStreamReader(OpsinResourceOverlay.SUFFIX_APPLICABILITY_FILE), suffixRulesMap, suffixApplicability, base.suffixApplicability);
+		}
+	}
+
+	private SuffixRules(Map<String, List<SuffixRule>> suffixRulesMap, Map<String, Map<String, List<ApplicableSuffix>>> suffixApplicability) {
+		this.suffixRulesMap = suffixRulesMap;
+		this.suffixApplicability = suffixApplicability;
+	}
+
+	/**
+	 * Writes the suffix rules and suffix applicability entries in the form read by {@link #read(ByteBuffer)}.
+	 * Applicability entries refer to their suffix rules by name
+	 * @param out
+	 * @throws IOException
+	 */
+	void write(DataOutputStream out) throws IOException {
+		Map<List<SuffixRule>, String> suffixRuleNames = new IdentityHashMap<List<SuffixRule>, String>();
+		out.writeInt(suffixRulesMap.size());
+		for (Entry<String, List<SuffixRule>> entry : suffixRulesMap.entrySet()) {
+			ResourceImage.writeString(out, entry.getKey());
+			suffixRuleNames.put(entry.getValue(), entry.getKey());
+			out.writeInt(entry.getValue().size());
+			for (SuffixRule rule : entry.getValue()) {
+				ResourceImage.writeString(out, rule.getType().name());
+				List<Attribute> attributes = rule.getAttributes();
+				out.writeInt(attributes.size());
+				for (Attribute attribute : attributes) {
+					ResourceImage.writeString(out, attribute.getName());
+					ResourceImage.writeString(out, attribute.getValue());
+				}
+			}
+		}
+		out.writeInt(suffixApplicability.size());
+		for (Entry<String, Map<String, List<ApplicableSuffix>>> groupTypeEntry : suffixApplicability.entrySet()) {
+			ResourceImage.writeString(out, groupTypeEntry.getKey());
+			out.writeInt(groupTypeEntry.getValue().size());
+			for (Entry<String, List<ApplicableSuffix>> suffixEntry : groupTypeEntry.getValue().entrySet()) {
+				ResourceImage.writeString(out, suffixEntry.getKey());
+				out.writeInt(suffixEntry.getValue().size());
+				for (ApplicableSuffix applicableSuffix : suffixEntry.getValue()) {
+					ResourceImage.writeString(out, applicableSuffix.requiredSubType);
+					ResourceImage.writeString(out, suffixRuleNames.get(applicableSuffix.suffixRules));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads suffix rules written by {@link #write(DataOutputStream)}
+	 * @param buffer
+	 * @return
+	 */
+	static SuffixRules read(ByteBuffer buffer) {
 		Map<String, List<SuffixRule>> suffixRulesMap = new HashMap<String, List<SuffixRule>>();
-		XMLStreamReader reader = resourceGetter.getXMLStreamReader("suffixRules.xml");
+		for (int i = 0, ruleCount = buffer.getInt(); i < ruleCount; i++) {
+			String ruleValue = ResourceImage.readString(buffer);
+			int ruleLength = buffer.getInt();
+			List<SuffixRule> rules = new ArrayList<SuffixRule>(ruleLength);
+			for (int j = 0; j < ruleLength; j++) {
+				SuffixRuleType type = SuffixRuleType.valueOf(ResourceImage.readString(buffer));
+				int attributeCount = buffer.getInt();
+				List<Attribute> attributes = new ArrayList<Attribute>(attributeCount);
+				for (int k = 0; k < attributeCount; k++) {
+					attributes.add(new Attribute(ResourceImage.readString(buffer), ResourceImage.readString(buffer)));
+				}
+				rules.add(new SuffixRule(type, attributes));
+			}
+			suffixRulesMap.put(ruleValue, rules);
+		}
+		Map<String, Map<String, List<ApplicableSuffix>>> suffixApplicability = new HashMap<String, Map<String,List<ApplicableSuffix>>>();
+		for (int i = 0, groupTypeCount = buffer.getInt(); i < groupTypeCount; i++) {
+			String groupType = ResourceImage.readString(buffer);
+			Map<String, List<ApplicableSuffix>> suffixToRuleMap = new HashMap<String, List<ApplicableSuffix>>();
+			for (int j = 0, suffixCount = buffer.getInt(); j < suffixCount; j++) {
+				String suffixValue = ResourceImage.readString(buffer);
+				int applicableSuffixCount = buffer.getInt();
+				List<ApplicableSuffix> suffixList = new ArrayList<ApplicableSuffix>(applicableSuffixCount);
+				for (int k = 0; k < applicableSuffixCount; k++) {
+					String requiredSubType = ResourceImage.readString(buffer);
+					suffixList.add(new ApplicableSuffix(requiredSubType, suffixRulesMap.get(ResourceImage.readString(buffer))));
+				}
+				suffixToRuleMap.put(suffixValue, suffixList);
+			}
+			suffixApplicability.put(groupType, suffixToRuleMap);
+		}
+		return new SuffixRules(suffixRulesMap, suffixApplicability);
+	}
+	
+	private static void addSuffixRules(XMLStreamReader reader, Map<String, List<SuffixRule>> suffixRulesMap) throws IOException {
 		try {
 			while (reader.hasNext()) {
 				if (reader.next() == XMLStreamConstants.START_ELEMENT && 
@@ -61,11 +170,10 @@ class SuffixRules {
 				throw new IOException("Parsing exception occurred while reading suffixRules.xml", e);
 			}
 		}
-		return suffixRulesMap;
 	}
 	
 
-	private List<SuffixRule> processSuffixRules(XMLStreamReader reader) throws XMLStreamException {
+	private static List<SuffixRule> processSuffixRules(XMLStreamReader reader) throws XMLStreamException {
 		String startingElName = reader.getLocalName();
 		List<SuffixRule> rules = new ArrayList<SuffixRule>();
 		while (reader.hasNext()) {
@@ -89,15 +197,29 @@ class SuffixRules {
 		throw new RuntimeException("Malformed suffixRules.xml");
 	}
 
-	private Map<String, Map<String, List<ApplicableSuffix>>> generateSuffixApplicabilityMap(ResourceGetter resourceGetter, Map<String, List<SuffixRule>> suffixRulesMap) throws IOException {
-		Map<String, Map<String, List<ApplicableSuffix>>> suffixApplicability = new HashMap<String, Map<String,List<ApplicableSuffix>>>();
-		XMLStreamReader reader = resourceGetter.getXMLStreamReader("suffixApplicability.xml");
+	/**
+	 * Adds the entries of a suffixApplicability file to suffixApplicability.
+	 * If baseSuffixApplicability is given, suffixApplicability is initially a shallow copy of it, and the maps and lists of the base are
+	 * copied before being added to, rather than modified
+	 * @param reader
+	 * @param suffixRulesMap
+	 * @param suffixApplicability
+	 * @param baseSuffixApplicability May be null
+	 * @throws IOException
+	 */
+	private static void addSuffixApplicability(XMLStreamReader reader, Map<String, List<SuffixRule>> suffixRulesMap,
+			Map<String, Map<String, List<ApplicableSuffix>>> suffixApplicability, Map<String, Map<String, List<ApplicableSuffix>>> baseSuffixApplicability) throws IOException {
 		try {
 			while (reader.hasNext()) {
 				if (reader.next() == XMLStreamConstants.START_ELEMENT && 
 						reader.getLocalName().equals(SUFFIXAPPLICABILITY_GROUPTYPE_EL)) {
-					Map<String, List<ApplicableSuffix>> suffixToRuleMap = new HashMap<String, List<ApplicableSuffix>>();
-					suffixApplicability.put(reader.getAttributeValue(null, SUFFIXAPPLICABILITY_TYPE_ATR), suffixToRuleMap);
+					String groupType = reader.getAttributeValue(null, SUFFIXAPPLICABILITY_TYPE_ATR);
+					Map<String, List<ApplicableSuffix>> baseSuffixToRuleMap = baseSuffixApplicability != null ? baseSuffixApplicability.get(groupType) : null;
+					Map<String, List<ApplicableSuffix>> suffixToRuleMap = suffixApplicability.get(groupType);
+					if (suffixToRuleMap == null || suffixToRuleMap == baseSuffixToRuleMap) {
+						suffixToRuleMap = suffixToRuleMap == null ? new HashMap<String, List<ApplicableSuffix>>() : new HashMap<String, List<ApplicableSuffix>>(suffixToRuleMap);
+						suffixApplicability.put(groupType, suffixToRuleMap);
+					}
 					while (reader.hasNext()) {
 						int event = reader.next();
 						if (event == XMLStreamConstants.START_ELEMENT &&
@@ -105,8 +227,8 @@ class SuffixRules {
 							String suffixValue = reader.getAttributeValue(null, SUFFIXAPPLICABILITY_VALUE_ATR);
 							List<ApplicableSuffix> suffixList = suffixToRuleMap.get(suffixValue);
 							//can have multiple entries if subType attribute is set
-							if (suffixToRuleMap.get(suffixValue) == null){
-								suffixList = new ArrayList<ApplicableSuffix>();
+							if (suffixList == null || (baseSuffixToRuleMap != null && suffixList == baseSuffixToRuleMap.get(suffixValue))) {
+								suffixList = suffixList == null ? new ArrayList<ApplicableSuffix>() : new ArrayList<ApplicableSuffix>(suffixList);
 								suffixToRuleMap.put(suffixValue, suffixList);
 							}
 							String requiredSubType = reader.getAttributeValue(null, SUFFIXAPPLICABILITY_SUBTYPE_ATR);
@@ -135,7 +257,6 @@ class SuffixRules {
 				throw new IOException("Parsing exception occurred while reading suffixApplicability.xml", e);
 			}
 		}
-		return suffixApplicability;
 	}
 	
 
@@ -0,0 +1,17 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+/**Thrown when processing a name has exceeded the time limit set by {@link NameToStructureConfig#setTimeLimit(long)}.
+ * Unchecked so that it is not mistaken for a failure to interpret one particular parse of the name
+ *
+ * @author dl387
+ *
+ */
+class TimeLimitExceededException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	TimeLimitExceededException(String message) {
+		super(message);
+	}
+
+}
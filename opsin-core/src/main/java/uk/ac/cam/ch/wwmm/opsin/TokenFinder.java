@@ -0,0 +1,29 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+/**
+ * Finds the tokens that a symbol of the chemical grammar can match at a position in a word.
+ * The direction of reading is determined by the implementation.
+ * Used by {@link TokenLattice}, which ensures each position and symbol is only matched once per word
+ * @author dl387
+ *
+ */
+interface TokenFinder {
+
+	/**
+	 * Adds, using {@link TokenLattice#addDictionaryToken(int, int)}, every token of any symbol from OPSIN's token dictionaries
+	 * that can be read from posInName. This allows all such tokens to be found in one pass over the word.
+	 * These tokens are case insensitive
+	 * @param lattice The lattice for the word being parsed
+	 * @param posInName
+	 */
+	void findDictionaryTokens(TokenLattice lattice, int posInName);
+
+	/**
+	 * Adds, using {@link TokenLattice#addToken(int, boolean)}, the position in the word at the other end of each
+	 * token of the given symbol, that is not from a token dictionary, that can be read from posInName
+	 * @param lattice The lattice for the word being parsed
+	 * @param posInName
+	 * @param symbolIndex Index of the symbol in the chemical grammar automaton's symbols
+	 */
+	void findTokens(TokenLattice lattice, int posInName, int symbolIndex);
+}
@@ -0,0 +1,323 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The tokens of each symbol of the chemical grammar that can be read from each position of a word.
+ * Tokens are found lazily using a {@link TokenFinder} and are then shared by every annotator state that reaches that position,
+ * hence each substring is only matched against a symbol's tokens once per word.
+ * Tokens from the token dictionaries are found for all symbols at once, the first time any symbol is requested at a position,
+ * whilst other tokens are found only for the requested symbol.
+ * For each (position, symbol) entry, the tokens are held contiguously: dictionary tokens in the order they were found, followed by
+ * the other tokens in the order the TokenFinder added them.
+ * <p>
+ * The word is a region of a larger name, which is neither copied nor lower cased per word: the lower case form of the name is
+ * retained until a different name is prepared, so tokenising the words of a name one after another only lower cases the name once.
+ * Positions are relative to the start of the word.
+ * <p>
+ * ParseRules and ReverseParseRules each hold a lattice per thread. Preparing for a new word just advances a generation counter,
+ * which invalidates every entry of the previous word without clearing the per position arrays. {@link #release()} drops the
+ * references to the name and its words, but keeps the arrays for the next word unless they have outgrown
+ * {@link ParseRules#MAX_RETAINED_WORKING_ARRAY_LENGTH}
+ * @author dl387
+ *
+ */
+final class TokenLattice {
+	private final TokenFinder tokenFinder;
+	private final int numberOfSymbols;
+	private final Matcher[] matchers;
+
+	private String name;
+	private int offset;
+	private int wordLength;
+	/** The name that lowerCaseName was created from */
+	private String lowerCasedName;
+	private char[] lowerCaseName = new char[32];
+	private CharSequence word;
+	private int[] matchBuffer = new int[33];
+	private int[] matchNodeBuffer = new int[33];
+
+	/** Dictionary tokens, of any symbol, found at posInName are from positionStarts[posInName] up to but not including positionEnds[posInName]. Only valid if the generation is the current generation */
+	private int[] positionGenerations = new int[0];
+	private int[] positionStarts = new int[0];
+	private int[] positionEnds = new int[0];
+
+	private int[] dictionaryTokenSymbols = new int[64];
+	private int[] dictionaryTokenPositions = new int[64];
+	private int dictionaryTokenCount = 0;
+
+	/** Entries are indexed by posInName * numberOfSymbols + symbolIndex. An entry is only valid if its generation is the current generation */
+	private int[] entryGenerations = new int[0];
+	private int[] entryStarts = new int[0];
+	private int[] entryEnds = new int[0];
+	private int generation = 0;
+
+	private int[] tokenPositions = new int[64];
+	private boolean[] tokenCaseSensitive = new boolean[64];
+	private int tokenCount = 0;
+
+	TokenLattice(TokenFinder tokenFinder, int numberOfSymbols) {
+		this.tokenFinder = tokenFinder;
+		this.numberOfSymbols = numberOfSymbols;
+		this.matchers = new Matcher[numberOfSymbols];
+	}
+
+	void prepare(String chemicalWord) {
+		prepare(chemicalWord, 0, chemicalWord.length());
+	}
+
+	/**
+	 * Prepares the lattice for the word that is the region of the name from start up to but not including end
+	 * @param name
+	 * @param start
+	 * @param end
+	 */
+	void prepare(String name, int start, int end) {
+		this.name = name;
+		offset = start;
+		wordLength = end - start;
+		word = null;
+		int nameLength = name.length();
+		if (name != lowerCasedName) {
+			if (lowerCaseName.length < nameLength) {
+				lowerCaseName = new char[nameLength];
+			}
+			for (int i = 0; i < nameLength; i++) {
+				char c = name.charAt(i);
+				if (c >= 'A' && c <= 'Z') {
+					c = (char) (c + 32);
+				}
+				lowerCaseName[i] = c;
+			}
+			lowerCasedName = name;
+		}
+		if (matchBuffer.length <= wordLength) {
+			matchBuffer = new int[wordLength + 1];
+			matchNodeBuffer = new int[wordLength + 1];
+		}
+		int entriesRequired = (wordLength + 1) * numberOfSymbols;
+		if (entryGenerations.length < entriesRequired) {
+			entryGenerations = new int[entriesRequired];
+			entryStarts = new int[entriesRequired];
+			entryEnds = new int[entriesRequired];
+		}
+		if (positionGenerations.length < wordLength + 1) {
+			positionGenerations = new int[wordLength + 1];
+			positionStarts = new int[wordLength + 1];
+			positionEnds = new int[wordLength + 1];
+		}
+		if (++generation == Integer.MAX_VALUE) {
+			Arrays.fill(entryGenerations, 0);
+			Arrays.fill(positionGenerations, 0);
+			generation = 1;
+		}
+	}
+
+	/**
+	 * Returns the entry for the tokens of the given symbol that can be read from posInName, finding them if this has not already been done.
+	 * The tokens are then those from {@link #getFirstToken(int)} up to but not including {@link #getEndOfTokens(int)}
+	 * @param posInName
+	 * @param symbolIndex
+	 * @return
+	 */
+	int findTokens(int posInName, int symbolIndex) {
+		int entry = posInName * numberOfSymbols + symbolIndex;
+		if (entryGenerations[entry] != generation) {
+			if (positionGenerations[posInName] != generation) {
+				positionStarts[posInName] = dictionaryTokenCount;
+				tokenFinder.findDictionaryTokens(this, posInName);
+				positionEnds[posInName] = dictionaryTokenCount;
+				positionGenerations[posInName] = generation;
+			}
+			entryStarts[entry] = tokenCount;
+			for (int i = positionStarts[posInName], end = positionEnds[posInName]; i < end; i++) {
+				if (dictionaryTokenSymbols[i] == symbolIndex) {
+					addToken(dictionaryTokenPositions[i], false);
+				}
+			}
+			tokenFinder.findTokens(this, posInName, symbolIndex);
+			entryEnds[entry] = tokenCount;
+			entryGenerations[entry] = generation;
+		}
+		return entry;
+	}
+
+	int getFirstToken(int entry) {
+		return entryStarts[entry];
+	}
+
+	int getEndOfTokens(int entry) {
+		return entryEnds[entry];
+	}
+
+	/**
+	 * The position in the word at the other end of the token from the position it was read from
+	 * @param token
+	 * @return
+	 */
+	int getTokenPosition(int token) {
+		return tokenPositions[token];
+	}
+
+	boolean isCaseSensitive(int token) {
+		return tokenCaseSensitive[token];
+	}
+
+	/**
+	 * Called by the TokenFinder for each token it finds
+	 * @param position The position in the word at the other end of the token
+	 * @param caseSensitive Whether the token should be taken from the word as given rather than its lower case form
+	 */
+	void addToken(int position, boolean caseSensitive) {
+		if (tokenCount == tokenPositions.length) {
+			int newSize = tokenCount * 2;
+			tokenPositions = Arrays.copyOf(tokenPositions, newSize);
+			tokenCaseSensitive = Arrays.copyOf(tokenCaseSensitive, newSize);
+		}
+		tokenPositions[tokenCount] = position;
+		tokenCaseSensitive[tokenCount++] = caseSensitive;
+	}
+
+	/**
+	 * Called by the TokenFinder for each dictionary token it finds
+	 * @param symbolIndex The symbol of the token
+	 * @param position The position in the word at the other end of the token
+	 */
+	void addDictionaryToken(int symbolIndex, int position) {
+		if (dictionaryTokenCount == dictionaryTokenSymbols.length) {
+			int newSize = dictionaryTokenCount * 2;
+			dictionaryTokenSymbols = Arrays.copyOf(dictionaryTokenSymbols, newSize);
+			dictionaryTokenPositions = Arrays.copyOf(dictionaryTokenPositions, newSize);
+		}
+		dictionaryTokenSymbols[dictionaryTokenCount] = symbolIndex;
+		dictionaryTokenPositions[dictionaryTokenCount++] = position;
+	}
+
+	/**
+	 * The name of which the word is a region
+	 * @return
+	 */
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * The index in the name of the start of the word
+	 * @return
+	 */
+	int getOffset() {
+		return offset;
+	}
+
+	int getWordLength() {
+		return wordLength;
+	}
+
+	/**
+	 * The name with ASCII upper case letters converted to lower case. Only the first name.length() characters are in use
+	 * @return
+	 */
+	char[] getLowerCaseName() {
+		return lowerCaseName;
+	}
+
+	/**
+	 * A buffer that is at least one longer than the word
+	 * @return
+	 */
+	int[] getMatchBuffer() {
+		return matchBuffer;
+	}
+
+	/**
+	 * A second buffer that is at least one longer than the word
+	 * @return
+	 */
+	int[] getMatchNodeBuffer() {
+		return matchNodeBuffer;
+	}
+
+	/**
+	 * Returns a matcher for the given symbol's regex that has been reset to match against the word.
+	 * As the matcher only sees the word, indices are positions in the word and lookaround cannot see the rest of the name
+	 * @param symbolIndex
+	 * @param regex
+	 * @return
+	 */
+	Matcher getMatcher(int symbolIndex, Pattern regex) {
+		if (word == null) {
+			word = offset == 0 && wordLength == name.length() ? name : new Region(name, offset, offset + wordLength);
+		}
+		Matcher mat = matchers[symbolIndex];
+		if (mat == null) {
+			mat = regex.matcher(word);
+			matchers[symbolIndex] = mat;
+		}
+		else {
+			mat.reset(word);
+		}
+		return mat;
+	}
+
+	void release() {
+		name = null;
+		word = null;
+		if (lowerCaseName.length > ParseRules.MAX_RETAINED_WORKING_ARRAY_LENGTH) {
+			lowerCaseName = new char[32];
+			lowerCasedName = null;
+		}
+		tokenCount = 0;
+		dictionaryTokenCount = 0;
+		if (entryGenerations.length > ParseRules.MAX_RETAINED_WORKING_ARRAY_LENGTH) {
+			entryGenerations = new int[0];
+			entryStarts = new int[0];
+			entryEnds = new int[0];
+		}
+		if (dictionaryTokenSymbols.length > ParseRules.MAX_RETAINED_WORKING_ARRAY_LENGTH) {
+			dictionaryTokenSymbols = new int[64];
+			dictionaryTokenPositions = new int[64];
+		}
+		if (tokenPositions.length > ParseRules.MAX_RETAINED_WORKING_ARRAY_LENGTH) {
+			tokenPositions = new int[64];
+			tokenCaseSensitive = new boolean[64];
+		}
+		for (int i = 0; i < matchers.length; i++) {
+			if (matchers[i] != null) {
+				matchers[i].reset("");//don't retain the word
+			}
+		}
+	}
+
+	/**
+	 * A view of a region of a string
+	 */
+	private static final class Region implements CharSequence {
+		private final String str;
+		private final int start;
+		private final int end;
+
+		Region(String str, int start, int end) {
+			this.str = str;
+			this.start = start;
+			this.end = end;
+		}
+
+		public int length() {
+			return end - start;
+		}
+
+		public char charAt(int index) {
+			return str.charAt(start + index);
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			return new Region(str, this.start + start, this.start + end);
+		}
+
+		public String toString() {
+			return str.substring(start, end);
+		}
+	}
+}
@@ -31,15 +31,30 @@ class Tokeniser {
 	 * @throws ParsingException 
 	 */
 	TokenizationResult tokenize(String name, boolean allowRemovalOfWhiteSpace) throws ParsingException {
+		return tokenize(name, allowRemovalOfWhiteSpace, new ParseMemo());
+	}
+
+	/**
+	 * Master method for tokenizing chemical names into words and within words into tokens
+	 * Words are parsed using the given memo, so text that has already been parsed whilst tokenizing this, or a related, name is not parsed again
+	 * @param name The chemical name.
+	 * @param allowRemovalOfWhiteSpace
+	 * @param memo
+	 * @return
+	 * @throws ParsingException
+	 */
+	TokenizationResult tokenize(String name, boolean allowRemovalOfWhiteSpace, ParseMemo memo) throws ParsingException {
 		TokenizationResult result = allowRemovalOfWhiteSpace ? new TokenizationResult(WordTools.removeWhiteSpaceIfBracketsAreUnbalanced(name)) :new TokenizationResult(name);
 		TokenizationResult resultFromBeforeWhitespaceRemoval = null;
 
 		while (!result.isSuccessfullyTokenized()){
-			ParseRulesResults results = parseRules.getParses(result.getUnparsedName());
+			ProcessingTimeLimit.check();
+			//the unparsed name is always the end of the current name
+			ParseRulesResults results = memo.getParses(parseRules, result.getCurrentName(), result.getUnparsedStart());
 			List<ParseTokens> parseTokens = results.getParseTokensList();
-			result.setWorkingName(results.getUninterpretableName());
+			result.setWorkingRegion(results.getUninterpretableStart(), results.getUninterpretableEnd());
 
-			String parsedName = result.getUnparsedName().substring(0, result.getUnparsedName().length() - result.getWorkingName().length());
+			String parsedName = result.getCurrentName().substring(result.getUnparsedStart(), result.getWorkingStart());
 
 			if (isWordParsable(parseTokens, result)) {
 				parseWord(result, parseTokens, parsedName, false);
@@ -50,7 +65,7 @@ class Tokeniser {
 					resultFromBeforeWhitespaceRemoval.setErrorFields(result.getUnparsedName(), result.getWorkingName(), results.getUnparseableName());
 				}
 
-				if (!fixWord(result, parsedName, allowRemovalOfWhiteSpace)) {
+				if (!fixWord(result, parsedName, allowRemovalOfWhiteSpace, memo)) {
 					result.setErrorFields(resultFromBeforeWhitespaceRemoval.getUnparsedName(), resultFromBeforeWhitespaceRemoval.getUninterpretableName(), resultFromBeforeWhitespaceRemoval.getUnparsableName());
 					break;
 				}
@@ -73,13 +88,16 @@ class Tokeniser {
 		TokenizationResult result = new TokenizationResult(name);
 		//removeWhiteSpaceIfBracketsAreUnbalanced is not currently employed as the input to this function from the parser will often be what the LR tokenizer couldn't handle, which may not have matching brackets
 		TokenizationResult resultFromBeforeWhitespaceRemoval = null;
+		ParseMemo memo = new ParseMemo();
 
 		while (!result.isSuccessfullyTokenized()){
-			ParseRulesResults results = reverseParseRules.getParses(result.getUnparsedName());
+			ProcessingTimeLimit.check();
+			//the unparsed name is always the start of the current name
+			ParseRulesResults results = memo.getParsesInReverse(reverseParseRules, result.getCurrentName(), result.getUnparsedEnd());
 			List<ParseTokens> parseTokens =results.getParseTokensList();
-			result.setWorkingName(results.getUninterpretableName());
+			result.setWorkingRegion(results.getUninterpretableStart(), results.getUninterpretableEnd());
 
-			String parsedName = result.getUnparsedName().substring(result.getWorkingName().length());
+			String parsedName = result.getCurrentName().substring(result.getWorkingEnd(), result.getUnparsedEnd());
 
 			if (isWordParsableInReverse(parseTokens, result)) {
 				parseWord(result, parseTokens, parsedName, true);
@@ -103,11 +121,11 @@ class Tokeniser {
 
 
 	private boolean isWordParsableInReverse(List<ParseTokens> parseTokens, TokenizationResult result) {
-		return parseTokens.size()>0 && (result.isFullyInterpretable() || result.getWorkingName().charAt(result.getWorkingName().length()-1)==' ' || result.getWorkingName().charAt(result.getWorkingName().length()-1) =='-');
+		return parseTokens.size()>0 && (result.isFullyInterpretable() || result.getCurrentName().charAt(result.getWorkingEnd()-1)==' ' || result.getCurrentName().charAt(result.getWorkingEnd()-1) =='-');
 	}
 
 	private boolean isWordParsable(List<ParseTokens> parseTokens, TokenizationResult result) {
-		return parseTokens.size()>0 && (result.isFullyInterpretable() || result.getWorkingName().charAt(0) ==' ' || result.getWorkingName().charAt(0) =='-');
+		return parseTokens.size()>0 && (result.isFullyInterpretable() || result.getCurrentName().charAt(result.getWorkingStart()) ==' ' || result.getCurrentName().charAt(result.getWorkingStart()) =='-');
 	}
 	
 	private void parseWord(TokenizationResult result, List<ParseTokens> parseTokens, String parsedName, boolean reverse) {
@@ -117,26 +135,28 @@ class Tokeniser {
 		addParseWords(parseTokens, parsedName, result.getParse(), reverse);
 
 		if (result.isFullyInterpretable()) {
-			result.setUnparsedName(result.getWorkingName());
+			result.setUnparsedRegion(result.getWorkingStart(), result.getWorkingEnd());
 		} else {
-			String remainingName =result.getWorkingName();
+			String currentName = result.getCurrentName();
+			int remainingStart = result.getWorkingStart();
+			int remainingEnd = result.getWorkingEnd();
 			if (reverse){
-				if (remainingName.length() > 3 && remainingName.endsWith(" - ")){
-					remainingName = remainingName.substring(0, remainingName.length() - 3);
+				if (remainingEnd - remainingStart > 3 && currentName.startsWith(" - ", remainingEnd - 3)){
+					remainingEnd -= 3;
 				}
 				else{
-					remainingName = remainingName.substring(0, remainingName.length() - 1);
+					remainingEnd -= 1;
 				}
 			}
 			else{
-				if (remainingName.length() > 3 && remainingName.startsWith(" - ")){//this is a way of of indicating a mixture
-					remainingName = remainingName.substring(3);
+				if (remainingEnd - remainingStart > 3 && currentName.startsWith(" - ", remainingStart)){//this is a way of of indicating a mixture
+					remainingStart += 3;
 				}
 				else{
-					remainingName = remainingName.substring(1);
+					remainingStart += 1;
 				}
 			}
-			result.setUnparsedName(remainingName);
+			result.setUnparsedRegion(remainingStart, remainingEnd);
 		}
 	}
 
@@ -152,21 +172,24 @@ class Tokeniser {
 		}
 	}
 
-	private boolean fixWord(TokenizationResult result, String parsedName, boolean allowRemovalOfWhiteSpace) throws ParsingException {
-		Matcher m = matchCompoundWithPhrase.matcher(result.getWorkingName());
+	private boolean fixWord(TokenizationResult result, String parsedName, boolean allowRemovalOfWhiteSpace, ParseMemo memo) throws ParsingException {
+		String currentName = result.getCurrentName();
+		int workingStart = result.getWorkingStart();
+		int workingEnd = result.getWorkingEnd();
+		Matcher m = matchCompoundWithPhrase.matcher(currentName).region(workingStart, workingEnd);
 		if (m.lookingAt() && lastParsedWordWasFullOrFunctionalTerm(result)) {
-			result.setUnparsedName(parsedName + result.getWorkingName().substring(m.group().length()));
-		} else if (matchCasCollectiveIndex.matcher(result.getWorkingName()).matches()) {
+			result.setUnparsedName(parsedName + currentName.substring(m.end(), workingEnd));
+		} else if (matchCasCollectiveIndex.matcher(currentName).region(workingStart, workingEnd).matches()) {
 			result.setUnparsedName(parsedName);
 		} else {
 			if (allowRemovalOfWhiteSpace) {
 				//TODO add a warning message if this code is invoked. A name invoking this is unambiguously BAD
 				List<ParseWord> parsedWords = result.getParse().getWords();
-				if (!reverseSpaceRemoval(parsedWords, result)) {
+				if (!reverseSpaceRemoval(parsedWords, result, memo)) {
 					//Try and remove a space from the right and try again
-					int indexOfSpace = result.getWorkingName().indexOf(' ');
-					if (indexOfSpace != -1) {
-						result.setUnparsedName( parsedName + result.getWorkingName().substring(0, indexOfSpace) + result.getWorkingName().substring(indexOfSpace + 1));
+					int indexOfSpace = currentName.indexOf(' ', workingStart);
+					if (indexOfSpace != -1 && indexOfSpace < workingEnd) {
+						result.setUnparsedName( parsedName + currentName.substring(workingStart, indexOfSpace) + currentName.substring(indexOfSpace + 1, workingEnd));
 					} else {
 						return false;
 					}
@@ -196,9 +219,12 @@ class Tokeniser {
 		if (allowRemovalOfWhiteSpace) {
 			//Try and remove a space and try again
 			//TODO add a warning message if this code is invoked. A name invoking this is unambiguously BAD
-			int indexOfSpace = result.getWorkingName().lastIndexOf(' ');
-			if (indexOfSpace != -1) {
-				result.setUnparsedName( result.getWorkingName().substring(0, indexOfSpace) + result.getWorkingName().substring(indexOfSpace + 1) + parsedName);
+			String currentName = result.getCurrentName();
+			int workingStart = result.getWorkingStart();
+			int workingEnd = result.getWorkingEnd();
+			int indexOfSpace = currentName.lastIndexOf(' ', workingEnd - 1);
+			if (indexOfSpace >= workingStart) {
+				result.setUnparsedName( currentName.substring(workingStart, indexOfSpace) + currentName.substring(indexOfSpace + 1, workingEnd) + parsedName);
 			} else {
 				return false;
 			}
@@ -212,16 +238,17 @@ class Tokeniser {
 	 * Fixes cases like for example "benzene sulfonamide" -->"benzenesulfonamide"
 	 * @param parsedWords
 	 * @param result
+	 * @param memo
 	 * @return
 	 * @throws ParsingException
 	 */
-	private boolean reverseSpaceRemoval(List<ParseWord> parsedWords, TokenizationResult result) throws ParsingException {
+	private boolean reverseSpaceRemoval(List<ParseWord> parsedWords, TokenizationResult result, ParseMemo memo) throws ParsingException {
 		boolean successful = false;
 	
 		if (!parsedWords.isEmpty()) {//first see whether the space before the unparseable word is erroneous
 			ParseWord pw = parsedWords.get(parsedWords.size() - 1);
 			String lastWordAndUnparsed = pw.getWord() + result.getUnparsedName();
-			ParseRulesResults backResults = parseRules.getParses(lastWordAndUnparsed);
+			ParseRulesResults backResults = memo.getParses(parseRules, lastWordAndUnparsed, 0);
 			List<ParseTokens> backParseTokens = backResults.getParseTokensList();
 			String backUninterpretableName = backResults.getUninterpretableName();
 			String backParsedName = lastWordAndUnparsed.substring(0, lastWordAndUnparsed.length() - backUninterpretableName.length());
@@ -1,29 +1,40 @@
 package uk.ac.cam.ch.wwmm.opsin;
 
 /**
- * 
+ * The progress of tokenising a name. The unparsed and working names are regions of the current name
+ * so that tokenising each word does not copy the remainder of the name.
+ * The current name is only replaced when the remainder of the name has to be modified e.g. by removing a space
  * @author dl387
  *
  */
 class TokenizationResult {
 
 	private final Parse parse;
-	private String workingName;
+	private String currentName;
+	private int unparsedStart;
+	private int unparsedEnd;
+	/** The current name when the working region was set */
+	private String workingSource;
+	private int workingStart;
+	private int workingEnd;
 	private String unparsableName;
-	private String unparsedName;
 	private String uninterpretableName;
 
 
 	TokenizationResult(String name) {
 		this.parse = new Parse(name);
-		this.workingName = "";
+		this.currentName = name;
+		this.unparsedStart = 0;
+		this.unparsedEnd = name.length();
+		this.workingSource = name;
+		this.workingStart = 0;
+		this.workingEnd = 0;
 		this.unparsableName = "";
-		this.unparsedName = name;
 		this.uninterpretableName = "";
 	}
 
 	boolean isSuccessfullyTokenized() {
-		return unparsedName.length()==0;
+		return unparsedStart == unparsedEnd;
 	}
 
 	Parse getParse() {
@@ -38,16 +49,39 @@ class TokenizationResult {
 		return this.uninterpretableName;
 	}
 
+	/**
+	 * The string of which the unparsed and working names are regions
+	 * @return
+	 */
+	String getCurrentName() {
+		return currentName;
+	}
+
 	String getWorkingName() {
-		return workingName;
+		return workingSource.substring(workingStart, workingEnd);
+	}
+
+	int getWorkingStart() {
+		return workingStart;
+	}
+
+	int getWorkingEnd() {
+		return workingEnd;
 	}
 
-	void setWorkingName(String name) {
-		this.workingName = name;
+	/**
+	 * Sets the working name to the given region of the current name
+	 * @param start
+	 * @param end
+	 */
+	void setWorkingRegion(int start, int end) {
+		this.workingSource = currentName;
+		this.workingStart = start;
+		this.workingEnd = end;
 	}
 
 	boolean isFullyInterpretable() {
-		return "".equals(workingName);
+		return workingStart == workingEnd;
 	}
 
 	String getUnparsableName() {
@@ -59,15 +93,39 @@ class TokenizationResult {
 	}
 
 	String getUnparsedName() {
-		return unparsedName;
+		return currentName.substring(unparsedStart, unparsedEnd);
+	}
+
+	int getUnparsedStart() {
+		return unparsedStart;
+	}
+
+	int getUnparsedEnd() {
+		return unparsedEnd;
+	}
+
+	/**
+	 * Sets the unparsed name to the given region of the current name
+	 * @param start
+	 * @param end
+	 */
+	void setUnparsedRegion(int start, int end) {
+		this.unparsedStart = start;
+		this.unparsedEnd = end;
 	}
 
+	/**
+	 * Replaces the current name with the given unparsed name
+	 * @param name
+	 */
 	void setUnparsedName(String name) {
-		this.unparsedName = name;
+		this.currentName = name;
+		this.unparsedStart = 0;
+		this.unparsedEnd = name.length();
 	}
 
 	void setErrorFields(String unparsedName, String uninterpretableName, String unparsableName) {
-		this.unparsedName = unparsedName;
+		setUnparsedName(unparsedName);
 		this.uninterpretableName = uninterpretableName;
 		this.unparsableName = unparsableName;
 	}
@@ -1,6 +1,8 @@
 package uk.ac.cam.ch.wwmm.opsin;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -107,6 +109,37 @@ class WordRules {
 			this.endsWithGroupSubType = endsWithGroupSubType;
 		}
 
+		WordDescription(WordType type, EndsWithGroup endsWithGroup, Pattern endsWithPattern, String value,
+				String functionalGroupType, String endsWithGroupType, String endsWithGroupSubType) {
+			this.type = type;
+			this.endsWithGroup = endsWithGroup;
+			this.endsWithPattern = endsWithPattern;
+			this.value = value;
+			this.functionalGroupType = functionalGroupType;
+			this.endsWithGroupType = endsWithGroupType;
+			this.endsWithGroupSubType = endsWithGroupSubType;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			ResourceImage.writeString(out, type.name());
+			ResourceImage.writeString(out, endsWithGroup != null ? endsWithGroup.name() : null);
+			ResourceImage.writeString(out, endsWithPattern != null ? endsWithPattern.pattern() : null);
+			ResourceImage.writeString(out, value);
+			ResourceImage.writeString(out, functionalGroupType);
+			ResourceImage.writeString(out, endsWithGroupType);
+			ResourceImage.writeString(out, endsWithGroupSubType);
+		}
+
+		static WordDescription read(ByteBuffer buffer) {
+			WordType type = WordType.valueOf(ResourceImage.readString(buffer));
+			String endsWithGroup = ResourceImage.readString(buffer);
+			String endsWithPattern = ResourceImage.readString(buffer);
+			return new WordDescription(type,
+					endsWithGroup != null ? EndsWithGroup.valueOf(endsWithGroup) : null,
+					endsWithPattern != null ? Pattern.compile(endsWithPattern, Pattern.CASE_INSENSITIVE) : null,
+					ResourceImage.readString(buffer), ResourceImage.readString(buffer), ResourceImage.readString(buffer), ResourceImage.readString(buffer));
+		}
+
 		WordType getType() {
 			return type;
 		}
@@ -182,6 +215,32 @@ class WordRules {
 			}
 			this.wordDescriptions = Collections.unmodifiableList(wordDescriptions);
 		}
+
+		WordRuleDescription(WordRule ruleName, WordType ruleType, List<WordDescription> wordDescriptions) {
+			this.ruleName = ruleName;
+			this.ruleType = ruleType;
+			this.wordDescriptions = Collections.unmodifiableList(wordDescriptions);
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			ResourceImage.writeString(out, ruleName.name());
+			ResourceImage.writeString(out, ruleType.name());
+			out.writeInt(wordDescriptions.size());
+			for (WordDescription wordDescription : wordDescriptions) {
+				wordDescription.write(out);
+			}
+		}
+
+		static WordRuleDescription read(ByteBuffer buffer) {
+			WordRule ruleName = WordRule.valueOf(ResourceImage.readString(buffer));
+			WordType ruleType = WordType.valueOf(ResourceImage.readString(buffer));
+			int wordCount = buffer.getInt();
+			List<WordDescription> wordDescriptions = new ArrayList<WordDescription>(wordCount);
+			for (int i = 0; i < wordCount; i++) {
+				wordDescriptions.add(WordDescription.read(buffer));
+			}
+			return new WordRuleDescription(ruleName, ruleType, wordDescriptions);
+		}
 	}
 
 
@@ -190,8 +249,53 @@ class WordRules {
 	 * @throws IOException 
 	 */
 	WordRules(ResourceGetter resourceGetter) throws IOException {
+		this.wordRuleList = Collections.unmodifiableList(readWordRules(resourceGetter.getXMLStreamReader("wordRules.xml")));
+	}
+
+	/**Initialises WordRules that try the word rules of the overlay before those of the base WordRules.
+	 * The word rules of the base are shared, not copied.
+	 * @param base
+	 * @param overlay Must have word rules
+	 * @throws IOException
+	 */
+	WordRules(WordRules base, OpsinResourceOverlay overlay) throws IOException {
+		List<WordRuleDescription> wordRuleList = readWordRules(overlay.getXMLStreamReader(OpsinResourceOverlay.WORD_RULES_FILE));
+		wordRuleList.addAll(base.wordRuleList);
+		this.wordRuleList = Collections.unmodifiableList(wordRuleList);
+	}
+
+	private WordRules(List<WordRuleDescription> wordRuleList) {
+		this.wordRuleList = Collections.unmodifiableList(wordRuleList);
+	}
+
+	/**
+	 * Writes the word rules in the form read by {@link #read(ByteBuffer)}
+	 * @param out
+	 * @throws IOException
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(wordRuleList.size());
+		for (WordRuleDescription wordRule : wordRuleList) {
+			wordRule.write(out);
+		}
+	}
+
+	/**
+	 * Reads word rules written by {@link #write(DataOutputStream)}
+	 * @param buffer
+	 * @return
+	 */
+	static WordRules read(ByteBuffer buffer) {
+		int wordRuleCount = buffer.getInt();
+		List<WordRuleDescription> wordRuleList = new ArrayList<WordRuleDescription>(wordRuleCount);
+		for (int i = 0; i < wordRuleCount; i++) {
+			wordRuleList.add(WordRuleDescription.read(buffer));
+		}
+		return new WordRules(wordRuleList);
+	}
+
+	private static List<WordRuleDescription> readWordRules(XMLStreamReader reader) throws IOException {
 		List<WordRuleDescription> wordRuleList = new ArrayList<WordRuleDescription>();
-		XMLStreamReader reader = resourceGetter.getXMLStreamReader("wordRules.xml");
 		try {
 			while (reader.hasNext()) {
 				if (reader.next() == XMLStreamConstants.START_ELEMENT && 
@@ -210,7 +314,7 @@ class WordRules {
 				throw new IOException("Parsing exception occurred while reading wordRules.xml", e);
 			}
 		}
-		this.wordRuleList = Collections.unmodifiableList(wordRuleList);
+		return wordRuleList;
 	}
 
 	/**Takes a molecule element and places the word elements into wordRule elements
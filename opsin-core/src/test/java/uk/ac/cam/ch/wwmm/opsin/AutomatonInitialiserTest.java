@@ -0,0 +1,119 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AutomatonInitialiserTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRegularSyntaxIsDeterminisable() {
+		assertTrue(AutomatonInitialiser.isDeterminisable("[isn]-"));
+		assertTrue(AutomatonInitialiser.isDeterminisable("([oO][rR][tT][hH][oO]|[mM][eE][tT][aA])-?|(o|[mM]|[p])-"));
+		assertTrue(AutomatonInitialiser.isDeterminisable("[1-9][0-9]{1,2}'*"));
+		assertTrue(AutomatonInitialiser.isDeterminisable("[\\[\\(\\{][+\\-][\\]\\)\\}]"));
+		assertTrue(AutomatonInitialiser.isDeterminisable("\\^[0-9]+(\\^\\^)?|\\~[0-9]+\\~|\\<[0-9]+\\>"));
+		assertTrue(AutomatonInitialiser.isDeterminisable("[^a-z]"));
+	}
+
+	@Test
+	public void testJavaOnlySyntaxIsNotDeterminisable() {
+		assertFalse(AutomatonInitialiser.isDeterminisable("(?<![A-Za-z])"));
+		assertFalse(AutomatonInitialiser.isDeterminisable("(?![A-Za-z])"));
+		assertFalse(AutomatonInitialiser.isDeterminisable("(?:ab)"));
+		assertFalse(AutomatonInitialiser.isDeterminisable("^ab$"));
+		assertFalse(AutomatonInitialiser.isDeterminisable("\\d+"));
+		assertFalse(AutomatonInitialiser.isDeterminisable("\\bab"));
+		assertFalse(AutomatonInitialiser.isDeterminisable("(a)\\1"));
+		assertFalse(AutomatonInitialiser.isDeterminisable("a*?b"));
+		assertFalse(AutomatonInitialiser.isDeterminisable("a++b"));
+		assertFalse(AutomatonInitialiser.isDeterminisable("[a-z&&[^b]]"));
+		assertFalse(AutomatonInitialiser.isDeterminisable("[]a]"));
+		assertFalse("Complement in dk.brics.automaton", AutomatonInitialiser.isDeterminisable("~a"));
+		assertFalse("Numeric interval in dk.brics.automaton", AutomatonInitialiser.isDeterminisable("<1-9>"));
+		assertFalse("Quoted string in dk.brics.automaton", AutomatonInitialiser.isDeterminisable("2\""));
+		assertFalse(AutomatonInitialiser.isDeterminisable("[ab"));
+		assertFalse(AutomatonInitialiser.isDeterminisable("ab\\"));
+	}
+
+	@Test
+	public void testOnlyLookaroundRegexTokensUseJavaRegex() throws IOException {
+		ResourceManager resourceManager = new ResourceManager(new ResourceGetter("uk/ac/cam/ch/wwmm/opsin/resources/"));
+		List<String> regexTokensNotDeterminised = resourceManager.getRegexTokensNotDeterminised();
+		assertEquals(2, regexTokensNotDeterminised.size());
+		for (String regexToken : regexTokensNotDeterminised) {
+			assertTrue(regexToken, regexToken.contains("(?<!") || regexToken.contains("(?!"));
+		}
+	}
+
+	@Test
+	public void testCacheKey() {
+		String key = AutomatonInitialiser.getCacheKey("ab+c", false);
+		assertEquals(64, key.length());
+		assertTrue(key.matches("[0-9a-f]+"));
+		assertEquals(key, AutomatonInitialiser.getCacheKey("ab+c", false));
+		assertFalse(key.equals(AutomatonInitialiser.getCacheKey("ab+c", true)));
+		assertFalse(key.equals(AutomatonInitialiser.getCacheKey("ab+d", false)));
+	}
+
+	@Test
+	public void testAutomatonIsCached() throws IOException {
+		File cacheDirectory = new File(folder.getRoot(), "cache");
+		CompactAutomaton built = new AutomatonInitialiser("nonExistentResourcePath/", cacheDirectory).loadAutomaton("test", "ab+c", false);
+		File cachedFile = new File(cacheDirectory, AutomatonInitialiser.getCacheKey("ab+c", false) + ".aut");
+		assertTrue(cachedFile.isFile());
+		assertEquals("Only the cached automaton should be present, not temporary files", 1, cacheDirectory.list().length);
+
+		CompactAutomaton loaded = new AutomatonInitialiser("nonExistentResourcePath/", cacheDirectory).loadAutomaton("test", "ab+c", false);
+		assertEquals(built.getSize(), loaded.getSize());
+		assertEquals(5, loaded.run("abbbc", 0));
+		assertEquals(-1, loaded.run("abbbd", 0));
+	}
+
+	@Test
+	public void testCacheDirectoryPropertyIsReadWhenAutomatonIsLoaded() throws IOException {
+		AutomatonInitialiser automatonInitialiser = new AutomatonInitialiser("nonExistentResourcePath/");
+		File cacheDirectory = new File(folder.getRoot(), "cache");
+		String originalCacheDirectory = System.getProperty(AutomatonInitialiser.CACHE_DIRECTORY_PROPERTY);
+		System.setProperty(AutomatonInitialiser.CACHE_DIRECTORY_PROPERTY, cacheDirectory.getPath());
+		try {
+			assertEquals(cacheDirectory, automatonInitialiser.getCacheDirectory());
+			automatonInitialiser.loadAutomaton("test", "ab+c", false);
+			assertTrue(new File(cacheDirectory, AutomatonInitialiser.getCacheKey("ab+c", false) + ".aut").isFile());
+		}
+		finally {
+			if (originalCacheDirectory != null) {
+				System.setProperty(AutomatonInitialiser.CACHE_DIRECTORY_PROPERTY, originalCacheDirectory);
+			}
+			else {
+				System.clearProperty(AutomatonInitialiser.CACHE_DIRECTORY_PROPERTY);
+			}
+		}
+	}
+
+	@Test
+	public void testCorruptCachedAutomatonIsRebuilt() throws IOException {
+		File cacheDirectory = folder.getRoot();
+		File cachedFile = new File(cacheDirectory, AutomatonInitialiser.getCacheKey("ab+c", true) + ".aut");
+		FileOutputStream out = new FileOutputStream(cachedFile);
+		try {
+			out.write(new byte[]{1, 2, 3});
+		}
+		finally {
+			out.close();
+		}
+		CompactAutomaton automaton = new AutomatonInitialiser("nonExistentResourcePath/", cacheDirectory).loadAutomaton("test", "ab+c", true);
+		assertEquals("Automaton should be reversed", 5, automaton.run("cbbba", 0));
+		assertTrue(cachedFile.length() > 3);
+	}
+}
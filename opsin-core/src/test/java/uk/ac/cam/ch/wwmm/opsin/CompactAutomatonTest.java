@@ -0,0 +1,54 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import dk.brics.automaton.RegExp;
+import dk.brics.automaton.RunAutomaton;
+
+public class CompactAutomatonTest {
+
+	private static final String[] INPUTS = {"", "a", "ab", "abc", "abcd", "acd", "2-ab", "xabc", "éabc", "abab"};
+
+	@Test
+	public void testMatchesRunAutomaton() {
+		RunAutomaton runAutomaton = new RunAutomaton(new RegExp("(ab)*c?|[0-9]+-ab").toAutomaton(), false);
+		CompactAutomaton automaton = new CompactAutomaton(runAutomaton);
+		assertEquals(runAutomaton.getSize(), automaton.getSize());
+		assertEquals(runAutomaton.getInitialState(), automaton.getInitialState());
+		assertArrayEquals(runAutomaton.getCharIntervals(), automaton.getCharIntervals());
+		for (int state = 0; state < runAutomaton.getSize(); state++) {
+			assertEquals(runAutomaton.isAccept(state), automaton.isAccept(state));
+			for (char c : "ab0-\u0000￿".toCharArray()) {
+				assertEquals(runAutomaton.step(state, c), automaton.step(state, c));
+			}
+		}
+		for (String input : INPUTS) {
+			for (int i = 0; i <= input.length(); i++) {
+				assertEquals(input, runAutomaton.run(input, i), automaton.run(input, i));
+			}
+		}
+	}
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		CompactAutomaton automaton = new CompactAutomaton(new RunAutomaton(new RegExp("[1-9][0-9]{1,2}'*").toAutomaton()));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		automaton.write(out);
+		out.flush();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		CompactAutomaton read = CompactAutomaton.read(buffer);
+		assertFalse("All bytes should have been read", buffer.hasRemaining());
+		assertEquals(automaton.getSize(), read.getSize());
+		for (String input : new String[]{"1", "12", "123''", "1234", "01", "9'"}) {
+			assertEquals(automaton.run(input, 0), read.run(input, 0));
+		}
+	}
+}
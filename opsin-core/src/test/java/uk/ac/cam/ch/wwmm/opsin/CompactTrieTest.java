@@ -0,0 +1,105 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class CompactTrieTest {
+
+	private static OpsinCompactTrie compactTrie(String... tokens) {
+		OpsinRadixTrie trie = new OpsinRadixTrie();
+		for (String token : tokens) {
+			trie.addToken(token);
+		}
+		return new OpsinCompactTrie(trie);
+	}
+
+	@Test
+	public void testSimpleGet(){
+		OpsinCompactTrie trie = compactTrie("benzene");
+		List<Integer> matches = trie.findMatches("benzene", 0);
+		assertNotNull(matches);
+		assertEquals(1, matches.size());
+		assertEquals(7, matches.get(0).intValue());
+		assertNull(trie.findMatches("benzen", 0));
+		assertNull(trie.findMatches("benzyl", 0));
+	}
+
+	@Test
+	public void testBranchesFindPrefix(){
+		OpsinCompactTrie trie = compactTrie("pyridinyl", "phenyl", "methyl", "ethyl", "propyl", "butyl", "pentyl", "hexyl", "heptyl", "octyl", "nonyl", "decyl");
+		List<Integer> matches = trie.findMatches("phenylbenzene", 0);
+		assertNotNull(matches);
+		assertEquals(1, matches.size());
+		assertEquals(6, matches.get(0).intValue());
+		matches = trie.findMatches("2-nonylbenzene", 2);
+		assertNotNull(matches);
+		assertEquals(7, matches.get(0).intValue());
+	}
+
+	@Test
+	public void testMultipleHits(){
+		OpsinCompactTrie trie = compactTrie("abcdef", "a", "", "acd", "ab", "abcf");
+		List<Integer> matches = trie.findMatches("abc", 0);
+		assertNotNull(matches);
+		assertEquals(3, matches.size());
+		assertEquals(0, matches.get(0).intValue());
+		assertEquals(1, matches.get(1).intValue());
+		assertEquals(2, matches.get(2).intValue());
+
+		char[] name = "xabcdefx".toCharArray();
+		int[] matchEnds = new int[name.length];
+		assertEquals(4, trie.findMatches(name, 7, 1, matchEnds));
+		assertEquals(7, matchEnds[3]);
+	}
+
+	@Test
+	public void testNonAsciiCharactersDoNotMatch(){
+		OpsinCompactTrie trie = compactTrie("ethyl");
+		assertNull(trie.findMatches("éthyl", 0));
+		assertNull(trie.findMatches("ethýl", 0));
+	}
+
+	@Test
+	public void testReverseMatching(){
+		OpsinCompactTrie trie = compactTrie("enedilyhte", "lyhte", "", "ly", "lyhtem");
+		List<Integer> matches = trie.findMatchesReadingStringRightToLeft("ethyl", 5);
+		assertNotNull(matches);
+		assertEquals(3, matches.size());
+		assertEquals(5, matches.get(0).intValue());
+		assertEquals(3, matches.get(1).intValue());
+		assertEquals(0, matches.get(2).intValue());
+	}
+
+	@Test
+	public void testSymbolsOfMatches(){
+		OpsinRadixTrie radixTrie = new OpsinRadixTrie();
+		radixTrie.addToken("methyl", 3);
+		radixTrie.addToken("meth", 1);
+		radixTrie.addToken("methylidene", 2);
+		radixTrie.addToken("meth", 0);
+		OpsinCompactTrie trie = new OpsinCompactTrie(radixTrie);
+		char[] name = "methylidene".toCharArray();
+		int[] matchEnds = new int[name.length + 1];
+		int[] matchNodes = new int[name.length + 1];
+		assertEquals(3, trie.findMatchingNodes(name, name.length, 0, matchEnds, matchNodes));
+		assertEquals(4, matchEnds[0]);
+		assertEquals(2, trie.getEndOfSymbols(matchNodes[0]) - trie.getFirstSymbol(matchNodes[0]));
+		assertEquals(0, trie.getSymbol(trie.getFirstSymbol(matchNodes[0])));
+		assertEquals(1, trie.getSymbol(trie.getFirstSymbol(matchNodes[0]) + 1));
+		assertEquals(6, matchEnds[1]);
+		assertEquals(3, trie.getSymbol(trie.getFirstSymbol(matchNodes[1])));
+		assertEquals(11, matchEnds[2]);
+		assertEquals(2, trie.getSymbol(trie.getFirstSymbol(matchNodes[2])));
+	}
+
+	@Test
+	public void testMemoryFootprint(){
+		OpsinCompactTrie trie = compactTrie("methyl", "methylidene", "ethyl");
+		assertEquals(4, trie.getNumberOfNodes());//root, methyl, ethyl, idene
+		assertTrue(trie.getMemoryFootprint() > 0);
+		assertTrue(trie.getMemoryFootprint() < 1000);
+	}
+}
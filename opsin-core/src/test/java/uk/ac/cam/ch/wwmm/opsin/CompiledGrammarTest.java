@@ -0,0 +1,82 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import dk.brics.automaton.RegExp;
+import dk.brics.automaton.RunAutomaton;
+
+public class CompiledGrammarTest {
+
+	private static int indexOfSymbol(char[] symbols, char symbol) {
+		for (int i = 0; i < symbols.length; i++) {
+			if (symbols[i] == symbol) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException(symbol + " is not a symbol");
+	}
+
+	@Test
+	public void testTransitionsMatchAutomaton() {
+		RunAutomaton automaton = new RunAutomaton(new RegExp("a(b|c)*d").toAutomaton());
+		char[] symbols = automaton.getCharIntervals();
+		CompiledGrammar grammar = new CompiledGrammar(new CompactAutomaton(automaton), new long[symbols.length * 2], new boolean[symbols.length]);
+		for (int state = 0; state < automaton.getSize(); state++) {
+			int transition = grammar.getFirstTransition(state);
+			for (int i = 0; i < symbols.length; i++) {
+				int nextState = automaton.step(state, symbols[i]);
+				if (nextState != -1) {
+					assertTrue(transition < grammar.getEndOfTransitions(state));
+					assertEquals(i, grammar.getTransitionSymbol(transition));
+					assertEquals(nextState, grammar.getTransitionTarget(transition));
+					transition++;
+				}
+			}
+			assertEquals(grammar.getEndOfTransitions(state), transition);
+		}
+	}
+
+	@Test
+	public void testFirstCharacterMasks() {
+		RunAutomaton automaton = new RunAutomaton(new RegExp("ab").toAutomaton());
+		char[] symbols = automaton.getCharIntervals();
+		int a = indexOfSymbol(symbols, 'a');
+		int b = indexOfSymbol(symbols, 'b');
+		OpsinRadixTrie trie = new OpsinRadixTrie();
+		trie.addToken("methyl", a);
+		trie.addToken("ethyl", a);
+		trie.addToken("2-", b);
+		long[] masks = new long[symbols.length * 2];
+		boolean[] unrestricted = new boolean[symbols.length];
+		new OpsinCompactTrie(trie).addFirstCharacterMasks(masks, unrestricted);
+		CompiledGrammar grammar = new CompiledGrammar(new CompactAutomaton(automaton), masks, unrestricted);
+
+		int initialState = automaton.getInitialState();
+		assertTrue(grammar.mayReadToken(initialState, 'm'));
+		assertTrue(grammar.mayReadToken(initialState, 'e'));
+		assertTrue("Case insensitive tokens may start with an upper case letter", grammar.mayReadToken(initialState, 'M'));
+		assertFalse(grammar.mayReadToken(initialState, '2'));
+		assertFalse(grammar.mayReadToken(initialState, 'x'));
+		assertFalse("No characters remain", grammar.mayReadToken(initialState, -1));
+
+		int secondState = automaton.step(initialState, 'a');
+		assertTrue(grammar.mayReadToken(secondState, '2'));
+		assertFalse(grammar.mayReadToken(secondState, 'm'));
+	}
+
+	@Test
+	public void testZeroLengthTokensAreUnrestricted() {
+		RunAutomaton automaton = new RunAutomaton(new RegExp("ab").toAutomaton());
+		char[] symbols = automaton.getCharIntervals();
+		int a = indexOfSymbol(symbols, 'a');
+		long[] masks = new long[symbols.length * 2];
+		boolean[] unrestricted = new boolean[symbols.length];
+		unrestricted[a] = true;
+		CompiledGrammar grammar = new CompiledGrammar(new CompactAutomaton(automaton), masks, unrestricted);
+		assertTrue(grammar.mayReadToken(automaton.getInitialState(), 'x'));
+		assertTrue(grammar.mayReadToken(automaton.getInitialState(), -1));
+		assertFalse(grammar.mayReadToken(automaton.step(automaton.getInitialState(), 'a'), 'x'));
+	}
+}
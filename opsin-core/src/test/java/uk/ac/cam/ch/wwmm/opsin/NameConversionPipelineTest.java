@@ -0,0 +1,162 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import uk.ac.cam.ch.wwmm.opsin.NameConversionPipeline.ConvertedLine;
+import uk.ac.cam.ch.wwmm.opsin.OpsinResult.OPSIN_RESULT_STATUS;
+
+public class NameConversionPipelineTest {
+
+	@Test
+	public void testSingleThreaded() throws IOException {
+		checkOrderAndPayloadsPreserved(1);
+	}
+
+	@Test
+	public void testMultiThreaded() throws IOException {
+		checkOrderAndPayloadsPreserved(4);
+	}
+
+	@Test
+	public void testEmptyInput() throws IOException {
+		NameConversionPipeline pipeline = new NameConversionPipeline(NameToStructure.getInstance(), new BufferedReader(new StringReader("")), new NameToStructureConfig(), 4);
+		try {
+			assertNull(pipeline.next());
+			assertNull(pipeline.next());
+		}
+		finally {
+			pipeline.close();
+		}
+	}
+
+	@Test
+	public void testIteratorInput() throws IOException {
+		NameConversionPipeline pipeline = NameToStructure.getInstance().convertNames(Arrays.asList("ethane", "benzene\tpayload").iterator(), new NameToStructureConfig(), 2);
+		try {
+			ConvertedLine first = pipeline.next();
+			assertEquals("CC", first.getResult().getSmiles());
+			assertNull(first.getPayload());
+			ConvertedLine second = pipeline.next();
+			assertEquals("benzene", second.getResult().getChemicalName());
+			assertEquals("payload", second.getPayload());
+			assertNull(pipeline.next());
+		}
+		finally {
+			pipeline.close();
+		}
+	}
+
+	/**
+	 * Returns "ethane" then throws the given RuntimeException or Error
+	 */
+	private static class FailingIterator implements Iterator<String> {
+		private final Throwable failure;
+		private boolean returnedName = false;
+
+		FailingIterator(Throwable failure) {
+			this.failure = failure;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return true;
+		}
+
+		@Override
+		public String next() {
+			if (returnedName) {
+				if (failure instanceof Error) {
+					throw (Error) failure;
+				}
+				throw (RuntimeException) failure;
+			}
+			returnedName = true;
+			return "ethane";
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@Test
+	public void testIteratorExceptionIsPropagated() throws IOException {
+		Iterator<String> names = new FailingIterator(new IllegalStateException("source failed"));
+		NameConversionPipeline pipeline = NameToStructure.getInstance().convertNames(names, new NameToStructureConfig(), 2);
+		try {
+			assertEquals("CC", pipeline.next().getResult().getSmiles());
+			try {
+				pipeline.next();
+				fail("Exception from the iterator should have been rethrown");
+			}
+			catch (IllegalStateException e) {
+				assertEquals("source failed", e.getMessage());
+			}
+			assertNull(pipeline.next());
+		}
+		finally {
+			pipeline.close();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testIteratorErrorIsPropagated() throws IOException {
+		Iterator<String> names = new FailingIterator(new OutOfMemoryError("source failed"));
+		NameConversionPipeline pipeline = NameToStructure.getInstance().convertNames(names, new NameToStructureConfig(), 2);
+		try {
+			assertEquals("CC", pipeline.next().getResult().getSmiles());
+			try {
+				pipeline.next();
+				fail("Error from the iterator should have been rethrown");
+			}
+			catch (OutOfMemoryError e) {
+				assertEquals("source failed", e.getMessage());
+			}
+			assertNull(pipeline.next());
+		}
+		finally {
+			pipeline.close();
+		}
+	}
+
+	private void checkOrderAndPayloadsPreserved(int threads) throws IOException {
+		StringBuilder input = new StringBuilder();
+		int lines = 500;
+		for (int i = 0; i < lines; i++) {
+			String name = i % 3 == 0 ? "ethane" : (i % 3 == 1 ? "helloworld" : "benzene");
+			input.append(name).append('\t').append(i).append('\n');
+		}
+		NameConversionPipeline pipeline = NameToStructure.getInstance().convertNames(new StringReader(input.toString()), new NameToStructureConfig(), threads);
+		try {
+			for (int i = 0; i < lines; i++) {
+				ConvertedLine convertedLine = pipeline.next();
+				assertNotNull(convertedLine);
+				OpsinResult result = convertedLine.getResult();
+				assertEquals(result.getChemicalName() + "\t" + i, convertedLine.getLine());
+				assertEquals(String.valueOf(i), convertedLine.getPayload());
+				if (i % 3 == 0) {
+					assertEquals("CC", result.getSmiles());
+				}
+				else if (i % 3 == 1) {
+					assertEquals(OPSIN_RESULT_STATUS.FAILURE, result.getStatus());
+				}
+				else {
+					assertEquals("C1=CC=CC=C1", result.getSmiles());
+				}
+			}
+			assertNull(pipeline.next());
+		}
+		finally {
+			pipeline.close();
+		}
+	}
+}
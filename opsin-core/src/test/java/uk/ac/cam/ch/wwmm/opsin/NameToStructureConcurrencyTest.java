@@ -0,0 +1,93 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class NameToStructureConcurrencyTest {
+
+	private static final int THREADS = 8;
+	private static final int ITERATIONS_PER_THREAD = 20;
+
+	private static final List<String> NAMES = Arrays.asList(
+			"ethane", "benzene", "propan-2-ol", "sodium chloride", "triethylamine", "dichloromethane",
+			"2-acetyloxybenzoic acid", "(2S)-2-aminopropanoic acid", "naphthalene-1,5-diol", "cyclohexanone oxime",
+			"ethyl acetate", "1H-indole-3-carbaldehyde", "pyridin-2-ylmethanamine", "benzenesulfonamide", "ethylchloride",
+			"N,N-dimethylformamide", "spiro[4.5]decane", "bicyclo[2.2.2]octane", "L-alanyl-L-glycine", "2,4,6-trinitrotoluene",
+			"helloworld", "ethylbenzenefoo", "2-methylfoobarane", "eth", "benzene carboxylic acidic");
+
+	@Test
+	public void testConcurrentParsing() throws Exception {
+		stressTest(false);
+	}
+
+	@Test
+	public void testConcurrentParsingWithDetailedFailureAnalysis() throws Exception {
+		stressTest(true);
+	}
+
+	private void stressTest(boolean detailedFailureAnalysis) throws Exception {
+		final NameToStructure nts = NameToStructure.getInstance();
+		final NameToStructureConfig n2sConfig = new NameToStructureConfig();
+		n2sConfig.setDetailedFailureAnalysis(detailedFailureAnalysis);
+
+		final List<String> expected = new ArrayList<String>();
+		for (String name : NAMES) {
+			expected.add(describe(nts.parseChemicalName(name, n2sConfig)));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			final CountDownLatch startSignal = new CountDownLatch(1);
+			List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+			for (int t = 0; t < THREADS; t++) {
+				final long seed = t;
+				futures.add(executor.submit(new Callable<List<String>>() {
+					@Override
+					public List<String> call() throws Exception {
+						List<String> errors = new ArrayList<String>();
+						List<Integer> order = new ArrayList<Integer>();
+						for (int i = 0; i < NAMES.size(); i++) {
+							order.add(i);
+						}
+						Random random = new Random(seed);
+						startSignal.await();
+						for (int i = 0; i < ITERATIONS_PER_THREAD; i++) {
+							Collections.shuffle(order, random);
+							for (int idx : order) {
+								String actual = describe(nts.parseChemicalName(NAMES.get(idx), n2sConfig));
+								if (!expected.get(idx).equals(actual)) {
+									errors.add(NAMES.get(idx) + ": expected " + expected.get(idx) + " but was " + actual);
+								}
+							}
+						}
+						return errors;
+					}
+				}));
+			}
+			startSignal.countDown();
+			for (Future<List<String>> future : futures) {
+				List<String> errors = future.get();
+				assertTrue(errors.toString(), errors.isEmpty());
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static String describe(OpsinResult result) {
+		return result.getStatus() + "|" + result.getSmiles() + "|" + result.getMessage();
+	}
+}
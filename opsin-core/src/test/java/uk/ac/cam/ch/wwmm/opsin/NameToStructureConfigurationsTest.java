@@ -69,4 +69,33 @@ public class NameToStructureConfigurationsTest {
 			or = n2s.parseChemicalName("(R)-2,2'-Bis(diphenylphosphino)-1,1'-binaphthyl", n2sConfig);
 			assertEquals(OPSIN_RESULT_STATUS.WARNING, or.getStatus());
 		}
+
+		@Test
+		public void testTimeLimit() {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 40; i++) {
+				sb.append("(2-methylpropyl)");
+			}
+			String slowName = sb.append("benzene").toString();
+			NameToStructureConfig n2sConfig = NameToStructureConfig.getDefaultConfigInstance();
+			OpsinResultCache cache = new OpsinResultCache(10);
+			n2sConfig.setResultCache(cache);
+			n2sConfig.setTimeLimit(1);
+			OpsinResult or = n2s.parseChemicalName(slowName, n2sConfig);
+			assertEquals(OPSIN_RESULT_STATUS.FAILURE, or.getStatus());
+			assertTrue(or.getMessage().contains("time limit"));
+			assertEquals(0, cache.size());
+
+			n2sConfig.setTimeLimit(0);
+			or = n2s.parseChemicalName("ethane", n2sConfig);
+			assertEquals(OPSIN_RESULT_STATUS.SUCCESS, or.getStatus());
+		}
+
+		@Test
+		public void testVeryLargeTimeLimit() {
+			NameToStructureConfig n2sConfig = NameToStructureConfig.getDefaultConfigInstance();
+			n2sConfig.setTimeLimit(Long.MAX_VALUE);
+			OpsinResult or = n2s.parseChemicalName("ethane", n2sConfig);
+			assertEquals(OPSIN_RESULT_STATUS.SUCCESS, or.getStatus());
+		}
 }
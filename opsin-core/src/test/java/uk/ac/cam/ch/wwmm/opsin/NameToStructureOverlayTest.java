@@ -0,0 +1,194 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class NameToStructureOverlayTest {
+
+	private static NameToStructure n2s;
+
+	@BeforeClass
+	public static void setup() {
+		n2s = NameToStructure.getInstance();
+	}
+
+	private static InputStream stream(String xml) {
+		return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static OpsinResourceOverlay simpleGroupOverlay(String name, String smiles) throws IOException {
+		return new OpsinResourceOverlay().addTokenFile(name + ".xml", stream(
+				"<tokenList tagname=\"group\" type=\"simpleGroup\" subType=\"simpleGroup\" symbol=\"G\">" +
+				"<token value=\"" + smiles + "\">" + name + "</token>" +
+				"</tokenList>"));
+	}
+
+	/**
+	 * An overlay of a ring, opsinbenzen, whose group type, opsinRing, has no suffix applicability entries in OPSIN's resources
+	 * @return
+	 * @throws IOException
+	 */
+	private static OpsinResourceOverlay opsinRingOverlay() throws IOException {
+		return new OpsinResourceOverlay().addTokenFile("opsinRing.xml", stream(
+				"<tokenList tagname=\"group\" type=\"opsinRing\" subType=\"ring\" symbol=\"z\">" +
+				"<token value=\"c1ccccc1\" labels=\"1/2/3/4/5/6\">opsinbenzen</token>" +
+				"</tokenList>"));
+	}
+
+	private static SuffixRules suffixRulesFromResources() throws IOException {
+		return new SuffixRules(new ResourceGetter("uk/ac/cam/ch/wwmm/opsin/resources/"));
+	}
+
+	@Test
+	public void testOverlayToken() throws IOException {
+		NameToStructure overlaid = n2s.withOverlay(simpleGroupOverlay("opsinoxanol", "OCCCCO"));
+		assertEquals("OCCCCO", overlaid.parseToSmiles("opsinoxanol"));
+		assertEquals("C(C)#N", overlaid.parseToSmiles("acetonitrile"));
+		assertNull(n2s.parseToSmiles("opsinoxanol"));
+	}
+
+	@Test
+	public void testOverlayTokenInMixture() throws IOException {
+		NameToStructure overlaid = n2s.withOverlay(simpleGroupOverlay("opsinoxanol", "OCCCCO"));
+		assertEquals("[Cl-].[Na+].OCCCCO", overlaid.parseToSmiles("opsinoxanol sodium chloride"));
+	}
+
+	@Test
+	public void testOverlayOfOverlay() throws IOException {
+		NameToStructure first = n2s.withOverlay(simpleGroupOverlay("opsinoxanol", "OCCCCO"));
+		NameToStructure second = first.withOverlay(simpleGroupOverlay("opsinodiamine", "NCCN"));
+		assertEquals("OCCCCO", second.parseToSmiles("opsinoxanol"));
+		assertEquals("NCCN", second.parseToSmiles("opsinodiamine"));
+		assertNull(first.parseToSmiles("opsinodiamine"));
+	}
+
+	@Test
+	public void testOverlayTokenStartingWithDigit() throws IOException {
+		NameToStructure overlaid = n2s.withOverlay(simpleGroupOverlay("4711x", "CCCCO"));
+		assertEquals("CCCCO", overlaid.parseToSmiles("4711x"));
+		assertNull(n2s.parseToSmiles("4711x"));
+	}
+
+	@Test
+	public void testOverlayRedefiningExistingToken() throws IOException {
+		NameToStructure overlaid = n2s.withOverlay(simpleGroupOverlay("acetoin", "OC(C(CC)=O)CC"));
+		assertEquals("OC(C(CC)=O)CC", overlaid.parseToSmiles("acetoin"));
+		assertEquals("OC(C(C)=O)C", n2s.parseToSmiles("acetoin"));
+	}
+
+	@Test
+	public void testOverlayWordRuleIsTriedBeforeBaseWordRules() throws IOException {
+		OpsinResourceOverlay overlay = new OpsinResourceOverlay().setWordRules(stream(
+				"<wordRules><wordRule name=\"simple\" type=\"full\">" +
+				"<word type=\"full\" endsWithRegex=\"ol\"/><word type=\"full\" endsWith=\"ateGroup\"/>" +
+				"</wordRule></wordRules>"));
+		NameToStructure overlaid = n2s.withOverlay(overlay);
+		assertEquals("C(C)(=O)[O-].C(C)O", overlaid.parseToSmiles("ethanol acetate"));
+		assertEquals("C(C)(=O)OCC", overlaid.parseToSmiles("ethyl acetate"));
+		assertEquals("C(C)(=O)OCC", n2s.parseToSmiles("ethanol acetate"));
+	}
+
+	@Test
+	public void testOverlaySuffixApplicabilityForNewGroupType() throws IOException {
+		OpsinResourceOverlay overlay = opsinRingOverlay().setSuffixApplicability(stream(
+				"<suffixApplicability><groupType type=\"opsinRing\">" +
+				"<suffix value=\"ol\">amine</suffix>" +
+				"</groupType></suffixApplicability>"));
+		NameToStructure overlaid = n2s.withOverlay(overlay);
+		assertEquals("C1(=CC=CC=C1)N", overlaid.parseToSmiles("opsinbenzenol"));
+		assertEquals("C1(=CC=CC=C1)O", overlaid.parseToSmiles("phenol"));
+		assertEquals("C1(=CC=CC=C1)O", n2s.parseToSmiles("phenol"));
+	}
+
+	@Test
+	public void testOverlaySuffixRule() throws IOException {
+		OpsinResourceOverlay overlay = opsinRingOverlay().setSuffixRules(stream(
+				"<suffixRulesList><rule value=\"opsinHydroxyamino\"><addgroup SMILES=\"[*]NO\"/></rule></suffixRulesList>"))
+				.setSuffixApplicability(stream(
+				"<suffixApplicability><groupType type=\"opsinRing\">" +
+				"<suffix value=\"ol\">opsinHydroxyamino</suffix>" +
+				"</groupType></suffixApplicability>"));
+		NameToStructure overlaid = n2s.withOverlay(overlay);
+		assertEquals("C1(=CC=CC=C1)NO", overlaid.parseToSmiles("opsinbenzenol"));
+		assertNull(n2s.parseToSmiles("opsinbenzenol"));
+	}
+
+	@Test
+	public void testOverlaySuffixApplicabilityForExistingGroupType() throws IOException, ComponentGenerationException {
+		SuffixRules base = suffixRulesFromResources();
+		List<SuffixRule> ylForYl = base.getSuffixRuleTags("acidStem", "yl", "ylForYl");
+		List<SuffixRule> ylForAcyl = base.getSuffixRuleTags("acidStem", "yl", "ylForAcyl");
+		OpsinResourceOverlay overlay = new OpsinResourceOverlay().setSuffixApplicability(stream(
+				"<suffixApplicability><groupType type=\"acidStem\">" +
+				"<suffix value=\"yl\" subType=\"opsinSubType\">yl</suffix>" +
+				"<suffix value=\"opsinyl\">yl</suffix>" +
+				"</groupType></suffixApplicability>"));
+		SuffixRules overlaid = new SuffixRules(base, overlay);
+		assertSame(ylForYl, overlaid.getSuffixRuleTags("acidStem", "yl", "opsinSubType"));
+		assertSame(ylForYl, overlaid.getSuffixRuleTags("acidStem", "opsinyl", null));
+		assertSame(ylForYl, overlaid.getSuffixRuleTags("acidStem", "yl", "ylForYl"));
+		assertSame(ylForAcyl, overlaid.getSuffixRuleTags("acidStem", "yl", "ylForAcyl"));
+		assertSame(ylForAcyl, base.getSuffixRuleTags("acidStem", "yl", "ylForAcyl"));
+	}
+
+	@Test(expected = ComponentGenerationException.class)
+	public void testOverlaySuffixApplicabilityDoesNotModifyBaseSuffixList() throws IOException, ComponentGenerationException {
+		SuffixRules base = suffixRulesFromResources();
+		new SuffixRules(base, new OpsinResourceOverlay().setSuffixApplicability(stream(
+				"<suffixApplicability><groupType type=\"acidStem\">" +
+				"<suffix value=\"yl\" subType=\"opsinSubType\">yl</suffix>" +
+				"</groupType></suffixApplicability>")));
+		base.getSuffixRuleTags("acidStem", "yl", "opsinSubType");
+	}
+
+	@Test(expected = ComponentGenerationException.class)
+	public void testOverlaySuffixApplicabilityDoesNotModifyBaseGroupType() throws IOException, ComponentGenerationException {
+		SuffixRules base = suffixRulesFromResources();
+		new SuffixRules(base, new OpsinResourceOverlay().setSuffixApplicability(stream(
+				"<suffixApplicability><groupType type=\"acidStem\">" +
+				"<suffix value=\"opsinyl\">yl</suffix>" +
+				"</groupType></suffixApplicability>")));
+		base.getSuffixRuleTags("acidStem", "opsinyl", null);
+	}
+
+	@Test
+	public void testResultCacheSharedWithOverlay() throws IOException {
+		NameToStructure overlaid = n2s.withOverlay(simpleGroupOverlay("acetoin", "OC(C(CC)=O)CC"));
+		OpsinResultCache cache = new OpsinResultCache(10);
+		NameToStructureConfig n2sConfig = new NameToStructureConfig();
+		n2sConfig.setResultCache(cache);
+		assertEquals("OC(C(C)=O)C", n2s.parseChemicalName("acetoin", n2sConfig).getSmiles());
+		assertEquals("OC(C(CC)=O)CC", overlaid.parseChemicalName("acetoin", n2sConfig).getSmiles());
+		assertEquals("OC(C(C)=O)C", n2s.parseChemicalName("acetoin", n2sConfig).getSmiles());
+		assertEquals("OC(C(CC)=O)CC", overlaid.parseChemicalName("acetoin", n2sConfig).getSmiles());
+		assertEquals(2, cache.size());
+		assertEquals(2, cache.getHitCount());
+	}
+
+	@Test(expected = NameToStructureException.class)
+	public void testOverlayWithUnknownSymbol() throws IOException {
+		OpsinResourceOverlay overlay = new OpsinResourceOverlay().addTokenFile("unknown.xml", stream(
+				"<tokenList tagname=\"group\" type=\"simpleGroup\" subType=\"simpleGroup\" symbol=\"\u2603\">" +
+				"<token value=\"CCO\">opsinol</token>" +
+				"</tokenList>"));
+		n2s.withOverlay(overlay);
+	}
+
+	@Test(expected = NameToStructureException.class)
+	public void testMalformedOverlay() throws IOException {
+		n2s.withOverlay(new OpsinResourceOverlay().addTokenFile("malformed.xml", stream("<tokenList symbol=\"G\">")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDuplicateTokenFileName() throws IOException {
+		simpleGroupOverlay("opsinoxanol", "OCCCCO").addTokenFile("opsinoxanol.xml", stream("<tokenList/>"));
+	}
+}
@@ -0,0 +1,86 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class NameToStructureServerTest {
+
+	private static NameToStructureServer server;
+
+	@BeforeClass
+	public static void setUp() throws IOException {
+		server = new NameToStructureServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, new NameToStructureConfig(), "smi", false);
+		server.start();
+	}
+
+	@AfterClass
+	public static void cleanUp() {
+		server.stop(0);
+		server = null;
+	}
+
+	@Test
+	public void testBatchConversion() throws IOException {
+		HttpURLConnection connection = post("/", "ethane\nhelloworld\nbenzene\n");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("CC\n\nC1=CC=CC=C1\n", readBody(connection.getInputStream()).replace("\r\n", "\n"));
+	}
+
+	@Test
+	public void testQueryParameters() throws IOException {
+		HttpURLConnection connection = post("/?format=smi&name=true", "ethane\tid1\n");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("CC\tethane\tid1\n", readBody(connection.getInputStream()).replace("\r\n", "\n"));
+
+		connection = post("/?format=cml", "ethane");
+		assertEquals(200, connection.getResponseCode());
+		assertTrue(readBody(connection.getInputStream()).contains("<cml"));
+	}
+
+	@Test
+	public void testBadRequests() throws IOException {
+		assertEquals(400, post("/?format=foo", "ethane").getResponseCode());
+		HttpURLConnection connection = (HttpURLConnection) url("/").openConnection();
+		assertEquals(405, connection.getResponseCode());
+	}
+
+	private URL url(String path) throws IOException {
+		InetSocketAddress address = server.getAddress();
+		return new URL("http", address.getHostString(), address.getPort(), path);
+	}
+
+	private HttpURLConnection post(String path, String body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url(path).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(body.getBytes("UTF-8"));
+		}
+		finally {
+			out.close();
+		}
+		return connection;
+	}
+
+	private String readBody(InputStream in) throws IOException {
+		try {
+			return IOUtils.toString(in, "UTF-8");
+		}
+		finally {
+			in.close();
+		}
+	}
+}
@@ -2,8 +2,13 @@ package uk.ac.cam.ch.wwmm.opsin;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+import java.util.List;
+
 import org.junit.Test;
 
+import uk.ac.cam.ch.wwmm.opsin.OpsinResult.OPSIN_RESULT_STATUS;
+
 
 public class NameToStructureTest {
 
@@ -54,4 +59,25 @@ public class NameToStructureTest {
 		String smiles = nts.parseToSmiles("ethane");
 		assertEquals("CC", smiles);
 	}
+
+	@Test
+	public void testParseChemicalNamesPreservesOrder() {
+		NameToStructure nts = NameToStructure.getInstance();
+		List<String> names = Arrays.asList("ethane", "helloworld", "benzene", "propan-2-ol", "methane", "ethanoic acid");
+		List<OpsinResult> results = nts.parseChemicalNames(names, NameToStructureConfig.getDefaultConfigInstance(), 3);
+		assertEquals(names.size(), results.size());
+		for (int i = 0; i < names.size(); i++) {
+			OpsinResult serialResult = nts.parseChemicalName(names.get(i));
+			assertEquals(names.get(i), results.get(i).getChemicalName());
+			assertEquals(serialResult.getStatus(), results.get(i).getStatus());
+			assertEquals(serialResult.getSmiles(), results.get(i).getSmiles());
+		}
+		assertEquals(OPSIN_RESULT_STATUS.FAILURE, results.get(1).getStatus());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseChemicalNamesRejectsNullName() {
+		NameToStructure nts = NameToStructure.getInstance();
+		nts.parseChemicalNames(Arrays.asList("ethane", null), NameToStructureConfig.getDefaultConfigInstance());
+	}
 }
@@ -0,0 +1,82 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class OpsinResultCacheTest {
+
+	@Test
+	public void testRepeatedNameIsCached() {
+		NameToStructure nts = NameToStructure.getInstance();
+		OpsinResultCache cache = new OpsinResultCache(10);
+		NameToStructureConfig n2sConfig = new NameToStructureConfig();
+		n2sConfig.setResultCache(cache);
+		OpsinResult first = nts.parseChemicalName("ethane", n2sConfig);
+		OpsinResult second = nts.parseChemicalName("ethane", n2sConfig);
+		assertSame(first, second);
+		assertEquals("CC", second.getSmiles());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0.5, cache.getHitRate(), 0.0001);
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testFailuresAreCached() {
+		NameToStructure nts = NameToStructure.getInstance();
+		OpsinResultCache cache = new OpsinResultCache(10);
+		NameToStructureConfig n2sConfig = new NameToStructureConfig();
+		n2sConfig.setResultCache(cache);
+		OpsinResult first = nts.parseChemicalName("helloworld", n2sConfig);
+		OpsinResult second = nts.parseChemicalName("helloworld", n2sConfig);
+		assertSame(first, second);
+		assertEquals(OpsinResult.OPSIN_RESULT_STATUS.FAILURE, second.getStatus());
+	}
+
+	@Test
+	public void testConfigurationsAreDistinguished() {
+		NameToStructure nts = NameToStructure.getInstance();
+		OpsinResultCache cache = new OpsinResultCache(10);
+		NameToStructureConfig n2sConfig = new NameToStructureConfig();
+		n2sConfig.setResultCache(cache);
+		NameToStructureConfig radicalConfig = n2sConfig.clone();
+		radicalConfig.setAllowRadicals(true);
+		OpsinResult withoutRadicals = nts.parseChemicalName("ethyl", n2sConfig);
+		OpsinResult withRadicals = nts.parseChemicalName("ethyl", radicalConfig);
+		assertEquals(OpsinResult.OPSIN_RESULT_STATUS.FAILURE, withoutRadicals.getStatus());
+		assertEquals(OpsinResult.OPSIN_RESULT_STATUS.SUCCESS, withRadicals.getStatus());
+		assertEquals(0, cache.getHitCount());
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testNameDifferingOnlyByPreProcessing() {
+		NameToStructure nts = NameToStructure.getInstance();
+		OpsinResultCache cache = new OpsinResultCache(10);
+		NameToStructureConfig n2sConfig = new NameToStructureConfig();
+		n2sConfig.setResultCache(cache);
+		nts.parseChemicalName("ethane", n2sConfig);
+		OpsinResult result = nts.parseChemicalName(" ethane ", n2sConfig);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(" ethane ", result.getChemicalName());
+		assertEquals("CC", result.getSmiles());
+	}
+
+	@Test
+	public void testFrequentlyUsedEntriesSurviveEviction() {
+		NameToStructure nts = NameToStructure.getInstance();
+		OpsinResultCache cache = new OpsinResultCache(5);
+		NameToStructureConfig n2sConfig = new NameToStructureConfig();
+		n2sConfig.setResultCache(cache);
+		OpsinResult frequent = nts.parseChemicalName("benzene", n2sConfig);
+		assertSame(frequent, nts.parseChemicalName("benzene", n2sConfig));
+		String[] names = {"methane", "ethane", "propane", "butane", "pentane", "hexane", "heptane", "octane"};
+		for (String name : names) {
+			nts.parseChemicalName(name, n2sConfig);
+		}
+		assertEquals(5, cache.size());
+		assertTrue(cache.getEvictionCount() > 0);
+		assertSame(frequent, nts.parseChemicalName("benzene", n2sConfig));
+	}
+}
@@ -0,0 +1,91 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import uk.ac.cam.ch.wwmm.opsin.OpsinResult.OPSIN_RESULT_STATUS;
+import uk.ac.cam.ch.wwmm.opsin.OpsinResult.OutputFormat;
+
+public class OpsinResultTest {
+
+	@Test
+	public void testOutputsAreGeneratedOnce() {
+		OpsinResult result = NameToStructure.getInstance().parseChemicalName("ethanol");
+		String smiles = result.getSmiles();
+		assertEquals("C(C)O", smiles);
+		assertSame(smiles, result.getSmiles());
+		String cml = result.getCml();
+		assertNotNull(cml);
+		assertSame(cml, result.getCml());
+		assertSame(result.getPrettyPrintedCml(), result.getPrettyPrintedCml());
+	}
+
+	@Test
+	public void testFailedResultHasNoOutputs() {
+		OpsinResult result = NameToStructure.getInstance().parseChemicalName("helloworld");
+		assertEquals(OPSIN_RESULT_STATUS.FAILURE, result.getStatus());
+		assertNull(result.getSmiles());
+		assertNull(result.getCml());
+	}
+
+	@Test
+	public void testConcurrentOutputGeneration() throws Exception {
+		final OpsinResult result = NameToStructure.getInstance().parseChemicalName("2-chloro-propan-1-ol");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> smiles = new ArrayList<Future<String>>();
+			for (int i = 0; i < 16; i++) {
+				smiles.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() {
+						return result.getSmiles();
+					}
+				}));
+			}
+			String expected = smiles.get(0).get();
+			assertNotNull(expected);
+			for (Future<String> s : smiles) {
+				assertSame(expected, s.get());
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testPrecomputedOutputsWithDiscardedStructure() {
+		NameToStructureConfig n2sConfig = new NameToStructureConfig();
+		n2sConfig.setPrecomputedOutputFormats(EnumSet.of(OutputFormat.SMILES));
+		OpsinResult result = NameToStructure.getInstance().parseChemicalName("ethane", n2sConfig);
+		assertEquals(OPSIN_RESULT_STATUS.SUCCESS, result.getStatus());
+		assertEquals("CC", result.getSmiles());
+		assertNull(result.getStructure());
+		assertNull(result.getCml());
+	}
+
+	@Test
+	public void testPrecomputedOutputsWithCache() {
+		NameToStructure nts = NameToStructure.getInstance();
+		NameToStructureConfig n2sConfig = new NameToStructureConfig();
+		n2sConfig.setResultCache(new OpsinResultCache(10));
+		n2sConfig.setPrecomputedOutputFormats(EnumSet.of(OutputFormat.CML));
+		OpsinResult first = nts.parseChemicalName("ethane", n2sConfig);
+		assertTrue(first.getCml().contains("ethane"));
+		OpsinResult second = nts.parseChemicalName(" ethane ", n2sConfig);
+		assertEquals(" ethane ", second.getChemicalName());
+		assertTrue(second.getCml().contains(" ethane "));
+		NameToStructureConfig onDemandConfig = n2sConfig.clone();
+		onDemandConfig.setPrecomputedOutputFormats(null);
+		assertNotNull(nts.parseChemicalName("ethane", onDemandConfig).getStructure());
+	}
+}
@@ -0,0 +1,107 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ParseRulesTest {
+
+	private static ParseRules parseRules;
+
+	@BeforeClass
+	public static void setUp() {
+		parseRules = NameToStructure.getOpsinParser();
+	}
+
+	@AfterClass
+	public static void cleanUp(){
+		parseRules = null;
+	}
+
+	@Test
+	public void testChemicalWords() {
+		assertTrue(parseRules.isChemicalWord("ethyl"));
+		assertTrue(parseRules.isChemicalWord("Ethyl"));
+		assertTrue(parseRules.isChemicalWord("2-chloropropan-1-ol"));
+		assertTrue(parseRules.isChemicalWord("ester"));
+		assertFalse(parseRules.isChemicalWord("ethylfoo"));
+		assertFalse(parseRules.isChemicalWord("eth"));
+		assertFalse(parseRules.isChemicalWord("helloworld"));
+		assertFalse(parseRules.isChemicalWord("éthyl"));
+	}
+
+	@Test
+	public void testLongestAcceptedLength() {
+		assertEquals(5, parseRules.getLongestAcceptedLength("ethylfoo"));
+		assertEquals(5, parseRules.getLongestAcceptedLength("ethyl"));
+		assertEquals(-1, parseRules.getLongestAcceptedLength("eth"));
+		assertEquals(-1, parseRules.getLongestAcceptedLength("helloworld"));
+	}
+
+	@Test
+	public void testParsesOfWordWithinName() throws ParsingException {
+		String name = "Ethyl 2-Chloropropanoate";
+		ParseRulesResults results = parseRules.getParses(name, 6);
+		ParseRulesResults expectedResults = parseRules.getParses(name.substring(6));
+		assertEquals(expectedResults.getParseTokensList(), results.getParseTokensList());
+		assertEquals("", results.getUninterpretableName());
+		assertEquals(name.length(), results.getUninterpretableStart());
+		assertEquals("2-chloropropanoate", StringTools.stringListToString(results.getParseTokensList().get(0).getTokens(), "").toLowerCase());
+
+		results = parseRules.getParses(name, 0);
+		assertEquals(" 2-Chloropropanoate", results.getUninterpretableName());
+		assertEquals(5, results.getUninterpretableStart());
+		assertEquals(parseRules.getParses("Ethyl").getParseTokensList(), results.getParseTokensList());
+	}
+
+	@Test
+	public void testLongRepetitiveWord() throws ParsingException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			sb.append("alanyl");
+		}
+		String word = sb.append("glycine").toString();
+		ParseRulesResults results = parseRules.getParses(word);
+		assertEquals("", results.getUninterpretableName());
+		List<ParseTokens> parses = results.getParseTokensList();
+		assertTrue(parses.size() > 0);
+		assertEquals("Parses should be distinct", parses.size(), new HashSet<ParseTokens>(parses).size());
+		for (ParseTokens parseTokens : parses) {
+			assertEquals(word, StringTools.stringListToString(parseTokens.getTokens(), ""));
+		}
+	}
+
+	@Test
+	public void testConsistentWithGetParses() throws IOException, ParsingException, PreProcessingException {
+		checkConsistentWithGetParses("unambiguous.txt");
+		checkConsistentWithGetParses("ambiguous.txt");
+		checkConsistentWithGetParses("uninterpretable.txt");
+	}
+
+	private void checkConsistentWithGetParses(String file) throws IOException, ParsingException, PreProcessingException {
+		BufferedReader input = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream(file), "UTF-8"));
+		try {
+			String line = null;
+			while ((line = input.readLine()) != null) {
+				if(line.startsWith("//")){
+					continue;
+				}
+				String word = PreProcessor.preProcess(line);
+				ParseRulesResults results = parseRules.getParses(word);
+				int expectedLength = results.getParseTokensList().isEmpty() ? -1 : word.length() - results.getUninterpretableName().length();
+				assertEquals(word, expectedLength, parseRules.getLongestAcceptedLength(word));
+			}
+		} finally {
+			IOUtils.closeQuietly(input);
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package uk.ac.cam.ch.wwmm.opsin;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.spy;
 
 import java.io.IOException;
 import java.util.List;
@@ -104,4 +106,46 @@ public class ParserTest {
 			}
 		}
 	}
+
+	@Test
+	public void testReverseParserIsOnlyBuiltOnce() throws IOException, ParsingException {
+		Parser parser = new Parser();
+		parser.prepareReverseParseRulesInBackground();
+		ReverseParseRules reverseParseRules = parser.getReverseParseRules();
+		assertNotNull(reverseParseRules);
+		assertSame(reverseParseRules, parser.getReverseParseRules());
+		parser.prepareReverseParseRulesInBackground();
+		assertSame(reverseParseRules, parser.getReverseParseRules());
+	}
+
+	@Test
+	public void testReverseParserIsRebuiltAfterFailure() throws IOException {
+		ResourceGetter resources = new ResourceGetter("uk/ac/cam/ch/wwmm/opsin/resources/");
+		ResourceManager resourceManager = spy(new ResourceManager(resources));
+		doThrow(new IOException("transient")).doCallRealMethod().when(resourceManager).populatedReverseTokenMappings();
+		Parser parser = new Parser(new WordRules(resources), new Tokeniser(new ParseRules(resourceManager)), resourceManager);
+		try {
+			parser.getReverseParseRules();
+			fail("The first attempt to build the right to left parser should have failed");
+		}
+		catch (RuntimeException e) {
+			assertEquals("transient", e.getCause().getMessage());
+		}
+		assertNotNull(parser.getReverseParseRules());
+	}
+
+	@Test
+	public void testDetailedFailureAnalysis() throws IOException {
+		NameToStructureConfig detailedConfig = new NameToStructureConfig();
+		detailedConfig.setDetailedFailureAnalysis(true);
+		for (int i = 0; i < 2; i++) {
+			try {
+				parser.parse(detailedConfig, "ethyl fooylpyridine oxide");
+				fail("Name should not be parsable");
+			}
+			catch (ParsingException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("uninterpretable due to the following section of the name: fooyl "));
+			}
+		}
+	}
 }
@@ -0,0 +1,169 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ResourceImageTest {
+
+	private static final String RESOURCE_LOCATION = "uk/ac/cam/ch/wwmm/opsin/resources/";
+	private static ResourceGetter resourceGetter;
+	private static ResourceImage imageFromXml;
+	private static byte[] imageBytes;
+
+	@BeforeClass
+	public static void setUp() throws IOException {
+		resourceGetter = new ResourceGetter(RESOURCE_LOCATION);
+		imageFromXml = new ResourceManager(resourceGetter, false).getResourceImage(new WordRules(resourceGetter), new SuffixRules(resourceGetter));
+		imageBytes = imageFromXml.toByteArray(resourceGetter);
+	}
+
+	@AfterClass
+	public static void cleanUp() {
+		resourceGetter = null;
+		imageFromXml = null;
+		imageBytes = null;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		ResourceImage image = ResourceImage.load(ByteBuffer.wrap(imageBytes), resourceGetter);
+		assertNotNull(image);
+		assertEquals(imageFromXml.getTokenFiles(), image.getTokenFiles());
+
+		CompiledGrammar expectedGrammar = imageFromXml.getCompiledGrammar();
+		CompiledGrammar grammar = image.getCompiledGrammar();
+		assertArrayEquals(expectedGrammar.getSymbols(), grammar.getSymbols());
+		assertEquals(expectedGrammar.getInitialState(), grammar.getInitialState());
+		assertEquals(expectedGrammar.getNumberOfStates(), grammar.getNumberOfStates());
+		for (int state = 0; state < grammar.getNumberOfStates(); state++) {
+			assertEquals(expectedGrammar.isAccept(state), grammar.isAccept(state));
+			assertEquals(expectedGrammar.getFirstTransition(state), grammar.getFirstTransition(state));
+			assertEquals(expectedGrammar.getEndOfTransitions(state), grammar.getEndOfTransitions(state));
+		}
+
+		assertEquals(imageFromXml.getTokenDict().keySet(), image.getTokenDict().keySet());
+		for (Entry<String, Map<Character, TokenEl>> entry : imageFromXml.getTokenDict().entrySet()) {
+			assertTokenElsEqual(entry.getValue(), image.getTokenDict().get(entry.getKey()));
+		}
+		assertTokenElsEqual(imageFromXml.getReSymbolTokenDict(), image.getReSymbolTokenDict());
+
+		assertEquals(imageFromXml.getSymbolRegexesDict().length, image.getSymbolRegexesDict().length);
+		for (int i = 0; i < image.getSymbolRegexesDict().length; i++) {
+			assertEquals(imageFromXml.getSymbolRegexesDict()[i] != null ? imageFromXml.getSymbolRegexesDict()[i].pattern() : null,
+					image.getSymbolRegexesDict()[i] != null ? image.getSymbolRegexesDict()[i].pattern() : null);
+			assertEquals(imageFromXml.getSymbolRegexAutomataDict()[i] != null, image.getSymbolRegexAutomataDict()[i] != null);
+		}
+		assertEquals(imageFromXml.getRegexTokensNotDeterminised(), image.getRegexTokensNotDeterminised());
+
+		ByteArrayOutputStream expectedRules = new ByteArrayOutputStream();
+		ByteArrayOutputStream rules = new ByteArrayOutputStream();
+		imageFromXml.getWordRules().write(new DataOutputStream(expectedRules));
+		imageFromXml.getSuffixRules().write(new DataOutputStream(expectedRules));
+		image.getWordRules().write(new DataOutputStream(rules));
+		image.getSuffixRules().write(new DataOutputStream(rules));
+		assertArrayEquals(expectedRules.toByteArray(), rules.toByteArray());
+	}
+
+	@Test
+	public void testWordRulesFromImage() throws IOException, ParsingException {
+		WordRules wordRules = ResourceImage.load(ByteBuffer.wrap(imageBytes), resourceGetter).getWordRules();
+		ResourceManager resourceManager = new ResourceManager(resourceGetter, false);
+		Tokeniser tokeniser = new Tokeniser(new ParseRules(resourceManager));
+		Parser parserFromXml = new Parser(imageFromXml.getWordRules(), tokeniser, resourceManager);
+		Parser parserFromImage = new Parser(wordRules, tokeniser, resourceManager);
+		NameToStructureConfig config = NameToStructureConfig.getDefaultConfigInstance();
+		for (String name : Arrays.asList("ethyl acetate", "acetic acid", "benzaldehyde oxime", "methyl ethyl ketone", "sodium chloride")) {
+			assertEquals(parserFromXml.parse(config, name).get(0).toXML(), parserFromImage.parse(config, name).get(0).toXML());
+		}
+	}
+
+	@Test
+	public void testSuffixRulesFromImage() throws ComponentGenerationException {
+		SuffixRules suffixRules = ResourceImage.load(ByteBuffer.wrap(imageBytes), resourceGetter).getSuffixRules();
+		List<SuffixRule> expected = imageFromXml.getSuffixRules().getSuffixRuleTags("chalcogenAcidStem", "yl", null);
+		List<SuffixRule> rules = suffixRules.getSuffixRuleTags("chalcogenAcidStem", "yl", null);
+		assertEquals(expected.size(), rules.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getType(), rules.get(i).getType());
+			assertEquals(expected.get(i).getAttributes().size(), rules.get(i).getAttributes().size());
+		}
+	}
+
+	private void assertTokenElsEqual(Map<Character, TokenEl> expected, Map<Character, TokenEl> actual) {
+		assertEquals(expected.keySet(), actual.keySet());
+		for (Entry<Character, TokenEl> entry : expected.entrySet()) {
+			TokenEl expectedEl = entry.getValue();
+			TokenEl el = actual.get(entry.getKey());
+			if (expectedEl == null) {
+				assertNull(el);
+				continue;
+			}
+			assertEquals(expectedEl.getName(), el.getName());
+			assertEquals(expectedEl.getValue(), el.getValue());
+			assertEquals(expectedEl.getAttributeCount(), el.getAttributeCount());
+			for (int i = 0; i < expectedEl.getAttributeCount(); i++) {
+				assertEquals(expectedEl.getAttribute(i).getName(), el.getAttribute(i).getName());
+				assertEquals(expectedEl.getAttribute(i).getValue(), el.getAttribute(i).getValue());
+			}
+		}
+	}
+
+	@Test
+	public void testParsesFromImageMatchXml() throws IOException, ParsingException {
+		ParseRules parseRulesFromXml = new ParseRules(new ResourceManager(resourceGetter, false));
+		ParseRules parseRulesFromImage = new ParseRules(new ResourceManager(resourceGetter, true));
+		for (String name : Arrays.asList("2-chloropropan-1-ol", "ethyl", "benzene", "1H-indole-3-carboxylic", "ethylfoo", "N,N-dimethylformamide")) {
+			assertEquals(parseRulesFromXml.getParses(name).toString(), parseRulesFromImage.getParses(name).toString());
+		}
+	}
+
+	@Test
+	public void testImageOfDifferentFormatIsIgnored() {
+		byte[] bytes = imageBytes.clone();
+		bytes[7]++;//last byte of the format version
+		assertNull(ResourceImage.load(ByteBuffer.wrap(bytes), resourceGetter));
+	}
+
+	@Test
+	public void testIncompleteImageIsIgnored() {
+		assertNull(ResourceImage.load(ByteBuffer.wrap(Arrays.copyOf(imageBytes, imageBytes.length - 1)), resourceGetter));
+	}
+
+	@Test
+	public void testStaleImageIsIgnored() {
+		ResourceGetter modifiedResourceGetter = new ResourceGetter(RESOURCE_LOCATION) {
+			@Override
+			InputStream getInputstreamFromFileName(String name) throws IOException {
+				InputStream is = super.getInputstreamFromFileName(name);
+				if (!name.equals("regexes.xml")) {
+					return is;
+				}
+				try {
+					byte[] contents = IOUtils.toByteArray(is);
+					contents = Arrays.copyOf(contents, contents.length + 1);
+					contents[contents.length - 1] = '\n';
+					return new ByteArrayInputStream(contents);
+				}
+				finally {
+					IOUtils.closeQuietly(is);
+				}
+			}
+		};
+		assertNull(ResourceImage.load(ByteBuffer.wrap(imageBytes), modifiedResourceGetter));
+	}
+}
@@ -0,0 +1,69 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class ResourceManagerTest {
+
+	private static final String RESOURCE_LOCATION = "uk/ac/cam/ch/wwmm/opsin/resources/";
+
+	@Test
+	public void testConcurrentlyLoadedResourcesMatchSeriallyLoaded() throws IOException {
+		ResourceGetter resourceGetter = new ResourceGetter(RESOURCE_LOCATION);
+		ResourceManager serial = new ResourceManager(resourceGetter, false, null);
+		ExecutorService executor = Executors.newFixedThreadPool(4, new DaemonThreadFactory("opsin-test"));
+		ResourceManager concurrent;
+		try {
+			concurrent = new ResourceManager(resourceGetter, false, executor);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		WordRules wordRules = new WordRules(resourceGetter);
+		SuffixRules suffixRules = new SuffixRules(resourceGetter);
+		assertArrayEquals(serial.getResourceImage(wordRules, suffixRules).toByteArray(resourceGetter),
+				concurrent.getResourceImage(wordRules, suffixRules).toByteArray(resourceGetter));
+		assertEquals(serial.getRegexTokensNotDeterminised(), concurrent.getRegexTokensNotDeterminised());
+	}
+
+	@Test
+	public void testReverseTokenMappings() throws IOException {
+		ResourceManager resourceManager = new ResourceManager(new ResourceGetter(RESOURCE_LOCATION), false, null);
+		assertNull(resourceManager.getReverseCompiledGrammar());
+		resourceManager.populatedReverseTokenMappings();
+		assertNotNull(resourceManager.getReverseCompiledGrammar());
+		assertTrue(resourceManager.getTokenNamesTrie().findMatches("ethyl", 0).contains(3));
+		assertTrue(resourceManager.getTokenNamesTrieReversed().findMatchesReadingStringRightToLeft("ethyl", 3).contains(0));
+	}
+
+	@Test
+	public void testOverlaySharesBaseResources() throws IOException, ParsingException {
+		ResourceManager base = new ResourceManager(new ResourceGetter(RESOURCE_LOCATION), false, null);
+		OpsinResourceOverlay overlay = new OpsinResourceOverlay().addTokenFile("overlay.xml", new ByteArrayInputStream((
+				"<tokenList tagname=\"group\" type=\"simpleGroup\" subType=\"simpleGroup\" symbol=\"G\">" +
+				"<token value=\"OCCCCO\">opsinoxanol</token>" +
+				"<token value=\"OC(C(CC)=O)CC\">acetoin</token>" +
+				"</tokenList>").getBytes(StandardCharsets.UTF_8)));
+		ResourceManager overlaid = new ResourceManager(base, overlay);
+		assertSame(base.getTokenNamesTrie(), overlaid.getTokenNamesTrie());
+		assertSame(base.getSymbolRegexAutomataDict(), overlaid.getSymbolRegexAutomataDict());
+		assertSame(base.getCompiledGrammar(), overlaid.getCompiledGrammar());
+		assertNull(base.getAdditionalTokenNamesTrie());
+		assertTrue(overlaid.getAdditionalTokenNamesTrie().findMatches("opsinoxanol", 0).contains(11));
+		assertNull("acetoin is already in the base's trie", overlaid.getAdditionalTokenNamesTrie().findMatches("acetoin", 0));
+		assertEquals("OC(C(CC)=O)CC", overlaid.makeTokenElement("acetoin", 'G').getAttributeValue(XmlDeclarations.VALUE_ATR));
+		assertEquals("OC(C(C)=O)C", base.makeTokenElement("acetoin", 'G').getAttributeValue(XmlDeclarations.VALUE_ATR));
+		assertNotNull(overlaid.makeTokenElement("benzen", 'z'));
+
+		overlaid.populatedReverseTokenMappings();
+		assertSame(base.getTokenNamesTrieReversed(), overlaid.getTokenNamesTrieReversed());
+		assertTrue(overlaid.getAdditionalTokenNamesTrieReversed().findMatchesReadingStringRightToLeft("opsinoxanol", 11).contains(0));
+	}
+}
@@ -0,0 +1,100 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import static org.junit.Assert.*;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class TokenLatticeTest {
+
+	private static class CountingTokenFinder implements TokenFinder {
+		int dictionaryCalls = 0;
+		int calls = 0;
+
+		public void findDictionaryTokens(TokenLattice lattice, int posInName) {
+			dictionaryCalls++;
+			//both symbols have a dictionary token of one character
+			if (posInName < lattice.getWordLength()) {
+				lattice.addDictionaryToken(0, posInName + 1);
+				lattice.addDictionaryToken(1, posInName + 1);
+			}
+		}
+
+		public void findTokens(TokenLattice lattice, int posInName, int symbolIndex) {
+			calls++;
+			//symbol 1 also matches two characters
+			if (symbolIndex == 1 && posInName + 2 <= lattice.getWordLength()) {
+				lattice.addToken(posInName + 2, true);
+			}
+		}
+	}
+
+	@Test
+	public void testTokensAreOnlyFoundOnce() {
+		CountingTokenFinder finder = new CountingTokenFinder();
+		TokenLattice lattice = new TokenLattice(finder, 2);
+		lattice.prepare("Abc");
+		int entry = lattice.findTokens(1, 1);
+		assertEquals(1, finder.calls);
+		assertEquals(2, lattice.getEndOfTokens(entry) - lattice.getFirstToken(entry));
+		int token = lattice.getFirstToken(entry);
+		assertEquals(2, lattice.getTokenPosition(token));
+		assertFalse(lattice.isCaseSensitive(token));
+		assertEquals(3, lattice.getTokenPosition(token + 1));
+		assertTrue(lattice.isCaseSensitive(token + 1));
+
+		int otherEntry = lattice.findTokens(1, 0);
+		assertEquals(1, lattice.getEndOfTokens(otherEntry) - lattice.getFirstToken(otherEntry));
+		assertEquals(1, finder.dictionaryCalls);
+		lattice.findTokens(0, 0);
+		assertEquals(3, finder.calls);
+		assertEquals(2, finder.dictionaryCalls);
+		assertEquals(entry, lattice.findTokens(1, 1));
+		assertEquals(3, finder.calls);
+		assertEquals('a', lattice.getLowerCaseName()[0]);
+		lattice.release();
+	}
+
+	@Test
+	public void testReuseForAnotherWord() {
+		CountingTokenFinder finder = new CountingTokenFinder();
+		TokenLattice lattice = new TokenLattice(finder, 2);
+		lattice.prepare("ab");
+		lattice.findTokens(0, 1);
+		lattice.release();
+		lattice.prepare("a");
+		int entry = lattice.findTokens(0, 1);
+		assertEquals(2, finder.calls);
+		assertEquals(1, lattice.getEndOfTokens(entry) - lattice.getFirstToken(entry));
+		assertEquals(1, lattice.getTokenPosition(lattice.getFirstToken(entry)));
+		lattice.release();
+	}
+
+	@Test
+	public void testWordWithinName() {
+		CountingTokenFinder finder = new CountingTokenFinder();
+		TokenLattice lattice = new TokenLattice(finder, 2);
+		String name = "Methyl Ethyl";
+		lattice.prepare(name, 7, name.length());
+		assertEquals(5, lattice.getWordLength());
+		assertEquals(7, lattice.getOffset());
+		char[] lowerCaseName = lattice.getLowerCaseName();
+		assertEquals('e', lowerCaseName[7]);
+		int entry = lattice.findTokens(4, 1);
+		assertEquals(1, lattice.getEndOfTokens(entry) - lattice.getFirstToken(entry));
+		assertEquals(5, lattice.getTokenPosition(lattice.getFirstToken(entry)));
+
+		Matcher m = lattice.getMatcher(0, Pattern.compile("(?<![A-Za-z])"));
+		m.useTransparentBounds(true);
+		m.region(0, lattice.getWordLength());
+		assertTrue("The character before the word should not be visible", m.lookingAt());
+		lattice.release();
+
+		lattice.prepare(name, 0, 6);
+		assertSame("The name should only be lower cased once", lowerCaseName, lattice.getLowerCaseName());
+		assertEquals('m', lattice.getLowerCaseName()[0]);
+		lattice.release();
+	}
+}
@@ -379,4 +379,36 @@ public class TokenizerTest {
 		TokenizationResult result =tokenizer.tokenizeRightToLeft(reverseParseRules, "ethyl foo|yl tolu ene", true);
 		assertEquals("ethyl foo|yl", result.getUnparsedName());
 	}
+	
+	@Test
+	public void memoisedWordsAreReused() throws ParsingException{
+		ParseMemo memo = new ParseMemo();
+		TokenizationResult result = tokenizer.tokenize("ethyl chloride", true, memo);
+		assertEquals(true, result.isSuccessfullyTokenized());
+		assertEquals(0, memo.getHitCount());
+		assertEquals(2, memo.getMissCount());
+
+		result = tokenizer.tokenize("methyl chloride", true, memo);
+		assertEquals(true, result.isSuccessfullyTokenized());
+		assertEquals("chloride was reused at a different offset", 1, memo.getHitCount());
+		assertEquals(3, memo.getMissCount());
+		List<ParseWord> words = result.getParse().getWords();
+		assertEquals(2, words.size());
+		assertEquals("methyl", words.get(0).getWord());
+		assertEquals("chloride", words.get(1).getWord());
+		assertEquals("chloride", words.get(1).getParseTokens().get(0).getTokens().get(0));
+	}
+
+	@Test
+	public void memoisedUnparsableWordsAreReused() throws ParsingException{
+		ParseMemo memo = new ParseMemo();
+		TokenizationResult result = tokenizer.tokenize("ethyl acet|foo toluene", true, memo);
+		assertEquals(false, result.isSuccessfullyTokenized());
+		int misses = memo.getMissCount();
+		TokenizationResult result2 = tokenizer.tokenize("ethyl acet|foo toluene", true, memo);
+		assertEquals(misses, memo.getMissCount());
+		assertEquals(result.getUninterpretableName(), result2.getUninterpretableName());
+		assertEquals(result.getUnparsableName(), result2.getUnparsableName());
+		assertEquals(result.getUnparsedName(), result2.getUnparsedName());
+	}
 }
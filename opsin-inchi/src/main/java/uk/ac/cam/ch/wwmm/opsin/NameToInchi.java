@@ -97,18 +97,28 @@ public class NameToInchi {
 	public static String convertResultToStdInChIKey(OpsinResult result){
 		String stdInchi = convertResultToInChI(result, true);
 		if (stdInchi != null){
-			try {
-				JniInchiOutputKey key = JniInchiWrapper.getInchiKey(stdInchi);
-				return key.getKey();
-			} catch (Exception e) {
-				if (LOG.isDebugEnabled()){
-					LOG.debug(e.getMessage(), e);
-				}
-				return null;
-			}
+			return convertStdInChIToStdInChIKey(stdInchi);
 		}
 		return null;
 	}
+
+	/**
+	 * Converts a StdInChI, such as one from {@link #convertResultToStdInChI(OpsinResult)}, to a StdInChIKey. Null is returned if this conversion fails
+	 * This avoids regenerating the StdInChI when both the StdInChI and StdInChIKey are required
+	 * @param stdInchi
+	 * @return String InChIKey
+	 */
+	public static String convertStdInChIToStdInChIKey(String stdInchi){
+		try {
+			JniInchiOutputKey key = JniInchiWrapper.getInchiKey(stdInchi);
+			return key.getKey();
+		} catch (Exception e) {
+			if (LOG.isDebugEnabled()){
+				LOG.debug(e.getMessage(), e);
+			}
+			return null;
+		}
+	}
 	
 	private static String convertResultToInChI(OpsinResult result, boolean produceStdInChI){
 		if (result.getStructure() != null){
@@ -2,6 +2,9 @@ package uk.ac.cam.ch.wwmm.opsin;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -45,6 +48,21 @@ public class InchiOutputTest {
 		assertEquals("DLFVBJFMPXGRIB-UHFFFAOYSA-N", NameToInchi.convertResultToStdInChIKey(result));
 	}
 	
+	@Test
+	public void testStdInChIToStdInChIKey(){
+		assertEquals("DLFVBJFMPXGRIB-UHFFFAOYSA-N", NameToInchi.convertStdInChIToStdInChIKey("InChI=1S/C2H5NO/c1-2(3)4/h1H3,(H2,3,4)"));
+	}
+	
+	@Test
+	public void testMultipleOutputFormats() throws Exception{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NameToStructure.convertNames(new ByteArrayInputStream("acetamide\nhelloworld\n".getBytes("UTF-8")), out, new NameToStructureConfig(), "smi,stdinchi,stdinchikey", true, 1);
+		String[] lines = out.toString("UTF-8").split("\r?\n");
+		assertEquals(2, lines.length);
+		assertEquals("C(C)(=O)N\tInChI=1S/C2H5NO/c1-2(3)4/h1H3,(H2,3,4)\tDLFVBJFMPXGRIB-UHFFFAOYSA-N\tacetamide", lines[0]);
+		assertEquals("\t\t\thelloworld", lines[1]);
+	}
+	
 	@Test
 	public void testParseToInChI(){
 		assertEquals("InChI=1/C2H5NO/c1-2(3)4/h1H3,(H2,3,4)/f/h3H2", n2i.parseToInchi("acetamide"));
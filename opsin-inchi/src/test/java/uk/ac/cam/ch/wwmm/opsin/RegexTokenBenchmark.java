@@ -0,0 +1,170 @@
+package uk.ac.cam.ch.wwmm.opsin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.IOUtils;
+
+
+/**
+ * Compares matching the regex tokens using their DFAs against matching them using java.util.regex,
+ * at every position of every name in the integration test corpus.
+ * The corpus is the set of files checked by {@link NomenclatureIntegrationTest}. Run from the test classpath.
+ * @author dl387
+ *
+ */
+public class RegexTokenBenchmark {
+
+	private static final String[] CORPUS = {"acetals.txt", "additiveNomenclature.txt", "alcoholEsters.txt", "carbohydrates.txt",
+		"chargeBalancing.txt", "conjunctiveNomenclature.txt", "cyclicSuffixes.txt", "detachablePrefixes.txt", "epoxyLike.txt",
+		"functionalClasses.txt", "functionalReplacement.txt", "fusedRings.txt", "implicitBracketting.txt", "inorganics.txt",
+		"ions.txt", "isotopes.txt", "lettercasing.txt", "miscellany.txt", "multiplicativeNomenclature.txt", "omittedSpaces.txt",
+		"organometallics.txt", "radicals.txt", "spiro.txt", "stereochemistry.txt"};
+
+	private static final int ROUNDS = 10;
+
+	public static void main(String[] args) throws IOException {
+		ResourceGetter resourceGetter = new ResourceGetter("uk/ac/cam/ch/wwmm/opsin/resources/");
+		ResourceManager resourceManager = new ResourceManager(resourceGetter);
+		char[] symbols = resourceManager.getCompiledGrammar().getSymbols();
+		CompactAutomaton[] automata = resourceManager.getSymbolRegexAutomataDict();
+		Map<Character, String> regexes = readRegexTokens(resourceGetter);
+
+		List<CompactAutomaton> dfas = new ArrayList<CompactAutomaton>();
+		List<Matcher> matchers = new ArrayList<Matcher>();
+		for (int i = 0; i < symbols.length; i++) {
+			if (automata[i] != null) {
+				dfas.add(automata[i]);
+				matchers.add(Pattern.compile(regexes.get(symbols[i])).matcher(""));
+			}
+		}
+		List<String> names = readCorpus();
+		int characters = 0;
+		for (String name : names) {
+			characters += name.length();
+		}
+		System.out.println(dfas.size() + " regex tokens compiled into DFAs, " + names.size() + " names, " + characters + " positions");
+		System.out.println("Regex tokens matched using java.util.regex: " + resourceManager.getRegexTokensNotDeterminised());
+
+		long bestDfaTime = Long.MAX_VALUE;
+		long bestRegexTime = Long.MAX_VALUE;
+		int dfaMatches = 0;
+		int regexMatches = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			dfaMatches = 0;
+			for (String name : names) {
+				for (int pos = 0, len = name.length(); pos < len; pos++) {
+					for (CompactAutomaton dfa : dfas) {
+						if (dfa.run(name, pos) != -1) {
+							dfaMatches++;
+						}
+					}
+				}
+			}
+			bestDfaTime = Math.min(bestDfaTime, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			regexMatches = 0;
+			for (String name : names) {
+				for (Matcher matcher : matchers) {
+					matcher.reset(name);
+					matcher.useTransparentBounds(true);
+				}
+				for (int pos = 0, len = name.length(); pos < len; pos++) {
+					for (Matcher matcher : matchers) {
+						matcher.region(pos, len);
+						if (matcher.lookingAt()) {
+							regexMatches++;
+						}
+					}
+				}
+			}
+			bestRegexTime = Math.min(bestRegexTime, System.nanoTime() - start);
+		}
+		long attempts = (long) characters * dfas.size();
+		System.out.println("DFA:                " + bestDfaTime / 1000000 + " ms, " + bestDfaTime / attempts + " ns per attempt, " + dfaMatches + " matches");
+		System.out.println("java.util.regex:    " + bestRegexTime / 1000000 + " ms, " + bestRegexTime / attempts + " ns per attempt, " + regexMatches + " matches");
+	}
+
+	private static List<String> readCorpus() throws IOException {
+		List<String> names = new ArrayList<String>();
+		for (String file : CORPUS) {
+			BufferedReader input = new BufferedReader(new InputStreamReader(RegexTokenBenchmark.class.getResourceAsStream(file), "UTF-8"));
+			try {
+				String line;
+				while ((line = input.readLine()) != null) {
+					if (line.startsWith("//") || line.length() == 0) {
+						continue;
+					}
+					names.add(PreProcessor.preProcess(line.split("\t")[0]));
+				}
+			}
+			catch (PreProcessingException e) {
+				throw new IOException(e);
+			}
+			finally {
+				IOUtils.closeQuietly(input);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Reads the regex of each regex token, substituting %name% references as {@link ResourceManager} does
+	 * @param resourceGetter
+	 * @return
+	 * @throws IOException
+	 */
+	private static Map<Character, String> readRegexTokens(ResourceGetter resourceGetter) throws IOException {
+		Map<Character, String> regexTokens = new HashMap<Character, String>();
+		Map<String, String> namedRegexes = new HashMap<String, String>();
+		Pattern matchRegexReplacement = Pattern.compile("%.*?%");
+		XMLStreamReader reader = resourceGetter.getXMLStreamReader("regexTokens.xml");
+		try {
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+					String localName = reader.getLocalName();
+					if (!localName.equals("regex") && !localName.equals("regexToken")){
+						continue;
+					}
+					String re = reader.getAttributeValue(null, "regex");
+					Matcher m = matchRegexReplacement.matcher(re);
+					StringBuffer sb = new StringBuffer();
+					while (m.find()) {
+						m.appendReplacement(sb, Matcher.quoteReplacement(namedRegexes.get(m.group())));
+					}
+					m.appendTail(sb);
+					if (localName.equals("regex")) {
+						namedRegexes.put(reader.getAttributeValue(null, "name"), sb.toString());
+					}
+					else {
+						regexTokens.put(reader.getAttributeValue(null, "symbol").charAt(0), sb.toString());
+					}
+				}
+			}
+		}
+		catch (XMLStreamException e) {
+			throw new IOException("Parsing exception occurred while reading regexTokens.xml", e);
+		}
+		finally {
+			try {
+				reader.close();
+			} catch (XMLStreamException e) {
+				throw new IOException("Parsing exception occurred while reading regexTokens.xml", e);
+			}
+		}
+		return regexTokens;
+	}
+}